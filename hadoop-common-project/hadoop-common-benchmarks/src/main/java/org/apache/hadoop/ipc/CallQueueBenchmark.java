@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark the dispatch of calls from the readers of a {@link Server} to
+ * its handlers through the {@link CallQueueManager}, for each kind of call
+ * queue. Every thread queues a call and then takes one, as a reader and a
+ * handler would, so the threads contend on the queue the way the readers
+ * and handlers of a busy server do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallQueueBenchmark {
+  private static final int NUM_USERS = 16;
+
+  /** A call of one of a fixed set of users. */
+  static class BenchmarkCall implements Schedulable {
+    private final UserGroupInformation ugi;
+
+    BenchmarkCall(UserGroupInformation ugi) {
+      this.ugi = ugi;
+    }
+
+    @Override
+    public UserGroupInformation getUserGroupInformation() {
+      return ugi;
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Queue {
+    @Param({"java.util.concurrent.LinkedBlockingQueue",
+        "org.apache.hadoop.ipc.FairCallQueue",
+        "org.apache.hadoop.ipc.ShardedCallQueue"})
+    public String queueClass;
+
+    CallQueueManager<BenchmarkCall> manager;
+    BenchmarkCall[] calls;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ClassNotFoundException {
+      final Class<? extends BlockingQueue<BenchmarkCall>> backingClass =
+          (Class<? extends BlockingQueue<BenchmarkCall>>)
+          Class.forName(queueClass);
+      manager = new CallQueueManager<BenchmarkCall>(backingClass, 1000,
+          "ipc.0", new Configuration());
+      calls = new BenchmarkCall[NUM_USERS];
+      for (int i = 0; i < calls.length; i++) {
+        calls[i] = new BenchmarkCall(
+            UserGroupInformation.createRemoteUser("user" + i));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Caller {
+    int next;
+  }
+
+  @Benchmark
+  @Threads(4)
+  public BenchmarkCall putTake(Queue queue, Caller caller)
+      throws InterruptedException {
+    caller.next = (caller.next + 1) % queue.calls.length;
+    queue.manager.put(queue.calls[caller.next]);
+    return queue.manager.take();
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EchoRequestProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EchoResponseProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EmptyRequestProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EmptyResponseProto;
+import org.apache.hadoop.ipc.protobuf.TestRpcServiceProtos.TestProtobufRpcProto;
+import org.apache.hadoop.net.NetUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.BlockingService;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+
+/**
+ * Benchmark calls made with the {@link ProtobufRpcEngine} from a
+ * {@link Client} to a {@link Server} over the loopback interface. All the
+ * threads share one connection, as the threads of a process using one
+ * proxy do.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RpcRoundTripBenchmark {
+  /** The length of the message echoed by the call. */
+  @Param({"16", "1024"})
+  public int messageLength;
+
+  @Param({"10"})
+  public int handlers;
+
+  @ProtocolInfo(protocolName = "benchmarkProto", protocolVersion = 1)
+  public interface BenchmarkService
+      extends TestProtobufRpcProto.BlockingInterface {
+  }
+
+  static class BenchmarkServiceImpl implements BenchmarkService {
+    @Override
+    public EmptyResponseProto ping(RpcController unused,
+        EmptyRequestProto request) {
+      return EmptyResponseProto.getDefaultInstance();
+    }
+
+    @Override
+    public EchoResponseProto echo(RpcController unused,
+        EchoRequestProto request) {
+      return EchoResponseProto.newBuilder().setMessage(request.getMessage())
+          .build();
+    }
+
+    @Override
+    public EmptyResponseProto error(RpcController unused,
+        EmptyRequestProto request) throws ServiceException {
+      throw new ServiceException("error", new RpcServerException("error"));
+    }
+
+    @Override
+    public EmptyResponseProto error2(RpcController unused,
+        EmptyRequestProto request) throws ServiceException {
+      throw new ServiceException("error", new RpcServerException("error2"));
+    }
+  }
+
+  private Configuration conf;
+  private RPC.Server server;
+  private BenchmarkService proxy;
+  private EchoRequestProto echoRequest;
+  private final EmptyRequestProto emptyRequest =
+      EmptyRequestProto.newBuilder().build();
+
+  @Setup
+  public void setup() throws IOException {
+    conf = new Configuration();
+    RPC.setProtocolEngine(conf, BenchmarkService.class,
+        ProtobufRpcEngine.class);
+    final BlockingService service = TestProtobufRpcProto
+        .newReflectiveBlockingService(new BenchmarkServiceImpl());
+    server = new RPC.Builder(conf).setProtocol(BenchmarkService.class)
+        .setInstance(service).setBindAddress("127.0.0.1").setPort(0)
+        .setNumHandlers(handlers).build();
+    server.start();
+
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    proxy = RPC.getProxy(BenchmarkService.class, 0, addr, conf);
+
+    final char[] message = new char[messageLength];
+    Arrays.fill(message, 'x');
+    echoRequest = EchoRequestProto.newBuilder()
+        .setMessage(new String(message)).build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (proxy != null) {
+      RPC.stopProxy(proxy);
+    }
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  @Benchmark
+  public EmptyResponseProto ping() throws ServiceException {
+    return proxy.ping(null, emptyRequest);
+  }
+
+  @Benchmark
+  public EchoResponseProto echo() throws ServiceException {
+    return proxy.echo(null, echoRequest);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public EchoResponseProto echoConcurrently() throws ServiceException {
+    return proxy.echo(null, echoRequest);
+  }
+}
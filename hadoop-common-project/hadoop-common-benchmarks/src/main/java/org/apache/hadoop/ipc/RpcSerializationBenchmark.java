@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.ipc.ProtobufRpcEngine.RpcRequestWrapper;
+import org.apache.hadoop.ipc.ProtobufRpcEngine.RpcResponseWrapper;
+import org.apache.hadoop.ipc.protobuf.ProtobufRpcEngineProtos.RequestHeaderProto;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcRequestHeaderProto.OperationProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EchoRequestProto;
+import org.apache.hadoop.ipc.protobuf.TestProtos.EchoResponseProto;
+import org.apache.hadoop.util.ProtoUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark the encoding and decoding of the messages of a call made with
+ * the {@link ProtobufRpcEngine}: the RPC request header, which the
+ * {@link Client} writes and the {@link Server} reads for every call, and
+ * the request and response of the protocol method.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RpcSerializationBenchmark {
+  /** The length of the message echoed by the call. */
+  @Param({"16", "1024"})
+  public int messageLength;
+
+  private final DataOutputBuffer out = new DataOutputBuffer();
+  private final DataInputBuffer in = new DataInputBuffer();
+  private final byte[] clientId = ClientId.getClientId();
+  private RequestHeaderProto methodHeader;
+  private EchoRequestProto request;
+  private EchoResponseProto response;
+  private byte[] rpcRequestHeaderBytes;
+  private byte[] requestBytes;
+  private byte[] responseBytes;
+
+  @Setup
+  public void setup() throws IOException {
+    final char[] message = new char[messageLength];
+    Arrays.fill(message, 'x');
+    request = EchoRequestProto.newBuilder()
+        .setMessage(new String(message)).build();
+    response = EchoResponseProto.newBuilder()
+        .setMessage(request.getMessage()).build();
+    methodHeader = RequestHeaderProto.newBuilder()
+        .setMethodName("echo")
+        .setDeclaringClassProtocolName("testProto")
+        .setClientProtocolVersion(1).build();
+
+    rpcRequestHeaderBytes = encodeRpcRequestHeader();
+    requestBytes = encodeRequest();
+    responseBytes = encodeResponse();
+  }
+
+  private byte[] copyOut() {
+    return Arrays.copyOf(out.getData(), out.getLength());
+  }
+
+  @Benchmark
+  public byte[] encodeRpcRequestHeader() throws IOException {
+    out.reset();
+    ProtoUtil.makeRpcRequestHeader(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+        OperationProto.RPC_FINAL_PACKET, 1, 0, clientId)
+        .writeDelimitedTo(out);
+    return copyOut();
+  }
+
+  @Benchmark
+  public RpcRequestHeaderProto decodeRpcRequestHeader() throws IOException {
+    in.reset(rpcRequestHeaderBytes, rpcRequestHeaderBytes.length);
+    RpcRequestHeaderProto.Builder builder = RpcRequestHeaderProto.newBuilder();
+    builder.mergeDelimitedFrom(in);
+    return builder.build();
+  }
+
+  @Benchmark
+  public byte[] encodeRequest() throws IOException {
+    out.reset();
+    new RpcRequestWrapper(methodHeader, request).write(out);
+    return copyOut();
+  }
+
+  @Benchmark
+  public EchoRequestProto decodeRequest() throws IOException {
+    in.reset(requestBytes, requestBytes.length);
+    final RpcRequestWrapper wrapper = new RpcRequestWrapper();
+    wrapper.readFields(in);
+    return EchoRequestProto.newBuilder()
+        .mergeFrom(wrapper.theRequestRead).build();
+  }
+
+  @Benchmark
+  public byte[] encodeResponse() throws IOException {
+    out.reset();
+    new RpcResponseWrapper(response).write(out);
+    return copyOut();
+  }
+
+  @Benchmark
+  public EchoResponseProto decodeResponse() throws IOException {
+    in.reset(responseBytes, responseBytes.length);
+    final RpcResponseWrapper wrapper = new RpcResponseWrapper();
+    wrapper.readFields(in);
+    return EchoResponseProto.parseFrom(wrapper.theResponseRead);
+  }
+}
@@ -52,6 +52,11 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final String  IPC_CLIENT_PING_KEY = "ipc.client.ping";
   /** Default value of IPC_CLIENT_PING_KEY */
   public static final boolean IPC_CLIENT_PING_DEFAULT = true;
+  /** Send the calls of proxy users over the connections of the real users */
+  public static final String  IPC_CLIENT_MULTIPLEX_PROXY_USERS_KEY =
+    "ipc.client.multiplex.proxy-users";
+  /** Default value of IPC_CLIENT_MULTIPLEX_PROXY_USERS_KEY */
+  public static final boolean IPC_CLIENT_MULTIPLEX_PROXY_USERS_DEFAULT = false;
   /** Responses larger than this will be logged */
   public static final String  IPC_SERVER_RPC_MAX_RESPONSE_SIZE_KEY =
     "ipc.server.max.response.size";
@@ -76,6 +81,17 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   
   public static final int IPC_MAXIMUM_DATA_LENGTH_DEFAULT = 64 * 1024 * 1024;
 
+  /** Whether the RPC server pools its request and response buffers */
+  public static final String  IPC_SERVER_BUFFER_POOL_ENABLED_KEY =
+    "ipc.server.buffer.pool.enabled";
+  /** Default value for IPC_SERVER_BUFFER_POOL_ENABLED_KEY */
+  public static final boolean IPC_SERVER_BUFFER_POOL_ENABLED_DEFAULT = false;
+  /** Whether the pooled response buffers of the RPC server are direct */
+  public static final String  IPC_SERVER_BUFFER_POOL_DIRECT_KEY =
+    "ipc.server.buffer.pool.direct";
+  /** Default value for IPC_SERVER_BUFFER_POOL_DIRECT_KEY */
+  public static final boolean IPC_SERVER_BUFFER_POOL_DIRECT_DEFAULT = false;
+
   /** How many calls per handler are allowed in the queue. */
   public static final String  IPC_SERVER_HANDLER_QUEUE_SIZE_KEY =
     "ipc.server.handler.queue.size";
@@ -90,6 +106,16 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final String IPC_CALLQUEUE_NAMESPACE = "ipc";
   public static final String IPC_CALLQUEUE_IMPL_KEY = "callqueue.impl";
   public static final String IPC_CALLQUEUE_IDENTITY_PROVIDER_KEY = "identity-provider.impl";
+  /**
+   * Whether to reject calls with a ServerTooBusyException instead of
+   * blocking the reader when the call queue is full.
+   */
+  public static final String IPC_BACKOFF_ENABLE = "backoff.enable";
+  public static final boolean IPC_BACKOFF_ENABLE_DEFAULT = false;
+  /** The time rejected clients are told to back off for. */
+  public static final String IPC_BACKOFF_RETRY_AFTER_MS_KEY =
+    "backoff.retry-after.ms";
+  public static final long IPC_BACKOFF_RETRY_AFTER_MS_DEFAULT = 100;
 
   /** Internal buffer size for Lzo compressor/decompressors */
   public static final String  IO_COMPRESSION_CODEC_LZO_BUFFERSIZE_KEY =
@@ -281,6 +307,11 @@ public class CommonConfigurationKeys extends CommonConfigurationKeysPublic {
   public static final boolean RPC_METRICS_QUANTILE_ENABLE_DEFAULT = false;
   public static final String  RPC_METRICS_PERCENTILES_INTERVALS_KEY =
       "rpc.metrics.percentiles.intervals";
+  /** Whether to keep percentiles of the latencies of each RPC method */
+  public static final String RPC_METRICS_DETAILED_QUANTILE_ENABLE =
+      "rpc.metrics.detailed.quantile.enable";
+  public static final boolean RPC_METRICS_DETAILED_QUANTILE_ENABLE_DEFAULT =
+      false;
   
   /** Allowed hosts for nfs exports */
   public static final String NFS_EXPORTS_ALLOWED_HOSTS_SEPARATOR = ";";
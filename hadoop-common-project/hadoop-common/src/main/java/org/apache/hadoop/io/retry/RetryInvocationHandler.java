@@ -76,6 +76,11 @@ protected RetryInvocationHandler(FailoverProxyProvider<T> proxyProvider,
   @Override
   public Object invoke(Object proxy, Method method, Object[] args)
     throws Throwable {
+    if (Client.isAsynchronousMode()) {
+      // an asynchronous call returns before it can fail and be retried
+      throw new UnsupportedOperationException("Call to " + method.getName()
+          + " through a retrying proxy in asynchronous mode");
+    }
     RetryPolicy policy = methodNameToPolicyMap.get(method.getName());
     if (policy == null) {
       policy = defaultPolicy;
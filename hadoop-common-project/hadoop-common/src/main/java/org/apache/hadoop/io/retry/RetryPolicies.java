@@ -35,6 +35,7 @@
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.ipc.RetriableException;
+import org.apache.hadoop.ipc.ServerTooBusyException;
 import org.apache.hadoop.ipc.StandbyException;
 import org.apache.hadoop.net.ConnectTimeoutException;
 
@@ -170,7 +171,8 @@ static class RetryForever implements RetryPolicy {
     @Override
     public RetryAction shouldRetry(Exception e, int retries, int failovers,
         boolean isIdempotentOrAtMostOnce) throws Exception {
-      return RetryAction.RETRY;
+      return new RetryAction(RetryAction.RetryDecision.RETRY,
+          getRetryAfterMillis(e));
     }
   }
   
@@ -208,8 +210,9 @@ public RetryAction shouldRetry(Exception e, int retries, int failovers,
       if (retries >= maxRetries) {
         return RetryAction.FAIL;
       }
-      return new RetryAction(RetryAction.RetryDecision.RETRY,
-          timeUnit.toMillis(calculateSleepTime(retries)));
+      return new RetryAction(RetryAction.RetryDecision.RETRY, Math.max(
+          timeUnit.toMillis(calculateSleepTime(retries)),
+          getRetryAfterMillis(e)));
     }
     
     protected abstract long calculateSleepTime(int retries);
@@ -323,7 +326,8 @@ public RetryAction shouldRetry(Exception e, int curRetry, int failovers,
       //calculate sleep time and return.
       final double ratio = RANDOM.get().nextDouble() + 0.5;//0.5 <= ratio <=1.5
       final long sleepTime = Math.round(p.sleepMillis * ratio);
-      return new RetryAction(RetryAction.RetryDecision.RETRY, sleepTime);
+      return new RetryAction(RetryAction.RetryDecision.RETRY,
+          Math.max(sleepTime, getRetryAfterMillis(e)));
     }
 
     /**
@@ -580,7 +584,8 @@ public RetryAction shouldRetry(Exception e, int retries,
           || getWrappedRetriableException(e) != null) {
         // RetriableException or RetriableException wrapped 
         return new RetryAction(RetryAction.RetryDecision.RETRY,
-              getFailoverOrRetrySleepTime(retries));
+              Math.max(getFailoverOrRetrySleepTime(retries),
+                  getRetryAfterMillis(e)));
       } else if (e instanceof SocketException
           || (e instanceof IOException && !(e instanceof RemoteException))) {
         if (isIdempotentOrAtMostOnce) {
@@ -631,8 +636,26 @@ private static RetriableException getWrappedRetriableException(Exception e) {
       return null;
     }
     Exception unwrapped = ((RemoteException)e).unwrapRemoteException(
-        RetriableException.class);
+        RetriableException.class, ServerTooBusyException.class);
     return unwrapped instanceof RetriableException ? 
         (RetriableException) unwrapped : null;
   }
+
+  /**
+   * @return the time a server which was too busy for the call asked the
+   *         client to back off for, plus 0%-50% chosen randomly so that the
+   *         clients do not return at once, or 0 if it did not ask
+   */
+  private static long getRetryAfterMillis(Exception e) {
+    Exception busy = e;
+    if (e instanceof RemoteException) {
+      busy = ((RemoteException)e).unwrapRemoteException(
+          ServerTooBusyException.class);
+    }
+    if (!(busy instanceof ServerTooBusyException)) {
+      return 0;
+    }
+    final long retryAfter = ((ServerTooBusyException)busy).getRetryAfterMillis();
+    return (long) (retryAfter * (RANDOM.get().nextDouble() / 2 + 1));
+  }
 }
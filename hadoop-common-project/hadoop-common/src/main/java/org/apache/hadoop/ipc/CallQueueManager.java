@@ -98,6 +98,14 @@ public void put(E e) throws InterruptedException {
     putRef.get().put(e);
   }
 
+  /**
+   * Insert e into the backing queue if it has room.
+   * @return true if e was inserted
+   */
+  public boolean offer(E e) {
+    return putRef.get().offer(e);
+  }
+
   /**
    * Retrieve an E from the backing queue or block until we can.
    * Guaranteed to return an element from the current queue.
@@ -116,6 +124,29 @@ public int size() {
     return takeRef.get().size();
   }
 
+  /**
+   * Account the cost of a processed call with the scheduler of the active
+   * queue, if the queue schedules calls by their cost.
+   */
+  public void addProcessingTime(E e, long processingNanos,
+      long lockHoldNanos) {
+    final RpcScheduler scheduler = getScheduler(takeRef.get());
+    if (scheduler instanceof CostBasedRpcScheduler
+        && e instanceof Schedulable) {
+      ((CostBasedRpcScheduler) scheduler).addProcessingTime((Schedulable) e,
+          processingNanos, lockHoldNanos);
+    }
+  }
+
+  private static RpcScheduler getScheduler(BlockingQueue<?> q) {
+    if (q instanceof FairCallQueue) {
+      return ((FairCallQueue<?>) q).getScheduler();
+    } else if (q instanceof ShardedCallQueue) {
+      return ((ShardedCallQueue<?>) q).getScheduler();
+    }
+    return null;
+  }
+
   /**
    * Replaces active queue with the newly requested one and transfers
    * all calls to the newQ before returning.
@@ -92,6 +92,8 @@
 import org.htrace.Trace;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.CodedOutputStream;
@@ -111,6 +113,35 @@ public class Client {
 
   private static final ThreadLocal<Integer> callId = new ThreadLocal<Integer>();
   private static final ThreadLocal<Integer> retryCount = new ThreadLocal<Integer>();
+  private static final ThreadLocal<Boolean> asynchronousMode =
+      new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+          return false;
+        }
+      };
+
+  /**
+   * Set whether the RPC engines make the calls of this thread asynchronously.
+   * In asynchronous mode a call returns as soon as its request is sent, and
+   * the engine provides a future for the response instead. Only proxies of
+   * ProtobufRpcEngine support asynchronous mode; calls through other
+   * proxies, including retrying proxies, fail.
+   *
+   * @see ProtobufRpcEngine#getAsyncReturnMessage()
+   */
+  @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce", "YARN"})
+  @InterfaceStability.Unstable
+  public static void setAsynchronousMode(boolean async) {
+    asynchronousMode.set(async);
+  }
+
+  /** @return true if the calls of this thread are made asynchronously. */
+  @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce", "YARN"})
+  @InterfaceStability.Unstable
+  public static boolean isAsynchronousMode() {
+    return asynchronousMode.get();
+  }
 
   /** Set call id and retry count for the next call. */
   public static void setCallIdAndRetryCount(int cid, int rc) {
@@ -310,6 +341,11 @@ static class Call {
     IOException error;          // exception, null if success
     final RPC.RpcKind rpcKind;      // Rpc EngineKind
     boolean done;               // true when call is done
+    /** Completed with the call if it is asynchronous, otherwise null. */
+    private SettableFuture<Writable> future;
+    private InetSocketAddress address; // server address of an async call
+    /** The user to run the call as if not the user of the connection. */
+    private String effectiveUser;
 
     private Call(RPC.RpcKind rpcKind, Writable param) {
       this.rpcKind = rpcKind;
@@ -332,10 +368,39 @@ private Call(RPC.RpcKind rpcKind, Writable param) {
     }
 
     /** Indicate when the call is complete and the
-     * value or error are available.  Notifies by default.  */
-    protected synchronized void callComplete() {
-      this.done = true;
-      notify();                                 // notify caller
+     * value or error are available.  Notifies by default.
+     * Must not be invoked while holding the monitor of the call, since the
+     * listeners of an asynchronous call run when its future is completed. */
+    protected void callComplete() {
+      final SettableFuture<Writable> f;
+      final IOException e;
+      final Writable response;
+      final InetSocketAddress addr;
+      synchronized (this) {
+        this.done = true;
+        notify();                               // notify caller
+        f = future;
+        e = error;
+        response = rpcResponse;
+        addr = address;
+      }
+      if (f != null) {
+        if (e != null) {
+          f.setException(wrapException(addr, e));
+        } else {
+          f.set(response);
+        }
+      }
+    }
+
+    /**
+     * Complete the given future instead of notifying a waiting caller.
+     * @param address the server address to report in local exceptions
+     */
+    synchronized void setFuture(SettableFuture<Writable> future,
+        InetSocketAddress address) {
+      this.future = future;
+      this.address = address;
     }
 
     /** Set the exception when there is an error.
@@ -343,8 +408,10 @@ protected synchronized void callComplete() {
      * 
      * @param error exception thrown by the call; either local or remote
      */
-    public synchronized void setException(IOException error) {
-      this.error = error;
+    public void setException(IOException error) {
+      synchronized (this) {
+        this.error = error;
+      }
       callComplete();
     }
     
@@ -353,8 +420,10 @@ public synchronized void setException(IOException error) {
      * 
      * @param rpcResponse return value of the rpc call.
      */
-    public synchronized void setRpcResponse(Writable rpcResponse) {
-      this.rpcResponse = rpcResponse;
+    public void setRpcResponse(Writable rpcResponse) {
+      synchronized (this) {
+        this.rpcResponse = rpcResponse;
+      }
       callComplete();
     }
     
@@ -373,6 +442,8 @@ private class Connection extends Thread {
     private AuthProtocol authProtocol;
     private int serviceClass;
     private SaslRpcClient saslRpcClient;
+    // the server runs calls as the effective user of their header
+    private boolean effectiveUserSupported;
     
     private Socket socket = null;                 // connected socket
     private DataInputStream in;
@@ -430,9 +501,12 @@ public Connection(ConnectionId remoteId, int serviceClass) throws IOException {
 
       UserGroupInformation ticket = remoteId.getTicket();
       // try SASL if security is enabled or if the ugi contains tokens.
-      // this causes a SIMPLE client with tokens to attempt SASL
+      // this causes a SIMPLE client with tokens to attempt SASL. a client
+      // which multiplexes proxy users also needs the negotiation to learn
+      // whether the server supports the effective users of calls
       boolean trySasl = UserGroupInformation.isSecurityEnabled() ||
-                        (ticket != null && !ticket.getTokens().isEmpty());
+                        (ticket != null && !ticket.getTokens().isEmpty()) ||
+                        remoteId.getMultiplexProxyUsers();
       this.authProtocol = trySasl ? AuthProtocol.SASL : AuthProtocol.NONE;
       
       this.setName("IPC Client (" + socketFactory.hashCode() +") connection to " +
@@ -461,6 +535,16 @@ private synchronized boolean addCall(Call call) {
       return true;
     }
 
+    /**
+     * Remove a call which was added to this connection but not sent.
+     * @param call to remove
+     * @return true if the call was removed, false if the connection has
+     *         already completed it with an error
+     */
+    private boolean removeCall(Call call) {
+      return calls.remove(call.id) != null;
+    }
+
     /** This class sends a ping to the remote side when timeout on
      * reading. If no failure is detected, it retries until at least
      * a byte is read.
@@ -732,6 +816,7 @@ public AuthMethod run()
                   rand, ticket);
               continue;
             }
+            effectiveUserSupported = saslRpcClient.isEffectiveUserSupported();
             if (authMethod != AuthMethod.SIMPLE) {
               // Sasl connect is successful. Let's set up Sasl i/o streams.
               inStream = saslRpcClient.getInputStream(inStream);
@@ -1007,7 +1092,7 @@ public void sendRpcRequest(final Call call)
       final DataOutputBuffer d = new DataOutputBuffer();
       RpcRequestHeaderProto header = ProtoUtil.makeRpcRequestHeader(
           call.rpcKind, OperationProto.RPC_FINAL_PACKET, call.id, call.retry,
-          clientId);
+          clientId, call.effectiveUser);
       header.writeDelimitedTo(d);
       call.rpcRequest.write(d);
 
@@ -1435,7 +1520,14 @@ public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
   public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
       ConnectionId remoteId, int serviceClass,
       AtomicBoolean fallbackToSimpleAuth) throws IOException {
+    if (isAsynchronousMode()) {
+      // the caller expects a future, which only ProtobufRpcEngine provides
+      throw new IOException("Synchronous " + rpcKind + " call to "
+          + remoteId + " in asynchronous mode; only proxies of "
+          + "ProtobufRpcEngine support asynchronous calls");
+    }
     final Call call = createCall(rpcKind, rpcRequest);
+    call.effectiveUser = remoteId.getEffectiveUser();
     Connection connection = getConnection(remoteId, call, serviceClass,
       fallbackToSimpleAuth);
     try {
@@ -1465,23 +1557,78 @@ public Writable call(RPC.RpcKind rpcKind, Writable rpcRequest,
       }
 
       if (call.error != null) {
-        if (call.error instanceof RemoteException) {
-          call.error.fillInStackTrace();
-          throw call.error;
-        } else { // local exception
-          InetSocketAddress address = connection.getRemoteAddress();
-          throw NetUtils.wrapException(address.getHostName(),
-                  address.getPort(),
-                  NetUtils.getHostname(),
-                  0,
-                  call.error);
-        }
+        throw wrapException(connection.getRemoteAddress(), call.error);
       } else {
         return call.getRpcResponse();
       }
     }
   }
 
+  /**
+   * Make a call like {@link #call(RPC.RpcKind, Writable, ConnectionId,
+   * AtomicBoolean)}, but return as soon as the request has been sent instead
+   * of waiting for the response.
+   *
+   * @return a future for the rpc response. It fails with the same exceptions
+   *         the synchronous call would throw. Its listeners run on the thread
+   *         which receives the response, so they should not block.
+   * @throws IOException if the request could not be sent
+   */
+  public ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+      Writable rpcRequest, ConnectionId remoteId,
+      AtomicBoolean fallbackToSimpleAuth) throws IOException {
+    return callAsync(rpcKind, rpcRequest, remoteId,
+        RPC.RPC_SERVICE_CLASS_DEFAULT, fallbackToSimpleAuth);
+  }
+
+  /**
+   * Make a call like {@link #call(RPC.RpcKind, Writable, ConnectionId, int,
+   * AtomicBoolean)}, but return as soon as the request has been sent instead
+   * of waiting for the response.
+   *
+   * @return a future for the rpc response
+   * @throws IOException if the request could not be sent
+   */
+  public ListenableFuture<Writable> callAsync(RPC.RpcKind rpcKind,
+      Writable rpcRequest, ConnectionId remoteId, int serviceClass,
+      AtomicBoolean fallbackToSimpleAuth) throws IOException {
+    final SettableFuture<Writable> future = SettableFuture.create();
+    final Call call = createCall(rpcKind, rpcRequest);
+    call.effectiveUser = remoteId.getEffectiveUser();
+    // set before the connection may fail the call
+    call.setFuture(future, remoteId.getAddress());
+    Connection connection = getConnection(remoteId, call, serviceClass,
+      fallbackToSimpleAuth);
+    try {
+      connection.sendRpcRequest(call);                 // send the rpc request
+    } catch (RejectedExecutionException e) {
+      throw new IOException("connection has been closed", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.warn("interrupted waiting to send rpc request to server", e);
+      throw new IOException(e);
+    }
+    return future;
+  }
+
+  /**
+   * @return the exception to report to the caller for an error of a call
+   *         made to the given address
+   */
+  private static IOException wrapException(InetSocketAddress address,
+      IOException error) {
+    if (error instanceof RemoteException) {
+      error.fillInStackTrace();
+      return error;
+    } else { // local exception
+      return NetUtils.wrapException(address.getHostName(),
+              address.getPort(),
+              NetUtils.getHostname(),
+              0,
+              error);
+    }
+  }
+
   // for unit testing only
   @InterfaceAudience.Private
   @InterfaceStability.Unstable
@@ -1520,12 +1667,27 @@ private Connection getConnection(ConnectionId remoteId,
     //it will take longer to establish a connection and that will slow the
     //entire system down.
     connection.setupIOstreams(fallbackToSimpleAuth);
+    if (call.effectiveUser != null && !connection.effectiveUserSupported
+        && connection.removeCall(call)) {
+      // the server did not advertise during the connection setup that it
+      // runs calls as their effective user, so it would run the call as the
+      // real user; send it over a connection of the proxy user instead
+      call.effectiveUser = null;
+      return getConnection(remoteId.getProxyUserConnectionId(), call,
+          serviceClass, fallbackToSimpleAuth);
+    }
     return connection;
   }
   
   /**
    * This class holds the address and the user ticket. The client connections
    * to servers are uniquely identified by <remoteAddress, protocol, ticket>
+   *
+   * If the calls of a proxy user are multiplexed over the connection of its
+   * real user, the ticket is the real user and the proxy user is the
+   * effective user of the calls, which does not identify the connection.
+   * The calls fall back to the connection of the proxy user if the server
+   * does not advertise support for effective users.
    */
   @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce"})
   @InterfaceStability.Evolving
@@ -1546,13 +1708,28 @@ public static class ConnectionId {
     private final int pingInterval; // how often sends ping to the server in msecs
     private String saslQop; // here for testing
     private final Configuration conf; // used to get the expected kerberos principal name
+    private final boolean multiplexProxyUsers;
+    // the connection of the proxy user whose calls are multiplexed, if any
+    private final ConnectionId proxyUserConnectionId;
+    private final String effectiveUser; // the user of the calls, if not ticket
     
     ConnectionId(InetSocketAddress address, Class<?> protocol, 
                  UserGroupInformation ticket, int rpcTimeout,
                  RetryPolicy connectionRetryPolicy, Configuration conf) {
+      this(address, protocol, ticket, rpcTimeout, connectionRetryPolicy, conf,
+          null);
+    }
+
+    private ConnectionId(InetSocketAddress address, Class<?> protocol,
+        UserGroupInformation ticket, int rpcTimeout,
+        RetryPolicy connectionRetryPolicy, Configuration conf,
+        ConnectionId proxyUserConnectionId) {
       this.protocol = protocol;
       this.address = address;
       this.ticket = ticket;
+      this.proxyUserConnectionId = proxyUserConnectionId;
+      this.effectiveUser = proxyUserConnectionId == null ? null
+          : proxyUserConnectionId.getTicket().getUserName();
       this.rpcTimeout = rpcTimeout;
       this.connectionRetryPolicy = connectionRetryPolicy;
 
@@ -1572,6 +1749,9 @@ public static class ConnectionId {
           CommonConfigurationKeys.IPC_CLIENT_PING_KEY,
           CommonConfigurationKeys.IPC_CLIENT_PING_DEFAULT);
       this.pingInterval = (doPing ? Client.getPingInterval(conf) : 0);
+      this.multiplexProxyUsers = conf.getBoolean(
+          CommonConfigurationKeys.IPC_CLIENT_MULTIPLEX_PROXY_USERS_KEY,
+          CommonConfigurationKeys.IPC_CLIENT_MULTIPLEX_PROXY_USERS_DEFAULT);
       this.conf = conf;
     }
     
@@ -1586,6 +1766,26 @@ Class<?> getProtocol() {
     UserGroupInformation getTicket() {
       return ticket;
     }
+
+    /**
+     * @return the user to run the calls as, or null to run them as the user
+     *         of the connection
+     */
+    String getEffectiveUser() {
+      return effectiveUser;
+    }
+
+    /**
+     * @return the connection of the proxy user if the calls of the proxy
+     *         user are multiplexed over this connection, otherwise null
+     */
+    ConnectionId getProxyUserConnectionId() {
+      return proxyUserConnectionId;
+    }
+
+    boolean getMultiplexProxyUsers() {
+      return multiplexProxyUsers;
+    }
     
     private int getRpcTimeout() {
       return rpcTimeout;
@@ -1654,8 +1854,16 @@ static ConnectionId getConnectionId(InetSocketAddress addr,
             max, retryInterval, TimeUnit.MILLISECONDS);
       }
 
-      return new ConnectionId(addr, protocol, ticket, rpcTimeout,
-          connectionRetryPolicy, conf);
+      final ConnectionId remoteId = new ConnectionId(addr, protocol, ticket,
+          rpcTimeout, connectionRetryPolicy, conf);
+      if (ticket != null && ticket.getRealUser() != null
+          && ticket.getTokens().isEmpty() && remoteId.multiplexProxyUsers) {
+        // share the connection of the real user, which authenticates with
+        // its own credentials anyway
+        return new ConnectionId(addr, protocol, ticket.getRealUser(),
+            rpcTimeout, connectionRetryPolicy, conf, remoteId);
+      }
+      return remoteId;
     }
     
     static boolean isEqual(Object a, Object b) {
@@ -0,0 +1,36 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+/**
+ * Implement this interface in addition to {@link RpcScheduler} for the
+ * scheduler to be told the cost of each call once it has been processed.
+ */
+public interface CostBasedRpcScheduler extends RpcScheduler {
+  /**
+   * Account the cost of a call which has been processed.
+   * @param obj the processed call
+   * @param processingNanos the time spent processing the call, excluding
+   *                        the time spent waiting for locks
+   * @param lockHoldNanos the part of the processing time for which the call
+   *                      held a lock excluding all other calls
+   */
+  void addProcessingTime(Schedulable obj, long processingNanos,
+      long lockHoldNanos);
+}
@@ -45,7 +45,8 @@
  * for large periods (on the order of seconds), as it offloads work to the
  * decay sweep.
  */
-public class DecayRpcScheduler implements RpcScheduler, DecayRpcSchedulerMXBean {
+public class DecayRpcScheduler implements CostBasedRpcScheduler,
+    DecayRpcSchedulerMXBean {
   /**
    * Period controls how many milliseconds between each decay sweep.
    */
@@ -77,6 +78,27 @@ public class DecayRpcScheduler implements RpcScheduler, DecayRpcSchedulerMXBean
   public static final String IPC_CALLQUEUE_DECAYSCHEDULER_THRESHOLDS_KEY =
     "faircallqueue.decay-scheduler.thresholds";
 
+  /**
+   * Cost based scheduling weighs each identity by the time spent processing
+   * its calls instead of by the number of its calls, so that an identity
+   * issuing few expensive calls is not favored over one issuing many cheap
+   * calls. The cost of a call is measured in microseconds.
+   */
+  public static final String IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_KEY =
+    "faircallqueue.decay-scheduler.cost-based";
+  public static final boolean
+    IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_DEFAULT = false;
+
+  /**
+   * With cost based scheduling, time spent holding a lock which excludes all
+   * other calls also delays every other identity, so it is weighed by this
+   * factor relative to the rest of the processing time.
+   */
+  public static final String IPC_CALLQUEUE_DECAYSCHEDULER_LOCK_WEIGHT_KEY =
+    "faircallqueue.decay-scheduler.lock-hold-weight";
+  public static final int    IPC_CALLQUEUE_DECAYSCHEDULER_LOCK_WEIGHT_DEFAULT =
+    10;
+
   // Specifies the identity to use when the IdentityProvider cannot handle
   // a schedulable.
   public static final String DECAYSCHEDULER_UNKNOWN_IDENTITY =
@@ -84,7 +106,7 @@ public class DecayRpcScheduler implements RpcScheduler, DecayRpcSchedulerMXBean
 
   public static final Log LOG = LogFactory.getLog(DecayRpcScheduler.class);
 
-  // Track the number of calls for each schedulable identity
+  // Track the number of calls, or their cost, for each schedulable identity
   private final ConcurrentHashMap<Object, AtomicLong> callCounts =
     new ConcurrentHashMap<Object, AtomicLong>();
 
@@ -102,6 +124,8 @@ public class DecayRpcScheduler implements RpcScheduler, DecayRpcSchedulerMXBean
   private final int numQueues; // affects scheduling decisions, from 0 to numQueues - 1
   private final double[] thresholds;
   private final IdentityProvider identityProvider;
+  private final boolean costBased;
+  private final int lockHoldWeight;
 
   /**
    * This TimerTask will call decayCurrentCounts until
@@ -147,6 +171,15 @@ public DecayRpcScheduler(int numQueues, String ns, Configuration conf) {
     this.decayPeriodMillis = parseDecayPeriodMillis(ns, conf);
     this.identityProvider = this.parseIdentityProvider(ns, conf);
     this.thresholds = parseThresholds(ns, conf, numQueues);
+    this.costBased = conf.getBoolean(ns + "." +
+        IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_KEY,
+      IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_DEFAULT);
+    this.lockHoldWeight = conf.getInt(ns + "." +
+        IPC_CALLQUEUE_DECAYSCHEDULER_LOCK_WEIGHT_KEY,
+      IPC_CALLQUEUE_DECAYSCHEDULER_LOCK_WEIGHT_DEFAULT);
+    if (lockHoldWeight < 1) {
+      throw new IllegalArgumentException("Lock hold weight must be >= 1");
+    }
 
     // Setup delay timer
     Timer timer = new Timer();
@@ -294,11 +327,13 @@ private void recomputeScheduleCache() {
   }
 
   /**
-   * Get the number of occurrences and increment atomically.
-   * @param identity the identity of the user to increment
-   * @return the value before incrementation
+   * Get the number of occurrences and add to it atomically.
+   * @param identity the identity of the user to add to
+   * @param delta the number of occurrences, or the cost, to add
+   * @return the value before the addition
    */
-  private long getAndIncrement(Object identity) throws InterruptedException {
+  private long getAndAdd(Object identity, long delta)
+      throws InterruptedException {
     // We will increment the count, or create it if no such count exists
     AtomicLong count = this.callCounts.get(identity);
     if (count == null) {
@@ -313,12 +348,12 @@ private long getAndIncrement(Object identity) throws InterruptedException {
     }
 
     // Update the total
-    totalCalls.getAndIncrement();
+    totalCalls.getAndAdd(delta);
 
     // At this point value is guaranteed to be not null. It may however have
     // been clobbered from callCounts. Nonetheless, we return what
     // we have.
-    return count.getAndIncrement();
+    return count.getAndAdd(delta);
   }
 
   /**
@@ -353,7 +388,9 @@ private int computePriorityLevel(long occurrences) {
    */
   private int cachedOrComputedPriorityLevel(Object identity) {
     try {
-      long occurrences = this.getAndIncrement(identity);
+      // With cost based scheduling the cost is only known once the call
+      // has been processed
+      long occurrences = this.getAndAdd(identity, costBased ? 0 : 1);
 
       // Try the cache
       Map<Object, Integer> scheduleCache = scheduleCacheRef.get();
@@ -389,13 +426,32 @@ public int getPriorityLevel(Schedulable obj) {
     return cachedOrComputedPriorityLevel(identity);
   }
 
-  // For testing
-  @VisibleForTesting
-  public double getDecayFactor() { return decayFactor; }
+  /**
+   * With cost based scheduling, add the cost of the processed call to its
+   * identity.
+   */
+  @Override
+  public void addProcessingTime(Schedulable obj, long processingNanos,
+      long lockHoldNanos) {
+    if (!costBased) {
+      return;
+    }
+    String identity = this.identityProvider.makeIdentity(obj);
+    if (identity == null) {
+      identity = DECAYSCHEDULER_UNKNOWN_IDENTITY;
+    }
 
-  @VisibleForTesting
-  public long getDecayPeriodMillis() { return decayPeriodMillis; }
+    final long costNanos = Math.max(processingNanos - lockHoldNanos, 0)
+        + lockHoldWeight * lockHoldNanos;
+    try {
+      // every call costs at least one, so cheap calls still add up
+      getAndAdd(identity, Math.max(costNanos / 1000, 1));
+    } catch (InterruptedException ie) {
+      LOG.warn("Caught InterruptedException, not accounting the cost");
+    }
+  }
 
+  // For testing
   @VisibleForTesting
   public double[] getThresholds() { return thresholds; }
 
@@ -487,6 +543,42 @@ public long getTotalCallVolume() {
         return scheduler.getTotalCallVolume();
       }
     }
+
+    @Override
+    public boolean isCostBased() {
+      DecayRpcScheduler scheduler = delegate.get();
+      return scheduler != null && scheduler.isCostBased();
+    }
+
+    @Override
+    public double getDecayFactor() {
+      DecayRpcScheduler scheduler = delegate.get();
+      if (scheduler == null) {
+        return -1;
+      } else {
+        return scheduler.getDecayFactor();
+      }
+    }
+
+    @Override
+    public long getDecayPeriodMillis() {
+      DecayRpcScheduler scheduler = delegate.get();
+      if (scheduler == null) {
+        return -1;
+      } else {
+        return scheduler.getDecayPeriodMillis();
+      }
+    }
+
+    @Override
+    public int[] getPriorityLevelSizes() {
+      DecayRpcScheduler scheduler = delegate.get();
+      if (scheduler == null) {
+        return new int[]{};
+      } else {
+        return scheduler.getPriorityLevelSizes();
+      }
+    }
   }
 
   public int getUniqueIdentityCount() {
@@ -497,6 +589,29 @@ public long getTotalCallVolume() {
     return totalCalls.get();
   }
 
+  public boolean isCostBased() {
+    return costBased;
+  }
+
+  public double getDecayFactor() {
+    return decayFactor;
+  }
+
+  public long getDecayPeriodMillis() {
+    return decayPeriodMillis;
+  }
+
+  public int[] getPriorityLevelSizes() {
+    int[] sizes = new int[numQueues];
+    Map<Object, Integer> decisions = scheduleCacheRef.get();
+    if (decisions != null) {
+      for (Integer level : decisions.values()) {
+        sizes[level]++;
+      }
+    }
+    return sizes;
+  }
+
   public String getSchedulingDecisionSummary() {
     Map<Object, Integer> decisions = scheduleCacheRef.get();
     if (decisions == null) {
@@ -27,4 +27,10 @@ public interface DecayRpcSchedulerMXBean {
   String getCallVolumeSummary();
   int getUniqueIdentityCount();
   long getTotalCallVolume();
+  // Whether the call volume is the cost rather than the number of calls.
+  boolean isCostBased();
+  double getDecayFactor();
+  long getDecayPeriodMillis();
+  // The number of identities scheduled at each priority level.
+  int[] getPriorityLevelSizes();
 }
\ No newline at end of file
@@ -436,6 +436,10 @@ public long[] getOverflowedCalls() {
     return calls;
   }
 
+  RpcScheduler getScheduler() {
+    return scheduler;
+  }
+
   // For testing
   @VisibleForTesting
   public void setScheduler(RpcScheduler newScheduler) {
@@ -54,6 +54,10 @@
 import org.htrace.TraceScope;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.BlockingService;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Descriptors.MethodDescriptor;
@@ -77,6 +81,28 @@ public class ProtobufRpcEngine implements RpcEngine {
 
   private static final ClientCache CLIENTS = new ClientCache();
 
+  private static final ThreadLocal<ListenableFuture<Message>>
+      asyncReturnMessage = new ThreadLocal<ListenableFuture<Message>>();
+
+  /**
+   * Get the response of the last call which this thread made through a
+   * protobuf proxy in {@link Client#setAsynchronousMode(boolean)
+   * asynchronous mode}, in which the proxy method itself returns null.
+   *
+   * @return a future for the response, or null if there was no such call.
+   *         The future fails with a ServiceException wrapping the cause, as
+   *         the synchronous call would throw.
+   */
+  @SuppressWarnings("unchecked")
+  @InterfaceAudience.LimitedPrivate({"HDFS", "MapReduce", "YARN"})
+  @InterfaceStability.Unstable
+  public static <T extends Message> ListenableFuture<T> getAsyncReturnMessage() {
+    final ListenableFuture<? extends Message> returnMessage =
+        asyncReturnMessage.get();
+    asyncReturnMessage.remove();
+    return (ListenableFuture<T>) returnMessage;
+  }
+
   public <T> ProtocolProxy<T> getProxy(Class<T> protocol, long clientVersion,
       InetSocketAddress addr, UserGroupInformation ticket, Configuration conf,
       SocketFactory factory, int rpcTimeout) throws IOException {
@@ -227,6 +253,14 @@ public Object invoke(Object proxy, Method method, Object[] args)
 
 
       Message theRequest = (Message) args[1];
+      if (Client.isAsynchronousMode()) {
+        try {
+          invokeAsync(method, rpcRequestHeader, theRequest);
+        } finally {
+          if (traceScope != null) traceScope.close();
+        }
+        return null;
+      }
       final RpcResponseWrapper val;
       try {
         val = (RpcResponseWrapper) client.call(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
@@ -252,7 +286,57 @@ public Object invoke(Object proxy, Method method, Object[] args)
         long callTime = Time.now() - startTime;
         LOG.debug("Call: " + method.getName() + " took " + callTime + "ms");
       }
-      
+      return getReturnMessage(method, val);
+    }
+
+    /**
+     * Send the request without waiting for the response, and make a future
+     * for the response available through {@link #getAsyncReturnMessage()}.
+     */
+    private void invokeAsync(final Method method,
+        RequestHeaderProto rpcRequestHeader, Message theRequest)
+        throws ServiceException {
+      final ListenableFuture<Writable> response;
+      try {
+        response = client.callAsync(RPC.RpcKind.RPC_PROTOCOL_BUFFER,
+            new RpcRequestWrapper(rpcRequestHeader, theRequest), remoteId,
+            fallbackToSimpleAuth);
+      } catch (Throwable e) {
+        if (LOG.isTraceEnabled()) {
+          LOG.trace(Thread.currentThread().getId() + ": Exception <- " +
+              remoteId + ": " + method.getName() +
+                " {" + e + "}");
+        }
+        throw new ServiceException(e);
+      }
+
+      final SettableFuture<Message> returnMessage = SettableFuture.create();
+      Futures.addCallback(response, new FutureCallback<Writable>() {
+        @Override
+        public void onSuccess(Writable result) {
+          try {
+            returnMessage.set(
+                getReturnMessage(method, (RpcResponseWrapper) result));
+          } catch (ServiceException e) {
+            returnMessage.setException(e);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          if (LOG.isTraceEnabled()) {
+            LOG.trace("Exception <- " + remoteId + ": " + method.getName() +
+                " {" + t + "}");
+          }
+          returnMessage.setException(new ServiceException(t));
+        }
+      });
+      asyncReturnMessage.set(returnMessage);
+    }
+
+    /** Parse the response of a call to the given method. */
+    private Message getReturnMessage(Method method, RpcResponseWrapper val)
+        throws ServiceException {
       Message prototype = null;
       try {
         prototype = getReturnProtoType(method);
@@ -379,7 +463,8 @@ public int getLength() {
     }
   }
   
-  private static class RpcRequestWrapper
+  @VisibleForTesting
+  static class RpcRequestWrapper
   extends RpcMessageWithHeader<RequestHeaderProto> {
     @SuppressWarnings("unused")
     public RpcRequestWrapper() {}
@@ -640,6 +725,8 @@ public Writable call(RPC.Server server, String protocol,
           server.rpcMetrics.addRpcProcessingTime(processingTime);
           server.rpcDetailedMetrics.addProcessingTime(detailedMetricsName,
               processingTime);
+          server.rpcDetailedMetrics.addLatencies(detailedMetricsName, qTime,
+              (int) (Server.getLockWaitTime() / 1000000L), processingTime);
         }
         return new RpcResponseWrapper(result);
       }
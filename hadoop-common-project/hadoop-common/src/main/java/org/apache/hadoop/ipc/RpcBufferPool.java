@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.ipc.metrics.RpcMetrics;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * A pool of byte buffers which the {@link Server} reads requests into and
+ * writes responses from, so that serving a call does not allocate buffers
+ * of its size in the common case.
+ *
+ * Buffers are pooled by size classes of powers of two. A buffer larger than
+ * {@link #MAX_POOLED_BUFFER_SIZE} is neither pooled nor taken from the pool,
+ * and each size class retains at most {@link #MAX_POOLED_BYTES_PER_SIZE}
+ * bytes of free buffers. Buffers which are never returned to the pool are
+ * simply garbage collected.
+ *
+ * This class is thread safe.
+ */
+@InterfaceAudience.Private
+class RpcBufferPool {
+  static final int MIN_BUFFER_SIZE = 1024;
+  static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+  static final int MAX_POOLED_BYTES_PER_SIZE = 8 * 1024 * 1024;
+
+  private static final int MIN_SHIFT =
+      Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+
+  private final boolean direct;
+  private final RpcMetrics metrics;
+  /** The free buffers of each size class. */
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+  /** The number of free buffers of each size class. */
+  private final AtomicInteger[] numFree;
+
+  /**
+   * @param direct whether to allocate direct buffers
+   * @param metrics the metrics to report allocations to, or null
+   */
+  RpcBufferPool(boolean direct, RpcMetrics metrics) {
+    this.direct = direct;
+    this.metrics = metrics;
+    final int numSizes = sizeClass(MAX_POOLED_BUFFER_SIZE) + 1;
+    this.free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(numSizes);
+    this.numFree = new AtomicInteger[numSizes];
+    for (int i = 0; i < numSizes; i++) {
+      free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+      numFree[i] = new AtomicInteger();
+    }
+  }
+
+  boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * @return a buffer with its position at zero and its limit at the given
+   *         length; it may have a larger capacity.
+   */
+  ByteBuffer getBuffer(int length) {
+    if (length > MAX_POOLED_BUFFER_SIZE) {
+      return allocate(length);
+    }
+    final int sizeClass = sizeClass(length);
+    ByteBuffer buffer = free.get(sizeClass).poll();
+    if (buffer != null) {
+      numFree[sizeClass].decrementAndGet();
+      if (metrics != null) {
+        metrics.incrBufferReuses();
+      }
+    } else {
+      buffer = allocate(MIN_BUFFER_SIZE << sizeClass);
+    }
+    buffer.clear();
+    buffer.limit(length);
+    return buffer;
+  }
+
+  /**
+   * Return a buffer from {@link #getBuffer(int)} to the pool. The caller
+   * must not use the buffer afterwards.
+   */
+  void putBuffer(ByteBuffer buffer) {
+    final int capacity = buffer.capacity();
+    if (capacity > MAX_POOLED_BUFFER_SIZE || buffer.isDirect() != direct
+        || Integer.bitCount(capacity) != 1 || capacity < MIN_BUFFER_SIZE) {
+      return;
+    }
+    final int sizeClass = sizeClass(capacity);
+    if (numFree[sizeClass].incrementAndGet() * capacity
+        > MAX_POOLED_BYTES_PER_SIZE) {
+      numFree[sizeClass].decrementAndGet();
+      return;
+    }
+    free.get(sizeClass).offer(buffer);
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    if (metrics != null) {
+      metrics.incrBufferAllocations(capacity);
+    }
+    return direct ? ByteBuffer.allocateDirect(capacity)
+        : ByteBuffer.allocate(capacity);
+  }
+
+  /** @return the index of the smallest size class holding the length. */
+  private static int sizeClass(int length) {
+    if (length <= MIN_BUFFER_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+  }
+
+  @VisibleForTesting
+  int getNumFree() {
+    int n = 0;
+    for (AtomicInteger i : numFree) {
+      n += i.get();
+    }
+    return n;
+  }
+}
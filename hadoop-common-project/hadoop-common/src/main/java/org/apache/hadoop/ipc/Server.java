@@ -28,6 +28,7 @@
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.BindException;
 import java.net.InetAddress;
@@ -122,6 +123,7 @@
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
 import com.google.protobuf.Message.Builder;
@@ -341,10 +343,45 @@ public static String getRemoteAddress() {
    */
   public static UserGroupInformation getRemoteUser() {
     Call call = CurCall.get();
-    return (call != null && call.connection != null) ? call.connection.user
-        : null;
+    return (call != null && call.connection != null) ? call.user : null;
   }
  
+  /**
+   * Account time for which the current RPC call held a lock which excluded
+   * all other calls, such as the write lock of the namesystem. The scheduler
+   * of the call queue may weigh callers by this time. Does nothing if not
+   * invoked inside an RPC.
+   * @param nanos the time the lock was held, in nanoseconds
+   */
+  public static void addLockHoldTime(long nanos) {
+    Call call = CurCall.get();
+    if (call != null) {
+      call.lockHoldNanos += nanos;
+    }
+  }
+
+  /**
+   * Account time for which the current RPC call waited to acquire a lock,
+   * such as a lock of the namesystem. The time is reported in the detailed
+   * RPC metrics of the method. Does nothing if not invoked inside an RPC.
+   * @param nanos the time waited for the lock, in nanoseconds
+   */
+  public static void addLockWaitTime(long nanos) {
+    Call call = CurCall.get();
+    if (call != null) {
+      call.lockWaitNanos += nanos;
+    }
+  }
+
+  /**
+   * @return the time the current RPC call has waited for locks, in
+   *         nanoseconds, or 0 if not invoked inside an RPC
+   */
+  static long getLockWaitTime() {
+    Call call = CurCall.get();
+    return call == null ? 0 : call.lockWaitNanos;
+  }
+
   /** Return true if the invocation was through an RPC.
    */
   public static boolean isRpcInvocation() {
@@ -359,6 +396,12 @@ public static boolean isRpcInvocation() {
   private Class<? extends Writable> rpcRequestClass;   // class used for deserializing the rpc request
   final protected RpcMetrics rpcMetrics;
   final protected RpcDetailedMetrics rpcDetailedMetrics;
+  /** Whether to reject calls instead of blocking when the queue is full. */
+  private final boolean backoffEnabled;
+  private final long backoffRetryAfterMillis;
+  /** The pools of request and response buffers, or null if not pooled. */
+  private final RpcBufferPool requestBufferPool;
+  private final RpcBufferPool responseBufferPool;
   
   private Configuration conf;
   private String portRangeConfig = null;
@@ -503,12 +546,20 @@ public static class Call implements Schedulable {
     private final int retryCount;        // the retry count of the call
     private final Writable rpcRequest;    // Serialized Rpc request from client
     private final Connection connection;  // connection to client
+    private final UserGroupInformation user; // the user to run the call as
     private long timestamp;               // time received when response is null
                                           // time served when response is not null
     private ByteBuffer rpcResponse;       // the response for this call
+    private boolean responsePooled;       // whether the response is pooled
+    private long lockHoldNanos;           // time an exclusive lock was held
+    private long lockWaitNanos;           // time spent waiting for locks
     private final RPC.RpcKind rpcKind;
     private final byte[] clientId;
     private final Span traceSpan; // the tracing span on the server side
+    // the handler holds one count until it has set up the response
+    private final AtomicInteger responseWaitCount = new AtomicInteger(1);
+    // sent instead of the response if set; published by responseWaitCount
+    private IOException responseError;
 
     public Call(int id, int retryCount, Writable param, 
         Connection connection) {
@@ -523,10 +574,18 @@ public Call(int id, int retryCount, Writable param, Connection connection,
 
     public Call(int id, int retryCount, Writable param, Connection connection,
         RPC.RpcKind kind, byte[] clientId, Span span) {
+      this(id, retryCount, param, connection, kind, clientId, span,
+          connection == null ? null : connection.user);
+    }
+
+    private Call(int id, int retryCount, Writable param, Connection connection,
+        RPC.RpcKind kind, byte[] clientId, Span span,
+        UserGroupInformation user) {
       this.callId = id;
       this.retryCount = retryCount;
       this.rpcRequest = param;
       this.connection = connection;
+      this.user = user;
       this.timestamp = Time.now();
       this.rpcResponse = null;
       this.rpcKind = kind;
@@ -542,12 +601,53 @@ public String toString() {
 
     public void setResponse(ByteBuffer response) {
       this.rpcResponse = response;
+      this.responsePooled = false;
+    }
+
+    /** Set a response taken from the response buffer pool. */
+    private void setPooledResponse(ByteBuffer response) {
+      this.rpcResponse = response;
+      this.responsePooled = true;
+    }
+
+    /**
+     * Allow the response to be postponed instead of being sent as soon as
+     * the handler returns from the call. This frees up the handler thread
+     * when the response is known, but a pre-condition, such as the edits of
+     * the call being durable, must be satisfied before it may be sent to the
+     * client. Each postponement must be matched by a {@link #sendResponse()}.
+     */
+    public void postponeResponse() {
+      int count = responseWaitCount.incrementAndGet();
+      assert count > 0 : "response has already been sent";
+    }
+
+    /**
+     * Release one postponement of the response. The response is sent once
+     * the handler and every party that postponed it have released it.
+     */
+    public void sendResponse() throws IOException {
+      int count = responseWaitCount.decrementAndGet();
+      assert count >= 0 : "response has already been sent";
+      if (count == 0) {
+        connection.sendResponse(this);
+      }
+    }
+
+    /**
+     * Release one postponement of the response like {@link #sendResponse()},
+     * but have the client fail the call with the given exception instead,
+     * because the pre-condition of the response can no longer be satisfied.
+     */
+    public void abortResponse(IOException e) throws IOException {
+      responseError = e;
+      sendResponse();
     }
 
     // For Schedulable
     @Override
     public UserGroupInformation getUserGroupInformation() {
-      return connection.user;
+      return user;
     }    
   }
 
@@ -591,6 +691,8 @@ public Listener() throws IOException {
     private class Reader extends Thread {
       final private BlockingQueue<Connection> pendingConnections;
       private final Selector readSelector;
+      // connections assigned to the reader and not yet closed
+      private final AtomicInteger numConnections = new AtomicInteger();
 
       Reader(String name) throws IOException {
         super(name);
@@ -623,7 +725,18 @@ private synchronized void doRunLoop() {
             int size = pendingConnections.size();
             for (int i=size; i>0; i--) {
               Connection conn = pendingConnections.take();
-              conn.channel.register(readSelector, SelectionKey.OP_READ, conn);
+              try {
+                // the socket is set up here rather than by the listener,
+                // which is left to do nothing but accept connections
+                conn.channel.configureBlocking(false);
+                conn.socket.setTcpNoDelay(tcpNoDelay);
+                conn.socket.setKeepAlive(true);
+                conn.channel.register(readSelector, SelectionKey.OP_READ, conn);
+              } catch (IOException ioe) {
+                LOG.info(Thread.currentThread().getName()
+                    + ": unable to set up connection from " + conn, ioe);
+                closeConnection(conn);
+              }
             }
             readSelector.select();
 
@@ -654,10 +767,21 @@ private synchronized void doRunLoop() {
        * and update its readSelector before performing the next select
        */
       public void addConnection(Connection conn) throws InterruptedException {
+        numConnections.incrementAndGet();
+        conn.reader = this;
         pendingConnections.put(conn);
         readSelector.wakeup();
       }
 
+      /** Called when a connection assigned to the reader is closed. */
+      void connectionClosed() {
+        numConnections.decrementAndGet();
+      }
+
+      int getNumConnections() {
+        return numConnections.get();
+      }
+
       void shutdown() {
         assert !running;
         readSelector.wakeup();
@@ -739,11 +863,6 @@ void doAccept(SelectionKey key) throws InterruptedException, IOException,  OutOf
       ServerSocketChannel server = (ServerSocketChannel) key.channel();
       SocketChannel channel;
       while ((channel = server.accept()) != null) {
-
-        channel.configureBlocking(false);
-        channel.socket().setTcpNoDelay(tcpNoDelay);
-        channel.socket().setKeepAlive(true);
-        
         Reader reader = getReader();
         Connection c = connectionManager.register(channel);
         key.attach(c);  // so closeCurrentConnection can get the object
@@ -801,12 +920,32 @@ synchronized void doStop() {
     }
     
     synchronized Selector getSelector() { return selector; }
-    // The method that will return the next reader to work with
-    // Simplistic implementation of round robin for now
+    // The method that will return the next reader to work with: the one
+    // with the fewest connections, so that connections made in a burst,
+    // such as after a failover, do not queue behind a busy reader. Ties
+    // are broken round robin.
     Reader getReader() {
-      currentReader = (currentReader + 1) % readers.length;
+      int chosen = currentReader;
+      int fewest = Integer.MAX_VALUE;
+      for (int i = 1; i <= readers.length; i++) {
+        final int index = (currentReader + i) % readers.length;
+        final int n = readers[index].getNumConnections();
+        if (n < fewest) {
+          chosen = index;
+          fewest = n;
+        }
+      }
+      currentReader = chosen;
       return readers[currentReader];
     }
+
+    int[] getNumReaderConnections() {
+      final int[] n = new int[readers.length];
+      for (int i = 0; i < readers.length; i++) {
+        n[i] = readers[i].getNumConnections();
+      }
+      return n;
+    }
   }
 
   // Sends responses of RPC back to clients.
@@ -975,19 +1114,19 @@ private boolean processResponse(LinkedList<Call> responseQueue,
           //
           // Send as much data as we can in the non-blocking fashion
           //
-          int numBytes = channelWrite(channel, call.rpcResponse);
+          int numBytes = numElements > 1
+              && call.rpcResponse.remaining() < NIO_BUFFER_LIMIT
+              ? gatheringWrite(channel, call, responseQueue)
+              : channelWrite(channel, call.rpcResponse);
           if (numBytes < 0) {
             return true;
           }
           if (!call.rpcResponse.hasRemaining()) {
-            //Clear out the response buffer so it can be collected
-            call.rpcResponse = null;
+            //Clear out the response buffer so it can be collected or reused
+            releaseResponse(call);
             call.connection.decRpcCount();
-            if (numElements == 1) {    // last call fully processes.
-              done = true;             // no more data for this channel.
-            } else {
-              done = false;            // more calls pending to be sent.
-            }
+            // more calls may be pending to be sent
+            done = responseQueue.isEmpty();
             if (LOG.isDebugEnabled()) {
               LOG.debug(Thread.currentThread().getName() + ": responding to " + call
                   + " Wrote " + numBytes + " bytes.");
@@ -1033,11 +1172,62 @@ private boolean processResponse(LinkedList<Call> responseQueue,
       return done;
     }
 
+    /**
+     * Write the response of the call together with the small responses
+     * queued after it in one gathering write, so that a burst of small
+     * responses does not take one system call and one segment each. The
+     * following calls which have been written completely are removed from
+     * the queue.
+     */
+    private int gatheringWrite(SocketChannel channel, Call call,
+        LinkedList<Call> responseQueue) throws IOException {
+      final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+      buffers.add(call.rpcResponse);
+      int length = call.rpcResponse.remaining();
+      for (Call next : responseQueue) {
+        if (buffers.size() == MAX_GATHERED_RESPONSES
+            || length + next.rpcResponse.remaining() > NIO_BUFFER_LIMIT) {
+          break;
+        }
+        buffers.add(next.rpcResponse);
+        length += next.rpcResponse.remaining();
+      }
+      if (buffers.size() == 1) {
+        return channelWrite(channel, call.rpcResponse);
+      }
+
+      final int count = (int) channel.write(
+          buffers.toArray(new ByteBuffer[buffers.size()]));
+      if (count > 0) {
+        rpcMetrics.incrSentBytes(count);
+      }
+      for (int i = 1; i < buffers.size(); i++) {
+        final Call next = responseQueue.getFirst();
+        if (next.rpcResponse.hasRemaining()) {
+          break;
+        }
+        responseQueue.removeFirst();
+        releaseResponse(next);
+        next.connection.decRpcCount();
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(Thread.currentThread().getName() + ": responding to "
+              + next + " gathered with " + call);
+        }
+      }
+      return count;
+    }
+
     //
     // Enqueue a response from the application.
     //
     void doRespond(Call call) throws IOException {
       synchronized (call.connection.responseQueue) {
+        // SASL enforces its own message ordering, so the response must only
+        // be wrapped right before it is queued. Wrapping it when it is set up
+        // would let postponed responses go out of order.
+        if (call.connection.useWrap) {
+          wrapWithSasl(call);
+        }
         call.connection.responseQueue.addLast(call);
         if (call.connection.responseQueue.size() == 1) {
           processResponse(call.connection.responseQueue, true);
@@ -1139,6 +1329,13 @@ public class Connection {
     private int serviceClass;
     
     UserGroupInformation user = null;
+    // the reader of the connection; set before the reader sees it
+    private volatile Listener.Reader reader;
+    /** The maximum number of authorized call users to remember. */
+    private static final int MAX_CALL_USERS = 1024;
+    /** The users which calls over the connection were authorized to run as. */
+    private final Map<String, UserGroupInformation> callUsers =
+        new HashMap<String, UserGroupInformation>();
     public UserGroupInformation attemptingUser = null; // user name before auth
 
     // Fake 'call' for failed authorization response
@@ -1200,6 +1397,17 @@ public long getLastContact() {
       return lastContact;
     }
 
+    private void sendResponse(Call call) throws IOException {
+      final IOException e = call.responseError;
+      if (e != null) {
+        releaseResponse(call);
+        setupResponse(new ByteArrayOutputStream(), call,
+            RpcStatusProto.ERROR, RpcErrorCodeProto.ERROR_RPC_SERVER, null,
+            e.getClass().getName(), e.getMessage());
+      }
+      responder.doRespond(call);
+    }
+
     /* Return true if the connection has no outstanding rpc */
     private boolean isIdle() {
       return rpcCount == 0;
@@ -1520,7 +1728,9 @@ public int readAndProcess()
           dataLengthBuffer.flip();
           dataLength = dataLengthBuffer.getInt();
           checkDataLength(dataLength);
-          data = ByteBuffer.allocate(dataLength);
+          data = requestBufferPool != null
+              ? requestBufferPool.getBuffer(dataLength)
+              : ByteBuffer.allocate(dataLength);
         }
         
         count = channelRead(channel, data);
@@ -1529,8 +1739,16 @@ public int readAndProcess()
           dataLengthBuffer.clear();
           data.flip();
           boolean isHeaderRead = connectionContextRead;
-          processOneRpc(data.array());
+          final ByteBuffer request = data;
           data = null;
+          try {
+            processOneRpc(request);
+          } finally {
+            // the call has been decoded out of the buffer
+            if (requestBufferPool != null) {
+              requestBufferPool.putBuffer(request);
+            }
+          }
           if (!isHeaderRead) {
             continue;
           }
@@ -1731,7 +1949,7 @@ private void unwrapPacketAndProcessRpcs(byte[] inBuf)
         if (unwrappedData.remaining() == 0) {
           unwrappedDataLengthBuffer.clear();
           unwrappedData.flip();
-          processOneRpc(unwrappedData.array());
+          processOneRpc(unwrappedData);
           unwrappedData = null;
         }
       }
@@ -1741,6 +1959,7 @@ private void unwrapPacketAndProcessRpcs(byte[] inBuf)
      * Process an RPC Request - handle connection setup and decoding of
      * request into a Call
      * @param buf - contains the RPC request header and the rpc request
+     *        between its position and its limit
      * @throws IOException - internal error that should not be returned to
      *         client, typically failure to respond to client
      * @throws WrappedRpcServerException - an exception to be sent back to
@@ -1748,15 +1967,22 @@ private void unwrapPacketAndProcessRpcs(byte[] inBuf)
      *         Listener thread
      * @throws InterruptedException
      */    
-    private void processOneRpc(byte[] buf)
+    private void processOneRpc(ByteBuffer buf)
         throws IOException, WrappedRpcServerException, InterruptedException {
       int callId = -1;
       int retry = RpcConstants.INVALID_RETRY_COUNT;
       try {
-        final DataInputStream dis =
-            new DataInputStream(new ByteArrayInputStream(buf));
-        final RpcRequestHeaderProto header =
-            decodeProtobufFromStream(RpcRequestHeaderProto.newBuilder(), dis);
+        // decode the header in place, then hand the rest of the buffer to
+        // the request without copying it
+        final int offset = buf.arrayOffset() + buf.position();
+        final CodedInputStream cis = CodedInputStream.newInstance(
+            buf.array(), offset, buf.remaining());
+        final RpcRequestHeaderProto header = decodeProtobufFromBuffer(
+            RpcRequestHeaderProto.newBuilder(), cis);
+        final int headerLength = cis.getTotalBytesRead();
+        final DataInputStream dis = new DataInputStream(
+            new ByteArrayInputStream(buf.array(), offset + headerLength,
+                buf.remaining() - headerLength));
         callId = header.getCallId();
         retry = header.getRetryCount();
         if (LOG.isDebugEnabled()) {
@@ -1857,12 +2083,89 @@ private void processRpcRequest(RpcRequestHeaderProto header,
         traceSpan = Trace.startSpan(rpcRequest.toString(), parentSpan).detach();
       }
 
+      UserGroupInformation callUser = user;
+      AuthorizationException callUserException = null;
+      if (header.hasEffectiveUser()) {
+        try {
+          callUser = getCallUser(header.getEffectiveUser());
+        } catch (AuthorizationException ae) {
+          callUserException = ae;
+        }
+      }
+
       Call call = new Call(header.getCallId(), header.getRetryCount(),
           rpcRequest, this, ProtoUtil.convert(header.getRpcKind()),
-          header.getClientId().toByteArray(), traceSpan);
+          header.getClientId().toByteArray(), traceSpan, callUser);
 
-      callQueue.put(call);              // queue the call; maybe blocked here
       incRpcCount();  // Increment the rpc count
+      if (callUserException != null) {
+        // fail the call alone, since the connection may serve other users
+        respondWithError(call, callUserException);
+      } else if (!backoffEnabled) {
+        callQueue.put(call);            // queue the call; maybe blocked here
+      } else if (!callQueue.offer(call)) {
+        // tell the client to back off rather than block this reader and
+        // every other connection it serves
+        rpcMetrics.incrCallsBackedOff();
+        respondWithError(call,
+            new ServerTooBusyException(backoffRetryAfterMillis));
+      }
+    }
+
+    /** Send an error response for a call which is not queued. */
+    private void respondWithError(Call call, IOException e)
+        throws WrappedRpcServerException {
+      try {
+        setupResponse(new ByteArrayOutputStream(), call,
+            RpcStatusProto.ERROR, RpcErrorCodeProto.ERROR_RPC_SERVER, null,
+            e.getClass().getName(), e.getMessage());
+        responder.doRespond(call);
+      } catch (IOException ioe) {
+        throw new WrappedRpcServerException(
+            RpcErrorCodeProto.ERROR_RPC_SERVER, ioe);
+      }
+    }
+
+    /**
+     * Get the user to run a call as on behalf of the user of the connection.
+     * The user is authorized as a connection of that user would be, once per
+     * connection.
+     * @param effectiveUser - name of the user from the call header
+     * @throws AuthorizationException - the user of the connection may not
+     *         run calls as the user
+     */
+    private UserGroupInformation getCallUser(String effectiveUser)
+        throws AuthorizationException {
+      if (user != null && user.getUserName().equals(effectiveUser)) {
+        return user;
+      }
+      UserGroupInformation callUser = callUsers.get(effectiveUser);
+      if (callUser != null) {
+        return callUser;
+      }
+      try {
+        // as for a connection, a token only authenticates the user it was
+        // issued to, so only users with their own credentials may proxy
+        if (user == null || user.getRealUser() != null
+            || authMethod == AuthMethod.TOKEN) {
+          throw new AuthorizationException("User " + user
+              + " is not allowed to run calls as " + effectiveUser);
+        }
+        callUser = UserGroupInformation.createProxyUser(effectiveUser, user);
+        ProxyUsers.authorize(callUser, getHostAddress());
+        authorize(callUser, protocolName, getHostInetAddress());
+        rpcMetrics.incrAuthorizationSuccesses();
+      } catch (AuthorizationException ae) {
+        LOG.info("Call from " + this + " for protocol " + protocolName
+            + " is unauthorized for user " + effectiveUser + " via " + user);
+        rpcMetrics.incrAuthorizationFailures();
+        throw ae;
+      }
+      if (callUsers.size() >= MAX_CALL_USERS) {
+        callUsers.clear();
+      }
+      callUsers.put(effectiveUser, callUser);
+      return callUser;
     }
 
 
@@ -1957,6 +2260,29 @@ private <T extends Message> T decodeProtobufFromStream(Builder builder,
       }
     }
 
+    /**
+     * Decode a delimited protobuf from the given coded input stream
+     * @param builder - Builder of the protobuf to decode
+     * @param cis - CodedInputStream to read the protobuf
+     * @return Message - decoded protobuf
+     * @throws WrappedRpcServerException - deserialization failed
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends Message> T decodeProtobufFromBuffer(Builder builder,
+        CodedInputStream cis) throws WrappedRpcServerException {
+      try {
+        final int limit = cis.pushLimit(cis.readRawVarint32());
+        builder.mergeFrom(cis);
+        cis.popLimit(limit);
+        return (T)builder.build();
+      } catch (Exception ioe) {
+        Class<?> protoClass = builder.getDefaultInstanceForType().getClass();
+        throw new WrappedRpcServerException(
+            RpcErrorCodeProto.FATAL_DESERIALIZING_REQUEST,
+            "Error decoding " + protoClass.getSimpleName() + ": "+ ioe);
+      }
+    }
+
     /**
      * Get service class for connection
      * @return the serviceClass
@@ -2020,6 +2346,7 @@ public void run() {
           Writable value = null;
 
           CurCall.set(call);
+          final long startNanos = System.nanoTime();
           if (call.traceSpan != null) {
             traceScope = Trace.continueSpan(call.traceSpan);
           }
@@ -2027,12 +2354,12 @@ public void run() {
           try {
             // Make the call as the user via Subject.doAs, thus associating
             // the call with the Subject
-            if (call.connection.user == null) {
+            if (call.user == null) {
               value = call(call.rpcKind, call.connection.protocolName, call.rpcRequest, 
                            call.timestamp);
             } else {
               value = 
-                call.connection.user.doAs
+                call.user.doAs
                   (new PrivilegedExceptionAction<Writable>() {
                      @Override
                      public Writable run() throws Exception {
@@ -2077,23 +2404,21 @@ public Writable run() throws Exception {
             }
           }
           CurCall.set(null);
-          synchronized (call.connection.responseQueue) {
-            // setupResponse() needs to be sync'ed together with 
-            // responder.doResponse() since setupResponse may use
-            // SASL to encrypt response data and SASL enforces
-            // its own message ordering.
-            setupResponse(buf, call, returnStatus, detailedErr, 
-                value, errorClass, error);
-            
-            // Discard the large buf and reset it back to smaller size 
-            // to free up heap
-            if (buf.size() > maxRespSize) {
-              LOG.warn("Large response size " + buf.size() + " for call "
-                  + call.toString());
-              buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
-            }
-            responder.doRespond(call);
+          // waiting for a lock costs the other callers nothing
+          callQueue.addProcessingTime(call, System.nanoTime() - startNanos
+              - call.lockWaitNanos, call.lockHoldNanos);
+          setupResponse(buf, call, returnStatus, detailedErr,
+              value, errorClass, error);
+
+          // Discard the large buf and reset it back to smaller size
+          // to free up heap
+          if (buf.size() > maxRespSize) {
+            LOG.warn("Large response size " + buf.size() + " for call "
+                + call.toString());
+            buf = new ByteArrayOutputStream(INITIAL_RESP_BUF_SIZE);
           }
+          // the response is only sent here unless it has been postponed
+          call.sendResponse();
         } catch (InterruptedException e) {
           if (running) {                          // unexpected -- log it
             LOG.info(Thread.currentThread().getName() + " unexpectedly interrupted", e);
@@ -2192,6 +2517,12 @@ protected Server(String bindAddress, int port,
     final String prefix = getQueueClassPrefix();
     this.callQueue = new CallQueueManager<Call>(getQueueClass(prefix, conf),
         maxQueueSize, prefix, conf);
+    this.backoffEnabled = conf.getBoolean(
+        prefix + "." + CommonConfigurationKeys.IPC_BACKOFF_ENABLE,
+        CommonConfigurationKeys.IPC_BACKOFF_ENABLE_DEFAULT);
+    this.backoffRetryAfterMillis = conf.getLong(
+        prefix + "." + CommonConfigurationKeys.IPC_BACKOFF_RETRY_AFTER_MS_KEY,
+        CommonConfigurationKeys.IPC_BACKOFF_RETRY_AFTER_MS_DEFAULT);
 
     this.secretManager = (SecretManager<TokenIdentifier>) secretManager;
     this.authorize = 
@@ -2207,7 +2538,20 @@ protected Server(String bindAddress, int port,
     this.port = listener.getAddress().getPort();    
     connectionManager = new ConnectionManager();
     this.rpcMetrics = RpcMetrics.create(this, conf);
-    this.rpcDetailedMetrics = RpcDetailedMetrics.create(this.port);
+    if (conf.getBoolean(
+        CommonConfigurationKeys.IPC_SERVER_BUFFER_POOL_ENABLED_KEY,
+        CommonConfigurationKeys.IPC_SERVER_BUFFER_POOL_ENABLED_DEFAULT)) {
+      // requests are decoded from arrays, so only responses may be direct
+      this.requestBufferPool = new RpcBufferPool(false, rpcMetrics);
+      this.responseBufferPool = new RpcBufferPool(conf.getBoolean(
+          CommonConfigurationKeys.IPC_SERVER_BUFFER_POOL_DIRECT_KEY,
+          CommonConfigurationKeys.IPC_SERVER_BUFFER_POOL_DIRECT_DEFAULT),
+          rpcMetrics);
+    } else {
+      this.requestBufferPool = null;
+      this.responseBufferPool = null;
+    }
+    this.rpcDetailedMetrics = RpcDetailedMetrics.create(this.port, conf);
     this.tcpNoDelay = conf.getBoolean(
         CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_KEY,
         CommonConfigurationKeysPublic.IPC_SERVER_TCPNODELAY_DEFAULT);
@@ -2226,6 +2570,9 @@ protected Server(String bindAddress, int port,
   private RpcSaslProto buildNegotiateResponse(List<AuthMethod> authMethods)
       throws IOException {
     RpcSaslProto.Builder negotiateBuilder = RpcSaslProto.newBuilder();
+    // clients multiplex the calls of proxy users only over the connections
+    // of servers which advertise this
+    negotiateBuilder.setEffectiveUserSupported(true);
     if (authMethods.contains(AuthMethod.SIMPLE) && authMethods.size() == 1) {
       // SIMPLE-only servers return success in response to negotiate
       negotiateBuilder.setState(SaslState.SUCCESS);
@@ -2292,7 +2639,6 @@ private void setupResponse(ByteArrayOutputStream responseBuf,
                              Writable rv, String errorClass, String error) 
   throws IOException {
     responseBuf.reset();
-    DataOutputStream out = new DataOutputStream(responseBuf);
     RpcResponseHeaderProto.Builder headerBuilder =  
         RpcResponseHeaderProto.newBuilder();
     headerBuilder.setClientId(ByteString.copyFrom(call.clientId));
@@ -2301,6 +2647,9 @@ private void setupResponse(ByteArrayOutputStream responseBuf,
     headerBuilder.setStatus(status);
     headerBuilder.setServerIpcVersionNum(CURRENT_VERSION);
 
+    // with pooling, the response is written straight into a pooled buffer
+    // of its length rather than into responseBuf
+    ByteBuffer pooled = null;
     if (status == RpcStatusProto.SUCCESS) {
       RpcResponseHeaderProto header = headerBuilder.build();
       final int headerLen = header.getSerializedSize();
@@ -2311,6 +2660,8 @@ private void setupResponse(ByteArrayOutputStream responseBuf,
           ProtobufRpcEngine.RpcWrapper resWrapper = 
               (ProtobufRpcEngine.RpcWrapper) rv;
           fullLength += resWrapper.getLength();
+          pooled = getPooledResponse(fullLength);
+          DataOutputStream out = newResponseStream(responseBuf, pooled);
           out.writeInt(fullLength);
           header.writeDelimitedTo(out);
           rv.write(out);
@@ -2319,12 +2670,17 @@ private void setupResponse(ByteArrayOutputStream responseBuf,
           rv.write(buf);
           byte[] data = buf.getData();
           fullLength += buf.getLength();
+          pooled = getPooledResponse(fullLength);
+          DataOutputStream out = newResponseStream(responseBuf, pooled);
           out.writeInt(fullLength);
           header.writeDelimitedTo(out);
           out.write(data, 0, buf.getLength());
         }
       } catch (Throwable t) {
         LOG.warn("Error serializing call response for call " + call, t);
+        if (pooled != null) {
+          responseBufferPool.putBuffer(pooled);
+        }
         // Call back to same function - this is OK since the
         // buffer is reset at the top, and since status is changed
         // to ERROR it won't infinite loop.
@@ -2342,13 +2698,60 @@ private void setupResponse(ByteArrayOutputStream responseBuf,
       int headerLen = header.getSerializedSize();
       final int fullLength  = 
           CodedOutputStream.computeRawVarint32Size(headerLen) + headerLen;
+      pooled = getPooledResponse(fullLength);
+      DataOutputStream out = newResponseStream(responseBuf, pooled);
       out.writeInt(fullLength);
       header.writeDelimitedTo(out);
     }
-    if (call.connection.useWrap) {
-      wrapWithSasl(responseBuf, call);
+    if (pooled != null) {
+      pooled.flip();
+      call.setPooledResponse(pooled);
+    } else {
+      call.setResponse(ByteBuffer.wrap(responseBuf.toByteArray()));
     }
-    call.setResponse(ByteBuffer.wrap(responseBuf.toByteArray()));
+  }
+
+  /**
+   * @return a pooled buffer for a response of the given length following
+   *         its length prefix, or null if responses are not pooled.
+   */
+  private ByteBuffer getPooledResponse(int fullLength) {
+    return responseBufferPool == null ? null
+        : responseBufferPool.getBuffer(4 + fullLength);
+  }
+
+  /** @return a stream writing to the pooled buffer if any, else to buf. */
+  private static DataOutputStream newResponseStream(
+      ByteArrayOutputStream buf, ByteBuffer pooled) {
+    return new DataOutputStream(pooled == null ? buf
+        : new ByteBufferOutputStream(pooled));
+  }
+
+  /** An output stream writing to a byte buffer, which must not overflow. */
+  private static class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferOutputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      buffer.put(b, off, len);
+    }
+  }
+
+  /** Clear out the response of the call, returning it to its pool. */
+  private void releaseResponse(Call call) {
+    if (call.responsePooled) {
+      responseBufferPool.putBuffer(call.rpcResponse);
+    }
+    call.setResponse(null);
   }
   
   /**
@@ -2375,27 +2778,33 @@ private void setupResponseOldVersionFatal(ByteArrayOutputStream response,
     out.writeInt(OLD_VERSION_FATAL_STATUS);   // write FATAL_STATUS
     WritableUtils.writeString(out, errorClass);
     WritableUtils.writeString(out, error);
-
-    if (call.connection.useWrap) {
-      wrapWithSasl(response, call);
-    }
     call.setResponse(ByteBuffer.wrap(response.toByteArray()));
   }
   
   
-  private void wrapWithSasl(ByteArrayOutputStream response, Call call)
-      throws IOException {
+  private void wrapWithSasl(Call call) throws IOException {
     if (call.connection.saslServer != null) {
-      byte[] token = response.toByteArray();
+      final ByteBuffer plain = call.rpcResponse;
+      byte[] token;
+      int offset = 0;
+      if (plain.hasArray()) {
+        token = plain.array();
+        offset = plain.arrayOffset() + plain.position();
+      } else { // a direct pooled buffer
+        token = new byte[plain.remaining()];
+        plain.duplicate().get(token);
+      }
       // synchronization may be needed since there can be multiple Handler
       // threads using saslServer to wrap responses.
       synchronized (call.connection.saslServer) {
-        token = call.connection.saslServer.wrap(token, 0, token.length);
+        token = call.connection.saslServer.wrap(token, offset,
+            plain.remaining());
       }
+      releaseResponse(call);
       if (LOG.isDebugEnabled())
         LOG.debug("Adding saslServer wrapped token of size " + token.length
             + " as call response.");
-      response.reset();
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
       // rebuild with sasl header and payload
       RpcResponseHeaderProto saslHeader = RpcResponseHeaderProto.newBuilder()
           .setCallId(AuthProtocol.SASL.callId)
@@ -2411,6 +2820,7 @@ private void wrapWithSasl(ByteArrayOutputStream response, Call call)
       DataOutputStream out = new DataOutputStream(response);
       out.writeInt(saslResponse.getLength());
       saslResponse.write(out);
+      call.setResponse(ByteBuffer.wrap(response.toByteArray()));
     }
   }
   
@@ -2526,6 +2936,14 @@ public int getPort() {
   public int getNumOpenConnections() {
     return connectionManager.size();
   }
+
+  /**
+   * @return the number of open connections assigned to each reader
+   */
+  @VisibleForTesting
+  int[] getNumReaderConnections() {
+    return listener.getNumReaderConnections();
+  }
   
   /**
    * The number of rpc calls in the queue.
@@ -2557,6 +2975,9 @@ public int getNumReaders() {
    * be smaller.
    */
   private static int NIO_BUFFER_LIMIT = 8*1024; //should not be more than 64KB.
+
+  /** The maximum number of responses sent in one gathering write. */
+  private static final int MAX_GATHERED_RESPONSES = 16;
   
   /**
    * This is a wrapper around {@link WritableByteChannel#write(ByteBuffer)}.
@@ -2713,6 +3134,9 @@ boolean close(Connection connection) {
         // only close if actually removed to avoid double-closing due
         // to possible races
         connection.close();
+        if (connection.reader != null) {
+          connection.reader.connectionClosed();
+        }
       }
       return exists;
     }
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.classification.InterfaceStability;
+
+/**
+ * Exception thrown by a server which rejects a call because its call queue
+ * is full. The client may retry the call, but should back off for at least
+ * the time the server suggests.
+ *
+ * The suggested time is carried in the message, since only the class name
+ * and the message of an exception reach the client.
+ */
+@InterfaceStability.Evolving
+public class ServerTooBusyException extends RetriableException {
+  private static final long serialVersionUID = -3150470618123573541L;
+
+  private static final Pattern RETRY_AFTER =
+      Pattern.compile("retry after (\\d+) ms");
+
+  private final long retryAfterMillis;
+
+  public ServerTooBusyException(long retryAfterMillis) {
+    super("Server too busy, retry after " + retryAfterMillis + " ms");
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /** Used to unwrap the exception from a {@link RemoteException}. */
+  public ServerTooBusyException(String msg) {
+    super(msg);
+    final Matcher m = msg == null ? null : RETRY_AFTER.matcher(msg);
+    this.retryAfterMillis = m != null && m.find()
+        ? Long.parseLong(m.group(1)) : 0;
+  }
+
+  /** @return the time the client should back off before retrying. */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
@@ -0,0 +1,574 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.NotImplementedException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics2.util.MBeans;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static org.apache.hadoop.ipc.FairCallQueue.IPC_CALLQUEUE_PRIORITY_LEVELS_DEFAULT;
+import static org.apache.hadoop.ipc.FairCallQueue.IPC_CALLQUEUE_PRIORITY_LEVELS_KEY;
+
+/**
+ * A call queue which splits the calls into shards, so that the Reader and
+ * Handler threads of a server do not all contend on a single queue lock.
+ *
+ * Like the {@link FairCallQueue}, every shard has a sub-queue for each
+ * priority level which the {@link DecayRpcScheduler} assigns, and calls are
+ * taken from the levels of a shard by a {@link WeightedRoundRobinMultiplexer}.
+ * The sub-queues are non-blocking. Each thread adding calls spreads them
+ * over the shards in turn, and each thread taking calls has a home shard.
+ * It takes a call of the level its multiplexer chooses from the home shard
+ * first, before it steals one of that level from the other shards, and
+ * only then moves on to the next level.
+ *
+ * A lock is only taken to block threads while the queue is empty or full,
+ * and to wake them up again.
+ *
+ * A server uses this queue when ipc.&lt;port&gt;.callqueue.impl is set to
+ * org.apache.hadoop.ipc.ShardedCallQueue.
+ */
+public class ShardedCallQueue<E extends Schedulable> extends AbstractQueue<E>
+  implements BlockingQueue<E> {
+  // Configuration Keys
+  public static final int    IPC_CALLQUEUE_SHARDS_DEFAULT = 4;
+  public static final String IPC_CALLQUEUE_SHARDS_KEY =
+    "shardedcallqueue.shards";
+
+  public static final Log LOG = LogFactory.getLog(ShardedCallQueue.class);
+
+  /** The sub-queues of a shard, one for each priority level. */
+  private static class Shard<E> {
+    private final List<Queue<E>> queues;
+    private final AtomicInteger[] sizes;
+    private final RpcMultiplexer multiplexer;
+
+    Shard(int numLevels, String ns, Configuration conf) {
+      this.queues = new ArrayList<Queue<E>>(numLevels);
+      this.sizes = new AtomicInteger[numLevels];
+      for (int i = 0; i < numLevels; i++) {
+        queues.add(new ConcurrentLinkedQueue<E>());
+        sizes[i] = new AtomicInteger();
+      }
+      this.multiplexer = new WeightedRoundRobinMultiplexer(numLevels, ns,
+          conf);
+    }
+  }
+
+  /** The shard a thread puts its next call into. */
+  private static class Cursor {
+    private int next;
+
+    Cursor(int next) {
+      this.next = next;
+    }
+  }
+
+  private final List<Shard<E>> shards;
+  private final int numLevels;
+  /* The maximum size of each sub-queue */
+  private final int shardCapacity;
+
+  /*
+   * The threads adding calls and the threads taking calls are spread over
+   * the shards separately, so that neither kind skews the other.
+   */
+  private final AtomicInteger nextCursor = new AtomicInteger();
+  private final ThreadLocal<Cursor> cursor = new ThreadLocal<Cursor>() {
+    @Override
+    protected Cursor initialValue() {
+      return new Cursor((nextCursor.getAndIncrement() & Integer.MAX_VALUE)
+          % shards.size());
+    }
+  };
+  private final AtomicInteger nextHome = new AtomicInteger();
+  private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return (nextHome.getAndIncrement() & Integer.MAX_VALUE)
+          % shards.size();
+    }
+  };
+
+  /* Only used to block threads while the queue is empty or full */
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final AtomicInteger takeWaiters = new AtomicInteger();
+  private final AtomicInteger putWaiters = new AtomicInteger();
+
+  /* Scheduler picks which level to place in */
+  private RpcScheduler scheduler;
+
+  /* Statistic tracking */
+  private final AtomicLong[] overflowedCalls;
+
+  /**
+   * Create a ShardedCallQueue.
+   * @param capacity the maximum size of each priority level over all shards
+   * @param ns the prefix to use for configuration
+   * @param conf the configuration to read from
+   */
+  public ShardedCallQueue(int capacity, String ns, Configuration conf) {
+    this.numLevels = conf.getInt(ns + "." + IPC_CALLQUEUE_PRIORITY_LEVELS_KEY,
+        IPC_CALLQUEUE_PRIORITY_LEVELS_DEFAULT);
+    if (numLevels < 1) {
+      throw new IllegalArgumentException("numQueues must be at least 1");
+    }
+    final int numShards = conf.getInt(ns + "." + IPC_CALLQUEUE_SHARDS_KEY,
+        IPC_CALLQUEUE_SHARDS_DEFAULT);
+    if (numShards < 1) {
+      throw new IllegalArgumentException("numShards must be at least 1");
+    }
+    LOG.info("ShardedCallQueue is in use with " + numShards + " shards of "
+        + numLevels + " queues.");
+
+    this.shardCapacity = Math.max(1, (capacity + numShards - 1) / numShards);
+    this.shards = new ArrayList<Shard<E>>(numShards);
+    for (int i = 0; i < numShards; i++) {
+      shards.add(new Shard<E>(numLevels, ns, conf));
+    }
+    this.overflowedCalls = new AtomicLong[numLevels];
+    for (int i = 0; i < numLevels; i++) {
+      overflowedCalls[i] = new AtomicLong();
+    }
+
+    this.scheduler = new DecayRpcScheduler(numLevels, ns, conf);
+
+    // Make this the active source of metrics
+    MetricsProxy mp = MetricsProxy.getInstance(ns);
+    mp.setDelegate(this);
+  }
+
+  /**
+   * Add the call to the given level of some shard, starting with the next
+   * shard of the current thread.
+   * @return true if the call was added
+   */
+  private boolean offerToLevel(E e, int level) {
+    final Cursor c = cursor.get();
+    final int numShards = shards.size();
+    for (int i = 0; i < numShards; i++) {
+      final Shard<E> shard = shards.get((c.next + i) % numShards);
+      if (shard.sizes[level].incrementAndGet() <= shardCapacity) {
+        shard.queues.get(level).offer(e);
+        c.next = (c.next + i + 1) % numShards;
+        signalNotEmpty();
+        return true;
+      }
+      shard.sizes[level].decrementAndGet();
+    }
+    return false;
+  }
+
+  /**
+   * Add the call to the given level or any lower one.
+   * @return true if the call was added
+   */
+  private boolean offerToLevels(E e, int level) {
+    for (; level < numLevels; level++) {
+      if (offerToLevel(e, level)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Take a call from the given level of the shard, or return null. */
+  private E pollLevel(Shard<E> shard, int level) {
+    final E e = shard.queues.get(level).poll();
+    if (e != null) {
+      shard.sizes[level].decrementAndGet();
+      signalNotFull();
+    }
+    return e;
+  }
+
+  /*
+   * A waiter increments its count before it checks the queue once more, and
+   * the other side checks the count after it has changed the queue, so that
+   * either the waiter finds the change or it is signalled.
+   */
+  private void signalNotEmpty() {
+    if (takeWaiters.get() > 0) {
+      lock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void signalNotFull() {
+    if (putWaiters.get() > 0) {
+      lock.lock();
+      try {
+        notFull.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /* AbstractQueue and BlockingQueue methods */
+
+  /**
+   * Put moves on to the next level when all the shards of a level are full,
+   * and blocks while all the levels from its own to the last are full.
+   * Offer does not attempt other levels.
+   */
+  @Override
+  public void put(E e) throws InterruptedException {
+    final int priorityLevel = scheduler.getPriorityLevel(e);
+    for (int level = priorityLevel; level < numLevels - 1; level++) {
+      if (offerToLevel(e, level)) {
+        return;
+      }
+      overflowedCalls[level].getAndIncrement();
+    }
+    if (offerToLevel(e, numLevels - 1)) {
+      return;
+    }
+
+    lock.lockInterruptibly();
+    try {
+      putWaiters.incrementAndGet();
+      try {
+        while (!offerToLevels(e, priorityLevel)) {
+          notFull.await();
+        }
+      } finally {
+        putWaiters.decrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    final int priorityLevel = scheduler.getPriorityLevel(e);
+    if (offerToLevel(e, priorityLevel)) {
+      return true;
+    }
+
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      putWaiters.incrementAndGet();
+      try {
+        while (!offerToLevel(e, priorityLevel)) {
+          if (nanos <= 0) {
+            return false;
+          }
+          nanos = notFull.awaitNanos(nanos);
+        }
+        return true;
+      } finally {
+        putWaiters.decrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(E e) {
+    return offerToLevel(e, scheduler.getPriorityLevel(e));
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    E e = poll();
+    if (e != null) {
+      return e;
+    }
+
+    lock.lockInterruptibly();
+    try {
+      takeWaiters.incrementAndGet();
+      try {
+        while ((e = poll()) == null) {
+          notEmpty.await();
+        }
+        return e;
+      } finally {
+        takeWaiters.decrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    E e = poll();
+    if (e != null) {
+      return e;
+    }
+
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      takeWaiters.incrementAndGet();
+      try {
+        while ((e = poll()) == null) {
+          if (nanos <= 0) {
+            return null;
+          }
+          nanos = notEmpty.awaitNanos(nanos);
+        }
+        return e;
+      } finally {
+        takeWaiters.decrementAndGet();
+      }
+    } catch (InterruptedException ie) {
+      notEmpty.signal(); // propagate to a non-interrupted thread
+      throw ie;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Poll takes a call of the level which the multiplexer of the home shard of
+   * the current thread chooses, from the home shard or else from the other
+   * shards, before it moves on to the next level. A call is therefore never
+   * taken from the home shard while the other shards hold calls of a level
+   * which the multiplexer prefers. It provides no strict consistency: it is
+   * possible for poll to return null even though an element is in the queue.
+   */
+  @Override
+  public E poll() {
+    final int homeIdx = home.get();
+    final int startIdx =
+        shards.get(homeIdx).multiplexer.getAndAdvanceCurrentIndex();
+    final int numShards = shards.size();
+    for (int i = 0; i < numLevels; i++) {
+      final int level = (startIdx + i) % numLevels;
+      for (int j = 0; j < numShards; j++) {
+        final E e = pollLevel(shards.get((homeIdx + j) % numShards), level);
+        if (e != null) {
+          return e;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Peek, like poll, provides no strict consistency.
+   */
+  @Override
+  public E peek() {
+    for (int level = 0; level < numLevels; level++) {
+      for (Shard<E> shard : shards) {
+        final E e = shard.queues.get(level).peek();
+        if (e != null) {
+          return e;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Size returns the sum of all sub-queue sizes.
+   * Note: size provides no strict consistency, and should not be used to
+   * control queue IO.
+   */
+  @Override
+  public int size() {
+    int size = 0;
+    for (Shard<E> shard : shards) {
+      for (AtomicInteger s : shard.sizes) {
+        size += s.get();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Iterator is not implemented, as it is not needed.
+   */
+  @Override
+  public Iterator<E> iterator() {
+    throw new NotImplementedException();
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    int sum = 0;
+    for (int level = 0; level < numLevels; level++) {
+      for (Shard<E> shard : shards) {
+        E e;
+        while (sum < maxElements && (e = pollLevel(shard, level)) != null) {
+          c.add(e);
+          sum++;
+        }
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns maximum remaining capacity. This does not reflect how much you can
+   * ideally fit in this ShardedCallQueue, as that would depend on the
+   * scheduler's decisions.
+   */
+  @Override
+  public int remainingCapacity() {
+    return shards.size() * numLevels * shardCapacity - size();
+  }
+
+  public int[] getQueueSizes() {
+    int[] sizes = new int[numLevels];
+    for (Shard<E> shard : shards) {
+      for (int i = 0; i < numLevels; i++) {
+        sizes[i] += shard.sizes[i].get();
+      }
+    }
+    return sizes;
+  }
+
+  public int[] getShardSizes() {
+    int[] sizes = new int[shards.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      for (AtomicInteger s : shards.get(i).sizes) {
+        sizes[i] += s.get();
+      }
+    }
+    return sizes;
+  }
+
+  public long[] getOverflowedCalls() {
+    long[] calls = new long[numLevels];
+    for (int i = 0; i < numLevels; i++) {
+      calls[i] = overflowedCalls[i].get();
+    }
+    return calls;
+  }
+
+  RpcScheduler getScheduler() {
+    return scheduler;
+  }
+
+  // For testing
+  @VisibleForTesting
+  public void setScheduler(RpcScheduler newScheduler) {
+    this.scheduler = newScheduler;
+  }
+
+  /**
+   * MetricsProxy is a singleton because we may init multiple
+   * ShardedCallQueues, but the metrics system cannot unregister beans cleanly.
+   */
+  private static final class MetricsProxy implements ShardedCallQueueMXBean {
+    // One singleton per namespace
+    private static final HashMap<String, MetricsProxy> INSTANCES =
+      new HashMap<String, MetricsProxy>();
+
+    // Weakref for delegate, so we don't retain it forever if it can be GC'd
+    private WeakReference<ShardedCallQueue<?>> delegate;
+
+    // Keep track of how many objects we registered
+    private int revisionNumber = 0;
+
+    private MetricsProxy(String namespace) {
+      MBeans.register(namespace, "ShardedCallQueue", this);
+    }
+
+    public static synchronized MetricsProxy getInstance(String namespace) {
+      MetricsProxy mp = INSTANCES.get(namespace);
+      if (mp == null) {
+        // We must create one
+        mp = new MetricsProxy(namespace);
+        INSTANCES.put(namespace, mp);
+      }
+      return mp;
+    }
+
+    public void setDelegate(ShardedCallQueue<?> obj) {
+      this.delegate = new WeakReference<ShardedCallQueue<?>>(obj);
+      this.revisionNumber++;
+    }
+
+    @Override
+    public int[] getQueueSizes() {
+      ShardedCallQueue<?> obj = this.delegate.get();
+      if (obj == null) {
+        return new int[]{};
+      }
+
+      return obj.getQueueSizes();
+    }
+
+    @Override
+    public int[] getShardSizes() {
+      ShardedCallQueue<?> obj = this.delegate.get();
+      if (obj == null) {
+        return new int[]{};
+      }
+
+      return obj.getShardSizes();
+    }
+
+    @Override
+    public long[] getOverflowedCalls() {
+      ShardedCallQueue<?> obj = this.delegate.get();
+      if (obj == null) {
+        return new long[]{};
+      }
+
+      return obj.getOverflowedCalls();
+    }
+
+    @Override public int getRevision() {
+      return revisionNumber;
+    }
+  }
+}
@@ -553,6 +553,8 @@ public Writable call(org.apache.hadoop.ipc.RPC.Server server,
          server.rpcMetrics.addRpcProcessingTime(processingTime);
          server.rpcDetailedMetrics.addProcessingTime(detailedMetricsName,
              processingTime);
+         server.rpcDetailedMetrics.addLatencies(detailedMetricsName, qTime,
+             (int) (Server.getLockWaitTime() / 1000000L), processingTime);
        }
       }
     }
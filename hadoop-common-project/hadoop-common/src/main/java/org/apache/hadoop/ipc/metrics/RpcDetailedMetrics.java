@@ -17,18 +17,29 @@
  */
 package org.apache.hadoop.ipc.metrics;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.metrics2.annotation.Metric;
 import org.apache.hadoop.metrics2.annotation.Metrics;
 import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
 import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
 import org.apache.hadoop.metrics2.lib.MutableRates;
 
 /**
  * This class is for maintaining RPC method related statistics
  * and publishing them through the metrics interfaces.
+ *
+ * If enabled, percentiles of the queue time, the lock wait time and the
+ * processing time of each method are kept as well, for each of the
+ * configured percentile intervals. The metrics of a method are created when
+ * it is first called.
  */
 @InterfaceAudience.Private
 @Metrics(about="Per method RPC metrics", context="rpcdetailed")
@@ -39,18 +50,29 @@ public class RpcDetailedMetrics {
   static final Log LOG = LogFactory.getLog(RpcDetailedMetrics.class);
   final MetricsRegistry registry;
   final String name;
+  /** The percentile intervals, or null if percentiles are disabled. */
+  private final int[] quantileIntervals;
+  /** The queue, lock wait and processing time percentiles of each method. */
+  private final ConcurrentMap<String, MutableQuantiles[]> quantiles =
+      new ConcurrentHashMap<String, MutableQuantiles[]>();
 
-  RpcDetailedMetrics(int port) {
+  RpcDetailedMetrics(int port, Configuration conf) {
     name = "RpcDetailedActivityForPort"+ port;
     registry = new MetricsRegistry("rpcdetailed")
         .tag("port", "RPC port", String.valueOf(port));
+    int[] intervals = conf.getInts(
+        CommonConfigurationKeys.RPC_METRICS_PERCENTILES_INTERVALS_KEY);
+    quantileIntervals = (intervals.length > 0) && conf.getBoolean(
+        CommonConfigurationKeys.RPC_METRICS_DETAILED_QUANTILE_ENABLE,
+        CommonConfigurationKeys.RPC_METRICS_DETAILED_QUANTILE_ENABLE_DEFAULT)
+        ? intervals : null;
     LOG.debug(registry.info());
   }
 
   public String name() { return name; }
 
-  public static RpcDetailedMetrics create(int port) {
-    RpcDetailedMetrics m = new RpcDetailedMetrics(port);
+  public static RpcDetailedMetrics create(int port, Configuration conf) {
+    RpcDetailedMetrics m = new RpcDetailedMetrics(port, conf);
     return DefaultMetricsSystem.instance().register(m.name, null, m);
   }
 
@@ -72,6 +94,59 @@ public void addProcessingTime(String name, int processingTime) {
     rates.add(name, processingTime);
   }
 
+  /**
+   * Add latency samples of an RPC call to the percentiles of its method,
+   * if they are enabled
+   * @param name  of the RPC call
+   * @param queueTime  the time the call waited in the call queue
+   * @param lockWaitTime  the part of the processing time spent waiting for
+   *                      locks
+   * @param processingTime  the processing time
+   */
+  public void addLatencies(String name, int queueTime, int lockWaitTime,
+      int processingTime) {
+    if (quantileIntervals == null) {
+      return;
+    }
+    final MutableQuantiles[] q = getQuantiles(name);
+    final int n = quantileIntervals.length;
+    for (int i = 0; i < n; i++) {
+      q[i].add(queueTime);
+      q[n + i].add(lockWaitTime);
+      q[2 * n + i].add(processingTime);
+    }
+  }
+
+  private MutableQuantiles[] getQuantiles(String name) {
+    MutableQuantiles[] q = quantiles.get(name);
+    if (q != null) {
+      return q;
+    }
+    synchronized (quantiles) {
+      q = quantiles.get(name);
+      if (q == null) {
+        final int n = quantileIntervals.length;
+        q = new MutableQuantiles[3 * n];
+        for (int i = 0; i < n; i++) {
+          final int interval = quantileIntervals[i];
+          q[i] = registry.newQuantiles(name + "QueueTime" + interval + "s",
+              name + " queue time in milli second", "ops", "latency",
+              interval);
+          q[n + i] = registry.newQuantiles(
+              name + "LockWaitTime" + interval + "s",
+              name + " lock wait time in milli second", "ops", "latency",
+              interval);
+          q[2 * n + i] = registry.newQuantiles(
+              name + "ProcessingTime" + interval + "s",
+              name + " processing time in milli second", "ops", "latency",
+              interval);
+        }
+        quantiles.put(name, q);
+      }
+      return q;
+    }
+  }
+
   /**
    * Shutdown the instrumentation for the process
    */
@@ -95,6 +95,14 @@ public static RpcMetrics create(Server server, Configuration conf) {
   MutableCounterLong rpcAuthorizationFailures;
   @Metric("Number of authorization sucesses")
   MutableCounterLong rpcAuthorizationSuccesses;
+  @Metric("Number of calls rejected because the call queue was full")
+  MutableCounterLong rpcCallsBackedOff;
+  @Metric("Number of buffers allocated for requests and responses")
+  MutableCounterLong rpcBufferAllocations;
+  @Metric("Number of bytes allocated for requests and responses")
+  MutableCounterLong rpcBufferAllocatedBytes;
+  @Metric("Number of request and response buffers reused from the pool")
+  MutableCounterLong rpcBufferReuses;
 
   @Metric("Number of open connections") public int numOpenConnections() {
     return server.getNumOpenConnections();
@@ -141,6 +149,29 @@ public void incrAuthorizationFailures() {
     rpcAuthorizationFailures.incr();
   }
 
+  /**
+   * One allocation of a request or response buffer
+   * @param bytes the capacity of the buffer
+   */
+  public void incrBufferAllocations(int bytes) {
+    rpcBufferAllocations.incr();
+    rpcBufferAllocatedBytes.incr(bytes);
+  }
+
+  /**
+   * One call rejected because the call queue was full
+   */
+  public void incrCallsBackedOff() {
+    rpcCallsBackedOff.incr();
+  }
+
+  /**
+   * One request or response buffer reused from the pool
+   */
+  public void incrBufferReuses() {
+    rpcBufferReuses.incr();
+  }
+
   /**
    * Shutdown the instrumentation for the process
    */
@@ -91,6 +91,7 @@ public class SaslRpcClient {
   private SaslClient saslClient;
   private SaslPropertiesResolver saslPropsResolver;
   private AuthMethod authMethod;
+  private boolean effectiveUserSupported;
   
   private static final RpcRequestHeaderProto saslHeader = ProtoUtil
       .makeRpcRequestHeader(RpcKind.RPC_PROTOCOL_BUFFER,
@@ -133,6 +134,15 @@ public Object getNegotiatedProperty(String key) {
   public AuthMethod getAuthMethod() {
     return authMethod;
   }
+
+  /**
+   * @return whether the server advertised during the negotiation that it
+   *         runs calls as the effective user of their header
+   */
+  @InterfaceAudience.Private
+  public boolean isEffectiveUserSupported() {
+    return effectiveUserSupported;
+  }
   
   /**
    * Instantiate a sasl client for the first supported auth type in the
@@ -392,6 +402,7 @@ public AuthMethod saslConnect(InputStream inS, OutputStream outS)
       RpcSaslProto.Builder response = null;
       switch (saslMessage.getState()) {
         case NEGOTIATE: {
+          effectiveUserSupported = saslMessage.getEffectiveUserSupported();
           // create a compatible SASL client, throws if no supported auths
           SaslAuth saslAuthType = selectSaslClient(saslMessage.getAuthsList());
           // define auth being attempted, caller can query if connect fails
@@ -433,6 +444,7 @@ public AuthMethod saslConnect(InputStream inS, OutputStream outS)
           // switch to simple
           if (saslClient == null) {
             authMethod = AuthMethod.SIMPLE;
+            effectiveUserSupported = saslMessage.getEffectiveUserSupported();
           } else {
             saslEvaluateToken(saslMessage, true);
           }
@@ -164,9 +164,23 @@ public static RPC.RpcKind convert( RpcKindProto kind) {
   public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
       RpcRequestHeaderProto.OperationProto operation, int callId,
       int retryCount, byte[] uuid) {
+    return makeRpcRequestHeader(rpcKind, operation, callId, retryCount, uuid,
+        null);
+  }
+
+  /**
+   * @param effectiveUser the user to run the call as, or null to run it as
+   *        the user of the connection
+   */
+  public static RpcRequestHeaderProto makeRpcRequestHeader(RPC.RpcKind rpcKind,
+      RpcRequestHeaderProto.OperationProto operation, int callId,
+      int retryCount, byte[] uuid, String effectiveUser) {
     RpcRequestHeaderProto.Builder result = RpcRequestHeaderProto.newBuilder();
     result.setRpcKind(convert(rpcKind)).setRpcOp(operation).setCallId(callId)
         .setRetryCount(retryCount).setClientId(ByteString.copyFrom(uuid));
+    if (effectiveUser != null) {
+      result.setEffectiveUser(effectiveUser);
+    }
 
     // Add tracing info if we are currently tracing.
     if (Trace.isTracing()) {
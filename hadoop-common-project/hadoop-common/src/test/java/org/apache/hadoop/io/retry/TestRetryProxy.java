@@ -39,9 +39,11 @@
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.io.retry.UnreliableInterface.FatalException;
+import org.apache.hadoop.io.retry.RetryPolicy.RetryAction;
 import org.apache.hadoop.io.retry.UnreliableInterface.UnreliableException;
 import org.apache.hadoop.ipc.ProtocolTranslator;
 import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.ServerTooBusyException;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -204,6 +206,30 @@ public void testRetryByRemoteException() {
     }
   }  
   
+  @Test
+  public void testRetryAfterHint() throws Exception {
+    final RetryPolicy policy =
+        retryUpToMaximumCountWithFixedSleep(3, 1, TimeUnit.MILLISECONDS);
+    final ServerTooBusyException busy = new ServerTooBusyException(500);
+    final RemoteException remote = new RemoteException(
+        ServerTooBusyException.class.getName(), busy.getMessage());
+    final RetryPolicy failover = RetryPolicies.failoverOnNetworkException(
+        TRY_ONCE_THEN_FAIL, 1);
+
+    for (RetryPolicy p : new RetryPolicy[] { policy, failover, RETRY_FOREVER }) {
+      for (Exception e : new Exception[] { busy, remote }) {
+        RetryAction action = p.shouldRetry(e, 0, 0, true);
+        assertEquals(RetryAction.RetryDecision.RETRY, action.action);
+        assertTrue("delay " + action.delayMillis, action.delayMillis >= 500
+            && action.delayMillis <= 750);
+      }
+    }
+
+    // other exceptions keep the delay of the policy
+    assertEquals(1, policy.shouldRetry(new UnreliableException(), 1, 0, true)
+        .delayMillis);
+  }
+
   @Test
   public void testRetryInterruptible() throws Throwable {
     final UnreliableInterface unreliable = (UnreliableInterface)
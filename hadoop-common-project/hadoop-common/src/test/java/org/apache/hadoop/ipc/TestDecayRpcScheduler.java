@@ -19,6 +19,7 @@
 package org.apache.hadoop.ipc;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -203,6 +204,57 @@ public void testPriority() {
     assertEquals(2, scheduler.getPriorityLevel(mockCall("A")));
   }
 
+  @Test
+  public void testCostBasedPriority() {
+    Configuration conf = new Configuration();
+    conf.set("ns." + DecayRpcScheduler.IPC_CALLQUEUE_DECAYSCHEDULER_PERIOD_KEY, "99999999"); // Never flush
+    conf.set("ns." + DecayRpcScheduler.IPC_CALLQUEUE_DECAYSCHEDULER_THRESHOLDS_KEY,
+      "25, 50, 75");
+    conf.setBoolean("ns." +
+        DecayRpcScheduler.IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_KEY, true);
+    scheduler = new DecayRpcScheduler(4, "ns", conf);
+    assertTrue(scheduler.isCostBased());
+
+    // scheduling a call does not count it
+    assertEquals(0, scheduler.getPriorityLevel(mockCall("A")));
+    assertEquals(0, scheduler.getTotalCallSnapshot());
+
+    // B issues many cheap calls, A a single expensive one
+    for (int i = 0; i < 10; i++) {
+      scheduler.addProcessingTime(mockCall("B"), 10000, 0);
+    }
+    scheduler.addProcessingTime(mockCall("A"), 100000000, 0);
+    assertEquals(100, scheduler.getCallCountSnapshot().get("B").longValue());
+    assertEquals(100000, scheduler.getCallCountSnapshot().get("A").longValue());
+    assertEquals(3, scheduler.getPriorityLevel(mockCall("A")));
+    assertEquals(0, scheduler.getPriorityLevel(mockCall("B")));
+
+    // time holding an exclusive lock is weighed by 10 by default
+    scheduler.addProcessingTime(mockCall("C"), 1000000, 1000000);
+    assertEquals(10000, scheduler.getCallCountSnapshot().get("C").longValue());
+
+    // even the cheapest call costs something
+    scheduler.addProcessingTime(mockCall("D"), 0, 0);
+    assertEquals(1, scheduler.getCallCountSnapshot().get("D").longValue());
+
+    scheduler.forceDecay();
+    int[] sizes = scheduler.getPriorityLevelSizes();
+    assertEquals(4, sizes.length);
+    assertEquals(1, sizes[3]);
+  }
+
+  @Test
+  public void testCountBasedIgnoresProcessingTime() {
+    Configuration conf = new Configuration();
+    conf.set("ns." + DecayRpcScheduler.IPC_CALLQUEUE_DECAYSCHEDULER_PERIOD_KEY, "99999999"); // Never flush
+    scheduler = new DecayRpcScheduler(4, "ns", conf);
+    assertFalse(scheduler.isCostBased());
+
+    scheduler.getPriorityLevel(mockCall("A"));
+    scheduler.addProcessingTime(mockCall("A"), 100000000, 0);
+    assertEquals(1, scheduler.getTotalCallSnapshot());
+  }
+
   @Test(timeout=2000)
   public void testPeriodic() throws InterruptedException {
     Configuration conf = new Configuration();
@@ -663,6 +663,63 @@ public void testIpcWithReaderQueuing() throws Exception {
     }
   }
   
+  /**
+   * Check that new connections are assigned to the readers with the fewest
+   * open connections
+   */
+  @Test(timeout=30000)
+  public void testReaderAssignmentByLoad() throws Exception {
+    final int readers = 4;
+    final TestServerQueue server =
+        new TestServerQueue(0, readers, 1, 1, new Configuration());
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    server.start();
+    final List<Socket> sockets = new ArrayList<Socket>();
+    try {
+      for (int i = 0; i < 2 * readers; i++) {
+        sockets.add(NetUtils.getDefaultSocketFactory(conf).createSocket(
+            addr.getAddress(), addr.getPort()));
+      }
+      waitForOpenConnections(server, 2 * readers);
+      assertReaderConnections(server, 2, 2);
+
+      // close both connections of one reader
+      sockets.remove(readers).close();
+      sockets.remove(0).close();
+      waitForOpenConnections(server, 2 * readers - 2);
+      assertReaderConnections(server, 0, 2);
+
+      // the new connections all go to the idle reader
+      for (int i = 0; i < 2; i++) {
+        sockets.add(NetUtils.getDefaultSocketFactory(conf).createSocket(
+            addr.getAddress(), addr.getPort()));
+      }
+      waitForOpenConnections(server, 2 * readers);
+      assertReaderConnections(server, 2, 2);
+    } finally {
+      for (Socket socket : sockets) {
+        socket.close();
+      }
+      server.stop();
+    }
+  }
+
+  private static void waitForOpenConnections(Server server, int n)
+      throws InterruptedException {
+    while (server.getNumOpenConnections() != n) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void assertReaderConnections(Server server, int min,
+      int max) {
+    final int[] n = server.getNumReaderConnections();
+    for (int i = 0; i < n.length; i++) {
+      assertTrue("reader " + i + " has " + n[i] + " connections",
+          min <= n[i] && n[i] <= max);
+    }
+  }
+
   // goal is to jam a handler with a connection, fill the callq with
   // connections, in turn jamming the readers - then flood the server and
   // ensure that the listener blocks when the reader connection queues fill
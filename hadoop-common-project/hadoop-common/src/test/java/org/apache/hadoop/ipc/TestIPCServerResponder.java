@@ -20,6 +20,9 @@
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -30,8 +33,11 @@
 import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.ipc.Client.ConnectionId;
 import org.apache.hadoop.net.NetUtils;
 
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * This test provokes partial writes in the server, which is 
  * serving multiple clients.
@@ -129,6 +135,38 @@ public void testServerResponder()
     testServerResponder(10, true, 1, 10, 200);
   }
 
+  /**
+   * Pipeline many small calls on one connection, so that the responses of
+   * the handlers queue up behind each other and are sent in gathering writes.
+   */
+  public void testGatheredResponses() throws Exception {
+    Server server = new TestServer(10, false);
+    server.start();
+    InetSocketAddress address = NetUtils.getConnectAddress(server);
+    Client client = new Client(BytesWritable.class, conf);
+    try {
+      ConnectionId remoteId = ConnectionId.getConnectionId(address, null,
+          null, 0, conf);
+      List<byte[]> params = new ArrayList<byte[]>();
+      List<ListenableFuture<Writable>> futures =
+          new ArrayList<ListenableFuture<Writable>>();
+      for (int i = 0; i < 2000; i++) {
+        byte[] bytes = new byte[RANDOM.nextInt(100)];
+        System.arraycopy(BYTES, i % 26, bytes, 0, bytes.length);
+        params.add(bytes);
+        futures.add(client.callAsync(RPC.RpcKind.RPC_BUILTIN,
+            new BytesWritable(bytes), remoteId, null));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        BytesWritable result = (BytesWritable) futures.get(i).get();
+        assertTrue(Arrays.equals(params.get(i), result.copyBytes()));
+      }
+    } finally {
+      client.stop();
+      server.stop();
+    }
+  }
+
   public void testServerResponder(final int handlerCount, 
                                   final boolean handlerSleep, 
                                   final int clientCount,
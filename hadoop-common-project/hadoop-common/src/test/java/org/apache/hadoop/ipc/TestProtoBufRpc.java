@@ -23,10 +23,15 @@
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.io.retry.RetryPolicies;
+import org.apache.hadoop.io.retry.RetryProxy;
 import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcResponseHeaderProto.RpcErrorCodeProto;
 import org.apache.hadoop.ipc.protobuf.TestProtos.EchoRequestProto;
 import org.apache.hadoop.ipc.protobuf.TestProtos.EchoResponseProto;
@@ -36,11 +41,13 @@
 import org.apache.hadoop.ipc.protobuf.TestRpcServiceProtos.TestProtobufRpc2Proto;
 import org.apache.hadoop.metrics2.MetricsRecordBuilder;
 import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.test.GenericTestUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.BlockingService;
 import com.google.protobuf.RpcController;
 import com.google.protobuf.ServiceException;
@@ -195,6 +202,75 @@ public static void testProtoBufRpc(TestRpcService client) throws Exception {
     }
   }
   
+  @Test (timeout=5000)
+  public void testAsyncProtoBufRpc() throws Exception {
+    TestRpcService client = getClient();
+    final int numCalls = 100;
+    final List<ListenableFuture<EchoResponseProto>> responses =
+        new ArrayList<ListenableFuture<EchoResponseProto>>();
+    final ListenableFuture<EmptyResponseProto> error;
+    Client.setAsynchronousMode(true);
+    try {
+      for (int i = 0; i < numCalls; i++) {
+        EchoRequestProto echoRequest = EchoRequestProto.newBuilder()
+            .setMessage("hello" + i).build();
+        Assert.assertNull(client.echo(null, echoRequest));
+        responses.add(ProtobufRpcEngine.<EchoResponseProto>
+            getAsyncReturnMessage());
+      }
+      Assert.assertNull(client.error(null,
+          EmptyRequestProto.newBuilder().build()));
+      error = ProtobufRpcEngine.getAsyncReturnMessage();
+      Assert.assertNull(ProtobufRpcEngine.getAsyncReturnMessage());
+    } finally {
+      Client.setAsynchronousMode(false);
+    }
+
+    for (int i = 0; i < numCalls; i++) {
+      Assert.assertEquals("hello" + i, responses.get(i).get().getMessage());
+    }
+    // the error is reported like a synchronous call would throw it
+    try {
+      error.get();
+      Assert.fail("Expected exception is not thrown");
+    } catch (ExecutionException e) {
+      ServiceException se = (ServiceException) e.getCause();
+      RemoteException re = (RemoteException) se.getCause();
+      Assert.assertNotNull(re.unwrapRemoteException(
+          RpcServerException.class));
+    }
+    // synchronous calls are unaffected
+    testProtoBufRpc(client);
+  }
+
+  @Test (timeout=5000)
+  public void testAsyncUnsupportedProxies() throws Exception {
+    final TestRpcService retrying = (TestRpcService) RetryProxy.create(
+        TestRpcService.class, getClient(), RetryPolicies.TRY_ONCE_THEN_FAIL);
+    final TestRPC.TestProtocol writable = RPC.getProxy(
+        TestRPC.TestProtocol.class, TestRPC.TestProtocol.versionID, addr,
+        new Configuration());
+    Client.setAsynchronousMode(true);
+    try {
+      try {
+        retrying.ping(null, EmptyRequestProto.newBuilder().build());
+        Assert.fail("Expected exception is not thrown");
+      } catch (UnsupportedOperationException e) {
+        GenericTestUtils.assertExceptionContains("asynchronous mode", e);
+      }
+      try {
+        writable.ping();
+        Assert.fail("Expected exception is not thrown");
+      } catch (IOException e) {
+        GenericTestUtils.assertExceptionContains("asynchronous mode", e);
+      }
+      Assert.assertNull(ProtobufRpcEngine.getAsyncReturnMessage());
+    } finally {
+      Client.setAsynchronousMode(false);
+      RPC.stopProxy(writable);
+    }
+  }
+
   @Test (timeout=5000)
   public void testProtoBufRpc2() throws Exception {
     TestRpcService2 client = getClient2();
@@ -51,6 +51,7 @@
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.ObjectName;
 import javax.net.SocketFactory;
 
 import org.apache.commons.logging.Log;
@@ -978,6 +979,43 @@ public void testConnectionPing() throws Exception {
     }
   }
 
+  @Test
+  public void testPooledDirectBuffers() throws Exception {
+    Configuration configuration = new Configuration();
+    configuration.setBoolean(CommonConfigurationKeys.
+        IPC_SERVER_BUFFER_POOL_ENABLED_KEY, true);
+    configuration.setBoolean(CommonConfigurationKeys.
+        IPC_SERVER_BUFFER_POOL_DIRECT_KEY, true);
+    final Server server = new RPC.Builder(configuration)
+        .setProtocol(TestProtocol.class).setInstance(new TestImpl())
+        .setBindAddress(ADDRESS).setPort(0).setNumHandlers(2).build();
+    server.start();
+    final TestProtocol proxy = RPC.getProxy(TestProtocol.class,
+        TestProtocol.versionID, server.getListenerAddress(), configuration);
+    try {
+      // responses of several size classes, one of them too large to pool
+      final char[] chars = new char[1000];
+      Arrays.fill(chars, 'x');
+      for (int size : new int[] { 1, 3, 2048 }) {
+        final String[] values = new String[size];
+        Arrays.fill(values, new String(chars));
+        for (int i = 0; i < 3; i++) {
+          assertTrue(Arrays.equals(values, proxy.echo(values)));
+        }
+      }
+      try {
+        proxy.error();
+        fail("Expected an exception");
+      } catch (IOException e) {
+        assertTrue(e.getMessage().contains("bobo"));
+      }
+      proxy.ping();
+    } finally {
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+  }
+
   @Test
   public void testRpcMetrics() throws Exception {
     Configuration configuration = new Configuration();
@@ -986,6 +1024,8 @@ public void testRpcMetrics() throws Exception {
         RPC_METRICS_QUANTILE_ENABLE, true);
     configuration.set(CommonConfigurationKeys.
         RPC_METRICS_PERCENTILES_INTERVALS_KEY, "" + interval);
+    configuration.setBoolean(CommonConfigurationKeys.
+        IPC_SERVER_BUFFER_POOL_ENABLED_KEY, true);
     final Server server = new RPC.Builder(configuration)
         .setProtocol(TestProtocol.class).setInstance(new TestImpl())
         .setBindAddress(ADDRESS).setPort(0).setNumHandlers(5).setVerbose(true)
@@ -1004,6 +1044,9 @@ public void testRpcMetrics() throws Exception {
           getLongCounter("RpcQueueTimeNumOps", rpcMetrics) > 0);
       assertTrue("Expected non-zero rpc processing time",
           getLongCounter("RpcProcessingTimeNumOps", rpcMetrics) > 0);
+      assertTrue("Expected request and response buffers to be reused",
+          getLongCounter("RpcBufferReuses", rpcMetrics) >
+          getLongCounter("RpcBufferAllocations", rpcMetrics));
       MetricsAsserts.assertQuantileGauges("RpcQueueTime" + interval + "s",
           rpcMetrics);
       MetricsAsserts.assertQuantileGauges("RpcProcessingTime" + interval + "s",
@@ -1016,6 +1059,187 @@ public void testRpcMetrics() throws Exception {
     }
   }
 
+  @Test
+  public void testRpcDetailedMetricsQuantiles() throws Exception {
+    Configuration configuration = new Configuration();
+    final int interval = 1;
+    configuration.setBoolean(CommonConfigurationKeys.
+        RPC_METRICS_DETAILED_QUANTILE_ENABLE, true);
+    configuration.set(CommonConfigurationKeys.
+        RPC_METRICS_PERCENTILES_INTERVALS_KEY, "" + interval);
+    final Server server = new RPC.Builder(configuration)
+        .setProtocol(TestProtocol.class).setInstance(new TestImpl())
+        .setBindAddress(ADDRESS).setPort(0).setNumHandlers(5).setVerbose(true)
+        .build();
+    server.start();
+    final TestProtocol proxy = RPC.getProxy(TestProtocol.class,
+        TestProtocol.versionID, server.getListenerAddress(), configuration);
+    try {
+      for (int i=0; i<100; i++) {
+        proxy.ping();
+        proxy.echo("" + i);
+      }
+      MetricsRecordBuilder rpcDetailedMetrics =
+          getMetrics(server.getRpcDetailedMetrics().name());
+      for (String method : new String[] { "Ping", "Echo" }) {
+        MetricsAsserts.assertQuantileGauges(
+            method + "QueueTime" + interval + "s", rpcDetailedMetrics);
+        MetricsAsserts.assertQuantileGauges(
+            method + "LockWaitTime" + interval + "s", rpcDetailedMetrics);
+        MetricsAsserts.assertQuantileGauges(
+            method + "ProcessingTime" + interval + "s", rpcDetailedMetrics);
+      }
+    } finally {
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+      server.stop();
+    }
+  }
+
+  /**
+   * Verify that a server with back-off enabled rejects calls with a
+   * retriable exception, instead of blocking, while its call queue is full.
+   */
+  @Test (timeout=30000)
+  public void testServerBackoff() throws Exception {
+    final Configuration conf = new Configuration();
+    final String prefix = CommonConfigurationKeys.IPC_CALLQUEUE_NAMESPACE + ".0.";
+    conf.setBoolean(prefix + CommonConfigurationKeys.IPC_BACKOFF_ENABLE, true);
+    conf.setLong(prefix + CommonConfigurationKeys.IPC_BACKOFF_RETRY_AFTER_MS_KEY,
+        500);
+    final Server server = new RPC.Builder(conf)
+        .setProtocol(TestProtocol.class).setInstance(new TestImpl())
+        .setBindAddress(ADDRESS).setPort(0).setNumHandlers(1)
+        .setQueueSizePerHandler(1).setVerbose(true).build();
+    server.start();
+    final InetSocketAddress addr = NetUtils.getConnectAddress(server);
+    final TestProtocol proxy = RPC.getProxy(TestProtocol.class,
+        TestProtocol.versionID, addr, conf);
+    final ExecutorService executorService = Executors.newFixedThreadPool(2);
+    try {
+      // occupy the handler, then the single slot of the queue
+      final List<Future<Void>> res = new ArrayList<Future<Void>>();
+      for (int i = 0; i < 2; i++) {
+        res.add(executorService.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, InterruptedException {
+            proxy.sleep(3000);
+            return null;
+          }
+        }));
+        while (server.getCallQueueLen() != 0) {
+          Thread.sleep(10);
+        }
+        Thread.sleep(200);
+      }
+      while (server.getCallQueueLen() != 1) {
+        Thread.sleep(10);
+      }
+
+      try {
+        proxy.ping();
+        fail("Expected the call to be rejected");
+      } catch (RemoteException e) {
+        IOException unwrapped =
+            e.unwrapRemoteException(ServerTooBusyException.class);
+        assertTrue(unwrapped instanceof ServerTooBusyException);
+        assertEquals(500,
+            ((ServerTooBusyException) unwrapped).getRetryAfterMillis());
+      }
+      assertCounter("RpcCallsBackedOff", 1L,
+          getMetrics(server.getRpcMetrics().name()));
+
+      // the connection is still usable once the queue has drained
+      for (Future<Void> f : res) {
+        f.get();
+      }
+      proxy.ping();
+    } finally {
+      executorService.shutdown();
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+  }
+
+  /**
+   * Verify that a postponed response can be replaced by an error.
+   */
+  @Test (timeout=30000)
+  public void testAbortPostponedResponse() throws Exception {
+    final Configuration conf = new Configuration();
+    final Server server = new RPC.Builder(conf)
+        .setProtocol(TestProtocol.class).setInstance(new TestImpl() {
+          @Override
+          public void ping() {
+            final Server.Call call = Server.getCurCall().get();
+            call.postponeResponse();
+            new Thread() {
+              @Override
+              public void run() {
+                try {
+                  call.abortResponse(new IOException("aborted"));
+                } catch (IOException e) {
+                  LOG.warn("Failed to abort the response", e);
+                }
+              }
+            }.start();
+          }
+        }).setBindAddress(ADDRESS).setPort(0).setNumHandlers(1).build();
+    server.start();
+    final TestProtocol proxy = RPC.getProxy(TestProtocol.class,
+        TestProtocol.versionID, NetUtils.getConnectAddress(server), conf);
+    try {
+      proxy.ping();
+      fail("Expected the call to fail");
+    } catch (RemoteException e) {
+      assertTrue(e.getMessage().contains("aborted"));
+      // the connection is still usable
+      assertEquals("x", proxy.echo("x"));
+    } finally {
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+  }
+
+  /**
+   * Verify that a cost based scheduler is not charged for the time a call
+   * spent waiting for a lock.
+   */
+  @Test (timeout=30000)
+  public void testLockWaitNotCharged() throws Exception {
+    final Configuration conf = new Configuration();
+    final String prefix = CommonConfigurationKeys.IPC_CALLQUEUE_NAMESPACE + ".0.";
+    conf.set(prefix + CommonConfigurationKeys.IPC_CALLQUEUE_IMPL_KEY,
+        FairCallQueue.class.getName());
+    conf.setBoolean(prefix +
+        DecayRpcScheduler.IPC_CALLQUEUE_DECAYSCHEDULER_COST_BASED_KEY, true);
+    final Server server = new RPC.Builder(conf)
+        .setProtocol(TestProtocol.class).setInstance(new TestImpl() {
+          @Override
+          public void sleep(long delay) throws InterruptedException {
+            // the whole call is spent waiting for a lock
+            super.sleep(delay);
+            Server.addLockWaitTime(delay * 1000000L);
+          }
+        }).setBindAddress(ADDRESS).setPort(0).setNumHandlers(1).build();
+    server.start();
+    final TestProtocol proxy = RPC.getProxy(TestProtocol.class,
+        TestProtocol.versionID, NetUtils.getConnectAddress(server), conf);
+    try {
+      proxy.sleep(1000);
+      // the cost is in microseconds, and less than 100ms remain charged
+      final long cost = (Long) ManagementFactory.getPlatformMBeanServer()
+          .getAttribute(new ObjectName(
+              "Hadoop:service=ipc.0,name=DecayRpcScheduler"),
+              "TotalCallVolume");
+      assertTrue("Charged " + cost, cost > 0 && cost < 100000);
+    } finally {
+      RPC.stopProxy(proxy);
+      server.stop();
+    }
+  }
+
   /**
    *  Verify the RPC server can shutdown properly when callQueue is full.
    */
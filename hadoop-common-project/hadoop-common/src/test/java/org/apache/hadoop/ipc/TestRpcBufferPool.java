@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.ipc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestRpcBufferPool {
+
+  @Test
+  public void testSizeClasses() {
+    final RpcBufferPool pool = new RpcBufferPool(false, null);
+    assertBuffer(pool.getBuffer(0), 0, RpcBufferPool.MIN_BUFFER_SIZE);
+    assertBuffer(pool.getBuffer(1), 1, RpcBufferPool.MIN_BUFFER_SIZE);
+    assertBuffer(pool.getBuffer(1024), 1024, 1024);
+    assertBuffer(pool.getBuffer(1025), 1025, 2048);
+    assertBuffer(pool.getBuffer(RpcBufferPool.MAX_POOLED_BUFFER_SIZE),
+        RpcBufferPool.MAX_POOLED_BUFFER_SIZE,
+        RpcBufferPool.MAX_POOLED_BUFFER_SIZE);
+    final int large = RpcBufferPool.MAX_POOLED_BUFFER_SIZE + 1;
+    assertBuffer(pool.getBuffer(large), large, large);
+  }
+
+  private static void assertBuffer(ByteBuffer b, int limit, int capacity) {
+    assertEquals(0, b.position());
+    assertEquals(limit, b.limit());
+    assertEquals(capacity, b.capacity());
+  }
+
+  @Test
+  public void testReuse() {
+    final RpcBufferPool pool = new RpcBufferPool(true, null);
+    final ByteBuffer b = pool.getBuffer(3000);
+    assertTrue(b.isDirect());
+    b.putInt(1);
+    pool.putBuffer(b);
+    assertEquals(1, pool.getNumFree());
+
+    // a buffer of another size class is allocated
+    assertNotSame(b, pool.getBuffer(100));
+    final ByteBuffer reused = pool.getBuffer(2049);
+    assertSame(b, reused);
+    assertEquals(0, reused.position());
+    assertEquals(2049, reused.limit());
+    assertEquals(0, pool.getNumFree());
+
+    // buffers which did not come from the pool are not pooled
+    pool.putBuffer(ByteBuffer.allocate(4096));
+    pool.putBuffer(ByteBuffer.allocateDirect(3000));
+    pool.putBuffer(pool.getBuffer(RpcBufferPool.MAX_POOLED_BUFFER_SIZE + 1));
+    assertEquals(0, pool.getNumFree());
+  }
+
+  @Test
+  public void testBoundedFreeBuffers() {
+    final RpcBufferPool pool = new RpcBufferPool(false, null);
+    final int size = RpcBufferPool.MAX_POOLED_BUFFER_SIZE;
+    final int max = RpcBufferPool.MAX_POOLED_BYTES_PER_SIZE / size;
+    final ByteBuffer[] buffers = new ByteBuffer[max + 1];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.getBuffer(size);
+    }
+    for (ByteBuffer b : buffers) {
+      pool.putBuffer(b);
+    }
+    assertEquals(max, pool.getNumFree());
+    assertFalse(pool.isDirect());
+  }
+}
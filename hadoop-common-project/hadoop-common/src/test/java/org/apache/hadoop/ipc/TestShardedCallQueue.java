@@ -0,0 +1,284 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.ipc;
+
+import static org.apache.hadoop.ipc.FairCallQueue.IPC_CALLQUEUE_PRIORITY_LEVELS_KEY;
+import static org.apache.hadoop.ipc.ShardedCallQueue.IPC_CALLQUEUE_SHARDS_KEY;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.mockito.Matchers;
+
+public class TestShardedCallQueue extends TestCase {
+  private ShardedCallQueue<Schedulable> scq;
+
+  private Schedulable mockCall(String id) {
+    Schedulable mockCall = mock(Schedulable.class);
+    UserGroupInformation ugi = mock(UserGroupInformation.class);
+
+    when(ugi.getUserName()).thenReturn(id);
+    when(mockCall.getUserGroupInformation()).thenReturn(ugi);
+
+    return mockCall;
+  }
+
+  private static RpcScheduler levelScheduler(int level) {
+    RpcScheduler sched = mock(RpcScheduler.class);
+    when(sched.getPriorityLevel(Matchers.<Schedulable>any())).thenReturn(level);
+    return sched;
+  }
+
+  public void setUp() {
+    Configuration conf = new Configuration();
+    conf.setInt("ns." + IPC_CALLQUEUE_PRIORITY_LEVELS_KEY, 2);
+    conf.setInt("ns." + IPC_CALLQUEUE_SHARDS_KEY, 2);
+
+    // each level holds 3 calls in each of the 2 shards
+    scq = new ShardedCallQueue<Schedulable>(6, "ns", conf);
+  }
+
+  public void testPollReturnsNullWhenEmpty() {
+    assertNull(scq.poll());
+    assertNull(scq.peek());
+  }
+
+  public void testOfferFailsWhenFull() throws InterruptedException {
+    scq.setScheduler(levelScheduler(0));
+    for (int i = 0; i < 6; i++) {
+      assertTrue(scq.offer(mockCall("c")));
+    }
+    assertFalse(scq.offer(mockCall("c")));
+    assertFalse(scq.offer(mockCall("c"), 10, TimeUnit.MILLISECONDS));
+    assertEquals(6, scq.size());
+    assertEquals(6, scq.remainingCapacity());
+  }
+
+  public void testPutOverflows() throws InterruptedException {
+    scq.setScheduler(levelScheduler(0));
+    for (int i = 0; i < 8; i++) {
+      scq.put(mockCall("c"));
+    }
+    assertEquals(8, scq.size());
+    assertEquals(6, scq.getQueueSizes()[0]);
+    assertEquals(2, scq.getQueueSizes()[1]);
+    assertEquals(2, scq.getOverflowedCalls()[0]);
+  }
+
+  public void testStealsHigherPriorityFirst() throws InterruptedException {
+    // fill both shards with low priority calls, then add a high priority one
+    scq.setScheduler(levelScheduler(1));
+    final List<Schedulable> low = new ArrayList<Schedulable>();
+    for (int i = 0; i < 4; i++) {
+      Schedulable call = mockCall("low");
+      low.add(call);
+      scq.put(call);
+    }
+    scq.setScheduler(levelScheduler(0));
+    final Schedulable high = mockCall("high");
+    scq.put(high);
+
+    // a thread which has not taken any calls yet drains the whole queue
+    final List<Schedulable> taken = new ArrayList<Schedulable>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        Schedulable call;
+        while ((call = scq.poll()) != null) {
+          taken.add(call);
+        }
+      }
+    };
+    t.start();
+    t.join();
+
+    assertEquals(5, taken.size());
+    assertTrue(taken.containsAll(low));
+    assertTrue(taken.contains(high));
+    assertEquals(0, scq.size());
+  }
+
+  public void testPollsLevelOverAllShardsFirst() throws Exception {
+    // this thread takes the first shard as its home, so the next thread
+    // taking calls has the second
+    assertNull(scq.poll());
+
+    // the calls go to the shards in turn, the low priority one after the
+    // high priority one
+    scq.setScheduler(levelScheduler(0));
+    final Schedulable high = mockCall("high");
+    scq.put(high);
+    scq.setScheduler(levelScheduler(1));
+    final Schedulable low = mockCall("low");
+    scq.put(low);
+    assertEquals(1, scq.getShardSizes()[0]);
+    assertEquals(1, scq.getShardSizes()[1]);
+
+    // the high priority call is taken before the call in the home shard
+    final List<Schedulable> taken = new ArrayList<Schedulable>();
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        Schedulable call;
+        while ((call = scq.poll()) != null) {
+          taken.add(call);
+        }
+      }
+    };
+    t.start();
+    t.join();
+    assertEquals(2, taken.size());
+    assertSame(high, taken.get(0));
+    assertSame(low, taken.get(1));
+  }
+
+  public void testMXBean() throws Exception {
+    scq.setScheduler(levelScheduler(1));
+    for (int i = 0; i < 3; i++) {
+      scq.put(mockCall("c"));
+    }
+    final ObjectName name =
+        new ObjectName("Hadoop:service=ns,name=ShardedCallQueue");
+    final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+    final int[] shardSizes = (int[]) mbs.getAttribute(name, "ShardSizes");
+    assertEquals(2, shardSizes.length);
+    assertEquals(3, shardSizes[0] + shardSizes[1]);
+    final int[] queueSizes = (int[]) mbs.getAttribute(name, "QueueSizes");
+    assertEquals(0, queueSizes[0]);
+    assertEquals(3, queueSizes[1]);
+  }
+
+  public void testTakeBlocksUntilPut() throws InterruptedException {
+    final CountDownLatch taken = new CountDownLatch(1);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          scq.take();
+          taken.countDown();
+        } catch (InterruptedException e) {
+          // exit
+        }
+      }
+    };
+    t.start();
+    assertFalse(taken.await(100, TimeUnit.MILLISECONDS));
+    scq.put(mockCall("c"));
+    assertTrue(taken.await(10, TimeUnit.SECONDS));
+    t.join();
+  }
+
+  public void testPutBlocksWhenAllFull() throws InterruptedException {
+    scq.setScheduler(levelScheduler(0));
+    for (int i = 0; i < 12; i++) {
+      scq.put(mockCall("c"));
+    }
+    final CountDownLatch put = new CountDownLatch(1);
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          scq.put(mockCall("c"));
+          put.countDown();
+        } catch (InterruptedException e) {
+          // exit
+        }
+      }
+    };
+    t.start();
+    assertFalse(put.await(100, TimeUnit.MILLISECONDS));
+    assertNotNull(scq.take());
+    assertTrue(put.await(10, TimeUnit.SECONDS));
+    t.join();
+    assertEquals(12, scq.size());
+  }
+
+  public void testConcurrentPutsAndTakes() throws Exception {
+    final int numThreads = 4;
+    final int callsPerThread = 10000;
+    final Set<Schedulable> taken = new HashSet<Schedulable>();
+    final AtomicInteger numTaken = new AtomicInteger();
+    final List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < callsPerThread; j++) {
+              scq.put(mockCall("c"));
+            }
+          } catch (InterruptedException e) {
+            // exit
+          }
+        }
+      });
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < callsPerThread; j++) {
+              Schedulable call = scq.take();
+              synchronized (taken) {
+                taken.add(call);
+              }
+              numTaken.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            // exit
+          }
+        }
+      });
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join(60000);
+    }
+    assertEquals(numThreads * callsPerThread, numTaken.get());
+    assertEquals(numThreads * callsPerThread, taken.size());
+    assertEquals(0, scq.size());
+  }
+
+  public void testCallQueueManager() throws InterruptedException {
+    Configuration conf = new Configuration();
+    CallQueueManager<Schedulable> manager = new CallQueueManager<Schedulable>(
+        CallQueueManager.convertQueueClass(ShardedCallQueue.class,
+            Schedulable.class), 10, "ns", conf);
+    Schedulable call = mockCall("c");
+    manager.put(call);
+    assertEquals(1, manager.size());
+    assertEquals(call, manager.take());
+  }
+}
@@ -28,19 +28,24 @@
 import org.junit.Assert;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.ipc.ProtocolSignature;
 import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RemoteException;
 import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.ipc.VersionedProtocol;
+import org.apache.hadoop.ipc.protobuf.RpcHeaderProtos.RpcSaslProto;
 import org.apache.hadoop.net.NetUtils;
 import org.apache.hadoop.security.UserGroupInformation.AuthenticationMethod;
+import org.apache.hadoop.security.authorize.AuthorizationException;
 import org.apache.hadoop.security.authorize.DefaultImpersonationProvider;
 import org.apache.hadoop.security.authorize.ProxyUsers;
 import org.apache.hadoop.security.token.Token;
 import org.apache.hadoop.security.token.TokenInfo;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.internal.util.reflection.Whitebox;
 import org.apache.hadoop.ipc.TestSaslRPC.TestTokenSecretManager;
 import org.apache.hadoop.ipc.TestSaslRPC.TestTokenIdentifier;
 import org.apache.hadoop.ipc.TestSaslRPC.TestTokenSelector;
@@ -422,6 +427,93 @@ public String run() throws IOException {
     }
   }
 
+  @Test(timeout=4000)
+  public void testMultiplexedProxyUsers() throws Exception {
+    final Configuration conf = new Configuration();
+    configureSuperUserIPAddresses(conf, REAL_USER_SHORT_NAME);
+    conf.setStrings(DefaultImpersonationProvider.getTestProvider().
+            getProxySuperuserGroupConfKey(REAL_USER_SHORT_NAME),
+        "group1");
+    conf.setBoolean(
+        CommonConfigurationKeys.IPC_CLIENT_MULTIPLEX_PROXY_USERS_KEY, true);
+    Server server = new RPC.Builder(conf).setProtocol(TestProtocol.class)
+        .setInstance(new TestImpl()).setBindAddress(ADDRESS).setPort(0)
+        .setNumHandlers(2).setVerbose(false).build();
+
+    refreshConf(conf);
+    try {
+      server.start();
+
+      UserGroupInformation realUserUgi = UserGroupInformation
+          .createRemoteUser(REAL_USER_NAME);
+      checkRemoteUgi(server, realUserUgi, conf);
+      UserGroupInformation proxyUserUgi = UserGroupInformation
+          .createProxyUserForTesting(PROXY_USER_NAME, realUserUgi, GROUP_NAMES);
+      checkRemoteUgi(server, proxyUserUgi, conf);
+      checkRemoteUgi(server, UserGroupInformation.createProxyUserForTesting(
+          "proxyUser2", realUserUgi, GROUP_NAMES), conf);
+      // the calls of every user went over the connection of the real user
+      Assert.assertEquals(1, server.getNumOpenConnections());
+
+      // a proxy user which is not authorized fails its own calls only
+      try {
+        checkRemoteUgi(server, UserGroupInformation.createProxyUserForTesting(
+            "proxyUser3", realUserUgi, new String[] { "group3" }), conf);
+        Assert.fail("The RPC must have failed");
+      } catch (RemoteException e) {
+        Assert.assertEquals(AuthorizationException.class.getName(),
+            e.getClassName());
+      }
+      checkRemoteUgi(server, proxyUserUgi, conf);
+      Assert.assertEquals(1, server.getNumOpenConnections());
+    } finally {
+      server.stop();
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+  }
+
+  @Test(timeout=4000)
+  public void testMultiplexedProxyUsersWithoutServerSupport()
+      throws Exception {
+    final Configuration conf = new Configuration();
+    configureSuperUserIPAddresses(conf, REAL_USER_SHORT_NAME);
+    conf.setStrings(DefaultImpersonationProvider.getTestProvider().
+            getProxySuperuserGroupConfKey(REAL_USER_SHORT_NAME),
+        "group1");
+    conf.setBoolean(
+        CommonConfigurationKeys.IPC_CLIENT_MULTIPLEX_PROXY_USERS_KEY, true);
+    Server server = new RPC.Builder(conf).setProtocol(TestProtocol.class)
+        .setInstance(new TestImpl()).setBindAddress(ADDRESS).setPort(0)
+        .setNumHandlers(2).setVerbose(false).build();
+    // behave like a server which does not know effective users
+    Whitebox.setInternalState(server, "negotiateResponse",
+        RpcSaslProto.newBuilder((RpcSaslProto) Whitebox.getInternalState(
+            server, "negotiateResponse")).clearEffectiveUserSupported()
+            .build());
+
+    refreshConf(conf);
+    try {
+      server.start();
+
+      UserGroupInformation realUserUgi = UserGroupInformation
+          .createRemoteUser(REAL_USER_NAME);
+      checkRemoteUgi(server, realUserUgi, conf);
+      checkRemoteUgi(server, UserGroupInformation.createProxyUserForTesting(
+          PROXY_USER_NAME, realUserUgi, GROUP_NAMES), conf);
+      checkRemoteUgi(server, UserGroupInformation.createProxyUserForTesting(
+          "proxyUser2", realUserUgi, GROUP_NAMES), conf);
+      // each proxy user fell back to a connection of its own
+      Assert.assertEquals(3, server.getNumOpenConnections());
+    } finally {
+      server.stop();
+      if (proxy != null) {
+        RPC.stopProxy(proxy);
+      }
+    }
+  }
+
   /*
    *  Tests the scenario when token authorization is used.
    *  The server sees only the the owner of the token as the
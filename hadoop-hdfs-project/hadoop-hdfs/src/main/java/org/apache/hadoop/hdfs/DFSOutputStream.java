@@ -283,8 +283,10 @@ void writeChecksum(byte[] inarray, int off, int len) {
     
     /**
      * Write the full packet, including the header, to the given output stream.
+     *
+     * @return the number of bytes written
      */
-    void writeTo(DataOutputStream stm) throws IOException {
+    int writeTo(DataOutputStream stm) throws IOException {
       final int dataLen = dataPos - dataStart;
       final int checksumLen = checksumPos - checksumStart;
       final int pktLen = HdfsConstants.BYTES_IN_INTEGER + dataLen + checksumLen;
@@ -324,6 +326,7 @@ void writeTo(DataOutputStream stm) throws IOException {
       if (DFSClientFaultInjector.get().uncorruptPacket()) {
         buf[headerStart+header.getSerializedSize() + checksumLen + dataLen-1] ^= 0xff;
       }
+      return header.getSerializedSize() + checksumLen + dataLen;
     }
 
     private void releaseBuffer(ByteArrayManager bam) {
@@ -625,11 +628,12 @@ public void run() {
           
           // send the packet
           synchronized (dataQueue) {
-            // move packet from dataQueue to ackQueue
+            // move packet from dataQueue to ackQueue. This does not change
+            // the number of queued packets nor the acked seqno, which are all
+            // that the other threads wait for, so there is no one to notify.
             if (!one.isHeartbeatPacket()) {
               dataQueue.removeFirst();
               ackQueue.addLast(one);
-              dataQueue.notifyAll();
             }
           }
 
@@ -640,8 +644,21 @@ public void run() {
 
           // write out data to remote datanode
           try {
-            one.writeTo(blockStream);
-            blockStream.flush();   
+            // Send the packets already queued behind this one before the
+            // flush, so that small packets do not cost a write each. The
+            // headers and checksums count against the limit with the data.
+            long bytesInWrite = one.writeTo(blockStream);
+            Packet next;
+            while (bytesInWrite < dfsClient.getConf().writePacketSize
+                && (next = nextPacketToSendWith(one)) != null) {
+              if (DFSClient.LOG.isDebugEnabled()) {
+                DFSClient.LOG.debug("DataStreamer block " + block +
+                    " sending packet " + next);
+              }
+              bytesInWrite += next.writeTo(blockStream);
+              one = next;
+            }
+            blockStream.flush();
           } catch (IOException e) {
             // HDFS-3398 treat primary DN is down since client is unable to 
             // write to primary DN. If a failed or restarting node has already
@@ -718,6 +735,33 @@ private void closeInternal() {
       }
     }
 
+    /**
+     * Move the packet queued after the given one to the ackQueue, if it can be
+     * sent in the same write: the given packet has to be a data packet, and
+     * the next one neither the last packet in block, which waits for the
+     * others to be acked, nor past the end of the block.
+     *
+     * @return the packet to send, or null if there is none
+     */
+    private Packet nextPacketToSendWith(Packet prev) {
+      if (prev.isHeartbeatPacket() || prev.lastPacketInBlock) {
+        return null;
+      }
+      synchronized (dataQueue) {
+        if (streamerClosed || hasError || dataQueue.isEmpty()) {
+          return null;
+        }
+        Packet next = dataQueue.getFirst();
+        if (next.lastPacketInBlock
+            || next.getLastByteOffsetBlock() > blockSize) {
+          return null;
+        }
+        dataQueue.removeFirst();
+        ackQueue.addLast(next);
+        return next;
+      }
+    }
+
     /*
      * close both streamer and DFSOutputStream, should be called only 
      * by an external thread and only after all data to be sent has 
@@ -1414,8 +1458,10 @@ private boolean createBlockOutputStream(DatanodeInfo[] nodes,
             unbufOut, unbufIn, dfsClient, accessToken, nodes[0]);
           unbufOut = saslStreams.out;
           unbufIn = saslStreams.in;
+          // Buffer up to a full packet, so that consecutive smaller packets
+          // are coalesced while full packets are written directly.
           out = new DataOutputStream(new BufferedOutputStream(unbufOut,
-              HdfsConstants.SMALL_BUFFER_SIZE));
+              dfsClient.getConf().writePacketSize));
           blockReplyStream = new DataInputStream(unbufIn);
   
           //
@@ -22,6 +22,7 @@
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 import org.apache.hadoop.net.unix.DomainSocket;
 
@@ -126,6 +127,11 @@ public DomainSocket getDomainSocket() {
     return null;
   }
 
+  @Override
+  public SocketChannel getSocketChannel() {
+    return null;
+  }
+
   @Override
   public boolean hasSecureChannel() {
     return false;
@@ -21,6 +21,7 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 import org.apache.hadoop.net.unix.DomainSocket;
 import org.apache.hadoop.classification.InterfaceAudience;
@@ -115,6 +116,11 @@ public DomainSocket getDomainSocket() {
     return socket;
   }
 
+  @Override
+  public SocketChannel getSocketChannel() {
+    return null;
+  }
+
   @Override
   public boolean hasSecureChannel() {
     //
@@ -25,6 +25,7 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 /**
  * Represents a peer that we communicate with by using an encrypted
@@ -135,6 +136,12 @@ public DomainSocket getDomainSocket() {
     return enclosedPeer.getDomainSocket();
   }
 
+  @Override
+  public SocketChannel getSocketChannel() {
+    // the streams of the enclosed peer are wrapped
+    return null;
+  }
+
   @Override
   public boolean hasSecureChannel() {
     return true;
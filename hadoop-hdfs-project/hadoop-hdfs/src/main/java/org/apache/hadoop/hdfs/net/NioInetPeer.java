@@ -22,6 +22,7 @@
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 import org.apache.hadoop.net.SocketInputStream;
 import org.apache.hadoop.net.SocketOutputStream;
@@ -129,6 +130,11 @@ public DomainSocket getDomainSocket() {
     return null;
   }
 
+  @Override
+  public SocketChannel getSocketChannel() {
+    return socket.getChannel();
+  }
+
   @Override
   public boolean hasSecureChannel() {
     return false;
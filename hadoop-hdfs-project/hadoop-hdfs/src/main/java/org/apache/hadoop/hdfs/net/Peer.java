@@ -22,6 +22,7 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.net.unix.DomainSocket;
 
@@ -112,6 +113,12 @@ public interface Peer extends Closeable {
    *                       peer, or null if there is none.
    */
   public DomainSocket getDomainSocket();
+
+  /**
+   * @return               The SocketChannel associated with the current
+   *                       peer, or null if there is none.
+   */
+  public SocketChannel getSocketChannel();
   
   /**
    * Return true if the channel is secure.
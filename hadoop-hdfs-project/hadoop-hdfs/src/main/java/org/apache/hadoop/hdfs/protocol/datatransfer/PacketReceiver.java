@@ -23,6 +23,7 @@
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -109,6 +110,17 @@ public void receiveNextPacket(InputStream in) throws IOException {
     doRead(null, in);
   }
 
+  /**
+   * Reads the next packet from the given channel, after any bytes of it
+   * which are already buffered by the given stream over that channel.
+   *
+   * @see #receiveNextPacket(ReadableByteChannel)
+   */
+  public void receiveNextPacket(InputStream bufferedIn, ReadableByteChannel in)
+      throws IOException {
+    doRead(in, bufferedIn);
+  }
+
   private void doRead(ReadableByteChannel ch, InputStream in)
       throws IOException {
     // Each packet looks like:
@@ -195,17 +207,36 @@ private void doRead(ReadableByteChannel ch, InputStream in)
    * Rewrite the last-read packet on the wire to the given output stream.
    */
   public void mirrorPacketTo(DataOutputStream mirrorOut) throws IOException {
-    Preconditions.checkState(!useDirectBuffers,
-        "Currently only supported for non-direct buffers");
+    if (!curPacketBuf.hasArray()) {
+      byte[] packet = new byte[curPacketBuf.remaining()];
+      curPacketBuf.duplicate().get(packet);
+      mirrorOut.write(packet);
+      return;
+    }
     mirrorOut.write(curPacketBuf.array(),
         curPacketBuf.arrayOffset(),
         curPacketBuf.remaining());
   }
 
+  /**
+   * Rewrite the last-read packet on the wire to the given channel, without
+   * copying it.
+   */
+  public void mirrorPacketTo(WritableByteChannel mirrorOut)
+      throws IOException {
+    ByteBuffer packet = curPacketBuf.duplicate();
+    while (packet.remaining() > 0) {
+      mirrorOut.write(packet);
+    }
+  }
+
   
   private static void doReadFully(ReadableByteChannel ch, InputStream in,
       ByteBuffer buf) throws IOException {
     if (ch != null) {
+      if (in != null) {
+        readBuffered(in, buf);
+      }
       readChannelFully(ch, buf);
     } else {
       Preconditions.checkState(!buf.isDirect(),
@@ -217,6 +248,25 @@ private static void doReadFully(ReadableByteChannel ch, InputStream in,
     }
   }
 
+  /**
+   * Read the bytes which the given stream has buffered, without blocking.
+   */
+  private static void readBuffered(InputStream in, ByteBuffer buf)
+      throws IOException {
+    int n = Math.min(in.available(), buf.remaining());
+    if (n <= 0) {
+      return;
+    }
+    if (buf.hasArray()) {
+      IOUtils.readFully(in, buf.array(), buf.arrayOffset() + buf.position(), n);
+      buf.position(buf.position() + n);
+    } else {
+      byte[] buffered = new byte[n];
+      IOUtils.readFully(in, buffered, 0, n);
+      buf.put(buffered);
+    }
+  }
+
   private void reslicePacket(
       int headerLen, int checksumsLen, int dataLen) {
     // Packet structure (refer to doRead() for details):
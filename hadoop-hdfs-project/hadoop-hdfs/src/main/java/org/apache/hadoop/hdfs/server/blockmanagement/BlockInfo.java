@@ -180,6 +180,25 @@ private int ensureCapacity(int num) {
     return last;
   }
 
+  /**
+   * Shrink the triplets array if it has grown beyond both the number of
+   * storages currently holding the block and the given replication factor,
+   * e.g. after the replication of the file was lowered or extra replicas
+   * created during decommissioning were removed.
+   * @return true if the array was reallocated.
+   */
+  boolean trimCapacity(int replication) {
+    assert this.triplets != null : "BlockInfo is not initialized";
+    int keep = Math.max(numNodes(), Math.max(replication, 1));
+    if (triplets.length <= keep*3) {
+      return false;
+    }
+    Object[] old = triplets;
+    triplets = new Object[keep*3];
+    System.arraycopy(old, 0, triplets, 0, keep*3);
+    return true;
+  }
+
   /**
    * Count the number of data-nodes the block belongs to.
    */
@@ -322,6 +341,31 @@ BlockInfo listRemove(BlockInfo head, DatanodeStorageInfo storage) {
     return head;
   }
 
+  /**
+   * Put the given block in place of this block in the list of blocks
+   * related to the specified DatanodeStorageInfo. The given block must
+   * already have the storage but not be in its list.
+   * @return the new head of the list.
+   */
+  BlockInfo listReplace(BlockInfo head, DatanodeStorageInfo storage,
+      BlockInfo newBlock) {
+    int dnIndex = this.findStorageInfo(storage);
+    int newIndex = newBlock.findStorageInfo(storage);
+    assert dnIndex >= 0 && newIndex >= 0 : "Data node is not found";
+    assert newBlock.getPrevious(newIndex) == null
+        && newBlock.getNext(newIndex) == null :
+            "Block is already in the list and cannot be inserted.";
+    BlockInfo next = this.setNext(dnIndex, null);
+    BlockInfo prev = this.setPrevious(dnIndex, null);
+    newBlock.setNext(newIndex, next);
+    newBlock.setPrevious(newIndex, prev);
+    if (prev != null)
+      prev.setNext(prev.findStorageInfo(storage), newBlock);
+    if (next != null)
+      next.setPrevious(next.findStorageInfo(storage), newBlock);
+    return this == head ? newBlock : head;
+  }
+
   /**
    * Remove this block from the list of blocks related to the specified
    * DatanodeDescriptor. Insert it into the head of the list of blocks.
@@ -35,6 +35,10 @@
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
@@ -90,7 +94,10 @@
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Keeps information related to the blocks stored in the Hadoop cluster.
@@ -101,6 +108,9 @@ public class BlockManager {
   static final Log LOG = LogFactory.getLog(BlockManager.class);
   public static final Log blockLog = NameNode.blockStateChangeLog;
 
+  /** Smallest share of the heap that the blocks map table may be given. */
+  private static final float MIN_BLOCKS_MAP_PERCENT = 0.001f;
+
   private static final String QUEUE_REASON_CORRUPT_STATE =
     "it has the wrong state or generation stamp";
 
@@ -172,6 +182,12 @@ public int getPendingDataNodeMessageCount() {
 
   /** Replication thread. */
   final Daemon replicationThread = new Daemon(new ReplicationMonitor());
+
+  /**
+   * Chooses the targets of replication work in parallel, or null if they are
+   * chosen by the replication monitor itself.
+   */
+  private final ExecutorService chooseTargetExecutor;
   
   /** Store blocks -> datanodedescriptor(s) map of corrupt replicas */
   final CorruptReplicasMap corruptReplicas = new CorruptReplicasMap();
@@ -254,6 +270,12 @@ public int getPendingDataNodeMessageCount() {
    * processed again after aquiring lock again.
    */
   private int numBlocksPerIteration;
+  /**
+   * Number of reported blocks to process from a full block report while
+   * holding the namesystem write lock. The lock is released and reacquired
+   * before the next batch of the same report is processed.
+   */
+  private final int numBlocksPerReportIteration;
   /**
    * Progress of the Replication queues initialisation.
    */
@@ -278,9 +300,17 @@ public BlockManager(final Namesystem namesystem, final FSClusterStats stats,
     invalidateBlocks = new InvalidateBlocks(
         datanodeManager.blockInvalidateLimit, startupDelayBlockDeletionInMs);
 
-    // Compute the map capacity by allocating 2% of total memory
+    // Compute the map capacity by allocating 2% of total memory by default
+    float blocksMapPercent = conf.getFloat(
+        DFSConfigKeys.DFS_NAMENODE_BLOCKS_MAP_ALLOCATION_PERCENT,
+        DFSConfigKeys.DFS_NAMENODE_BLOCKS_MAP_ALLOCATION_PERCENT_DEFAULT);
+    if (blocksMapPercent < MIN_BLOCKS_MAP_PERCENT) {
+      LOG.info("Using minimum value " + MIN_BLOCKS_MAP_PERCENT + " for "
+          + DFSConfigKeys.DFS_NAMENODE_BLOCKS_MAP_ALLOCATION_PERCENT);
+      blocksMapPercent = MIN_BLOCKS_MAP_PERCENT;
+    }
     blocksMap = new BlocksMap(
-        LightWeightGSet.computeCapacity(2.0, "BlocksMap"));
+        LightWeightGSet.computeCapacity(blocksMapPercent, "BlocksMap"));
     blockplacement = BlockPlacementPolicy.getInstance(
         conf, stats, datanodeManager.getNetworkTopology(), 
         datanodeManager.getHost2DatanodeMap());
@@ -346,6 +376,18 @@ public BlockManager(final Namesystem namesystem, final FSClusterStats stats,
     this.numBlocksPerIteration = conf.getInt(
         DFSConfigKeys.DFS_BLOCK_MISREPLICATION_PROCESSING_LIMIT,
         DFSConfigKeys.DFS_BLOCK_MISREPLICATION_PROCESSING_LIMIT_DEFAULT);
+    final int chooseTargetThreads = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY,
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_DEFAULT);
+    this.chooseTargetExecutor = chooseTargetThreads <= 1 ? null
+        : Executors.newFixedThreadPool(chooseTargetThreads,
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("ReplicationTargetChooser-%d").build());
+    this.numBlocksPerReportIteration = conf.getInt(
+        DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT,
+        DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT_DEFAULT);
+    Preconditions.checkArgument(numBlocksPerReportIteration > 0,
+        DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT + " must be positive");
     
     LOG.info("defaultReplication         = " + defaultReplication);
     LOG.info("maxReplication             = " + maxReplication);
@@ -355,6 +397,8 @@ public BlockManager(final Namesystem namesystem, final FSClusterStats stats,
     LOG.info("replicationRecheckInterval = " + replicationRecheckInterval);
     LOG.info("encryptDataTransfer        = " + encryptDataTransfer);
     LOG.info("maxNumBlocksToLog          = " + maxNumBlocksToLog);
+    LOG.info("blockReportProcessingLimit = " + numBlocksPerReportIteration);
+    LOG.info("chooseTargetThreads        = " + chooseTargetThreads);
   }
 
   private static BlockTokenSecretManager createBlockTokenSecretManager(
@@ -456,6 +500,9 @@ public void close() {
       replicationThread.join(3000);
     } catch (InterruptedException ie) {
     }
+    if (chooseTargetExecutor != null) {
+      chooseTargetExecutor.shutdownNow();
+    }
     datanodeManager.close();
     pendingReplications.stop();
     blocksMap.close();
@@ -1400,19 +1447,30 @@ int computeReplicationWorkForBlocks(List<List<Block>> blocksToReplicate) {
       namesystem.writeUnlock();
     }
 
-    final Set<Node> excludedNodes = new HashSet<Node>();
-    for(ReplicationWork rw : work){
-      // Exclude all of the containing nodes from being targets.
-      // This list includes decommissioning or corrupt nodes.
-      excludedNodes.clear();
-      for (DatanodeDescriptor dn : rw.containingNodes) {
-        excludedNodes.add(dn);
+    // choose replication targets: NOT HOLDING THE GLOBAL LOCK
+    if (chooseTargetExecutor == null || work.size() <= 1) {
+      for(ReplicationWork rw : work){
+        chooseTargets(rw);
+      }
+    } else {
+      final List<Future<?>> futures = new ArrayList<Future<?>>(work.size());
+      for (final ReplicationWork rw : work) {
+        futures.add(chooseTargetExecutor.submit(new Runnable() {
+          @Override
+          public void run() {
+            chooseTargets(rw);
+          }
+        }));
+      }
+      // Wait for all of them, even if interrupted, so that no target is
+      // still being chosen once the lock is reacquired below.
+      for (Future<?> f : futures) {
+        try {
+          Uninterruptibles.getUninterruptibly(f);
+        } catch (ExecutionException e) {
+          throw Throwables.propagate(e.getCause());
+        }
       }
-
-      // choose replication targets: NOT HOLDING THE GLOBAL LOCK
-      // It is costly to extract the filename for which chooseTargets is called,
-      // so for now we pass in the block collection itself.
-      rw.chooseTargets(blockplacement, storagePolicySuite, excludedNodes);
     }
 
     namesystem.writeLock();
@@ -1791,7 +1849,8 @@ public boolean processReport(final DatanodeID nodeID,
       final DatanodeStorage storage,
       final BlockListAsLongs newReport, BlockReportContext context,
       boolean lastStorageInRpc) throws IOException {
-    namesystem.writeLock();
+    final BlockReportLock lock = new BlockReportLock();
+    lock.lock();
     final long startTime = Time.now(); //after acquiring write lock
     final long endTime;
     DatanodeDescriptor node;
@@ -1820,12 +1879,26 @@ public boolean processReport(final DatanodeID nodeID,
         return !node.hasStaleStorages();
       }
 
-      if (storageInfo.getBlockReportCount() == 0) {
-        // The first block report can be processed a lot more efficiently than
-        // ordinary block reports.  This shortens restart times.
-        processFirstBlockReport(storageInfo, newReport);
-      } else {
-        invalidatedBlocks = processReport(storageInfo, newReport);
+      if (storageInfo.isBlockReportInProgress()) {
+        // The lock was released in the middle of an earlier report for this
+        // storage, e.g. one resent by the DataNode after an RPC timeout.
+        blockLog.info("BLOCK* processReport: discarded block report from "
+            + storage + " on " + nodeID + " because an earlier report from"
+            + " the same storage is still being processed");
+        return !node.hasStaleStorages();
+      }
+
+      storageInfo.startBlockReport();
+      try {
+        if (storageInfo.getBlockReportCount() == 0) {
+          // The first block report can be processed a lot more efficiently
+          // than ordinary block reports.  This shortens restart times.
+          processFirstBlockReport(storageInfo, newReport, lock);
+        } else {
+          invalidatedBlocks = processReport(storageInfo, newReport, lock);
+        }
+      } finally {
+        storageInfo.endBlockReport();
       }
       
       // Now that we have an up-to-date block report, we know that any
@@ -1865,7 +1938,7 @@ public boolean processReport(final DatanodeID nodeID,
       }
     } finally {
       endTime = Time.now();
-      namesystem.writeUnlock();
+      lock.unlock();
     }
 
     if (invalidatedBlocks != null) {
@@ -1880,11 +1953,13 @@ public boolean processReport(final DatanodeID nodeID,
     final NameNodeMetrics metrics = NameNode.getNameNodeMetrics();
     if (metrics != null) {
       metrics.addBlockReport((int) (endTime - startTime));
+      metrics.addBlockReportLockHold(lock.getHeldTime());
     }
     blockLog.info("BLOCK* processReport: from storage " + storage.getStorageID()
         + " node " + nodeID + ", blocks: " + newReport.getNumberOfBlocks()
         + ", hasStaleStorages: " + node.hasStaleStorages()
-        + ", processing time: " + (endTime - startTime) + " msecs");
+        + ", processing time: " + (endTime - startTime) + " msecs"
+        + ", write lock held: " + lock.getHeldTime() + " msecs");
     return !node.hasStaleStorages();
   }
 
@@ -1944,45 +2019,114 @@ private void rescanPostponedMisreplicatedBlocks() {
     }
   }
   
+  /**
+   * The namesystem write lock as held by a single block report. Processing a
+   * large report may release and reacquire it between batches of blocks; the
+   * total time it was held is recorded for the metrics.
+   */
+  private class BlockReportLock {
+    private long acquiredTime;
+    private long heldTime = 0;
+
+    void lock() {
+      namesystem.writeLock();
+      acquiredTime = Time.monotonicNow();
+    }
+
+    void unlock() {
+      heldTime += Time.monotonicNow() - acquiredTime;
+      namesystem.writeUnlock();
+    }
+
+    /** @return the total time the lock was held, in milliseconds. */
+    long getHeldTime() {
+      return heldTime;
+    }
+  }
+
+  /**
+   * Let other operations acquire the write lock between two batches of a
+   * block report, and check afterwards that the reporting storage has not
+   * been removed in the meantime.
+   */
+  private void yieldBlockReportLock(BlockReportLock lock,
+      DatanodeStorageInfo storageInfo) throws IOException {
+    lock.unlock();
+    lock.lock();
+    final DatanodeDescriptor node = storageInfo.getDatanodeDescriptor();
+    if (!node.isAlive
+        || datanodeManager.getDatanode(node.getDatanodeUuid()) != node
+        || node.getStorageInfo(storageInfo.getStorageID()) != storageInfo) {
+      throw new IOException("ProcessReport: " + storageInfo + " on " + node
+          + " was removed while its block report was being processed");
+    }
+  }
+
   private Collection<Block> processReport(
       final DatanodeStorageInfo storageInfo,
-      final BlockListAsLongs report) throws IOException {
+      final BlockListAsLongs report,
+      final BlockReportLock lock) throws IOException {
     // Normal case:
     // Modify the (block-->datanode) map, according to the difference
     // between the old and new block report.
     //
-    Collection<BlockInfo> toAdd = new LinkedList<BlockInfo>();
-    Collection<Block> toRemove = new TreeSet<Block>();
+    // The report is processed in batches, releasing the write lock after
+    // each one. Replicas which are reported are moved to the head of the
+    // storage's block list, in front of the first unreported replica which
+    // the storage keeps track of. Replicas added to the storage by other
+    // operations while the lock is released are inserted at the head of the
+    // list too, and so are never mistaken for unreported ones.
     Collection<Block> toInvalidate = new LinkedList<Block>();
-    Collection<BlockToMarkCorrupt> toCorrupt = new LinkedList<BlockToMarkCorrupt>();
-    Collection<StatefulBlockInfo> toUC = new LinkedList<StatefulBlockInfo>();
-    reportDiff(storageInfo, report,
-        toAdd, toRemove, toInvalidate, toCorrupt, toUC);
-   
-    DatanodeDescriptor node = storageInfo.getDatanodeDescriptor();
-    // Process the blocks on each queue
-    for (StatefulBlockInfo b : toUC) { 
-      addStoredBlockUnderConstruction(b, storageInfo);
-    }
+    Collection<Block> toRemove = new TreeSet<Block>();
+    final DatanodeDescriptor node = storageInfo.getDatanodeDescriptor();
+
+    int numBlocksLogged = 0;
+    BlockReportIterator itBR = (report == null ? new BlockListAsLongs()
+        : report).getBlockReportIterator();
+    do {
+      Collection<BlockInfo> toAdd = new LinkedList<BlockInfo>();
+      Collection<Block> toInvalidateBatch = new LinkedList<Block>();
+      Collection<BlockToMarkCorrupt> toCorrupt =
+          new LinkedList<BlockToMarkCorrupt>();
+      Collection<StatefulBlockInfo> toUC =
+          new LinkedList<StatefulBlockInfo>();
+      reportDiff(storageInfo, itBR, numBlocksPerReportIteration,
+          toAdd, toInvalidateBatch, toCorrupt, toUC);
+
+      // Process the blocks on each queue
+      for (StatefulBlockInfo b : toUC) { 
+        addStoredBlockUnderConstruction(b, storageInfo);
+      }
+      for (BlockInfo b : toAdd) {
+        addStoredBlock(b, storageInfo, null,
+            numBlocksLogged < maxNumBlocksToLog);
+        numBlocksLogged++;
+      }
+      for (Block b : toInvalidateBatch) {
+        addToInvalidates(b, node);
+      }
+      for (BlockToMarkCorrupt b : toCorrupt) {
+        markBlockAsCorrupt(b, storageInfo, node);
+      }
+      toInvalidate.addAll(toInvalidateBatch);
+
+      if (itBR.hasNext()) {
+        yieldBlockReportLock(lock, storageInfo);
+      }
+    } while (itBR.hasNext());
+
+    // collect blocks that have not been reported
+    Iterator<BlockInfo> it = storageInfo.getUnreportedBlockIterator();
+    while(it.hasNext())
+      toRemove.add(it.next());
+
     for (Block b : toRemove) {
       removeStoredBlock(b, node);
     }
-    int numBlocksLogged = 0;
-    for (BlockInfo b : toAdd) {
-      addStoredBlock(b, storageInfo, null, numBlocksLogged < maxNumBlocksToLog);
-      numBlocksLogged++;
-    }
     if (numBlocksLogged > maxNumBlocksToLog) {
       blockLog.info("BLOCK* processReport: logged info for " + maxNumBlocksToLog
           + " of " + numBlocksLogged + " reported.");
     }
-    for (Block b : toInvalidate) {
-      addToInvalidates(b, node);
-    }
-    for (BlockToMarkCorrupt b : toCorrupt) {
-      markBlockAsCorrupt(b, storageInfo, node);
-    }
-
     return toInvalidate;
   }
 
@@ -2040,13 +2184,19 @@ public void markBlockReplicasAsCorrupt(BlockInfo block,
    */
   private void processFirstBlockReport(
       final DatanodeStorageInfo storageInfo,
-      final BlockListAsLongs report) throws IOException {
+      final BlockListAsLongs report,
+      final BlockReportLock lock) throws IOException {
     if (report == null) return;
     assert (namesystem.hasWriteLock());
     assert (storageInfo.getBlockReportCount() == 0);
     BlockReportIterator itBR = report.getBlockReportIterator();
 
+    int processed = 0;
     while(itBR.hasNext()) {
+      if (processed++ == numBlocksPerReportIteration) {
+        yieldBlockReportLock(lock, storageInfo);
+        processed = 1;
+      }
       Block iblk = itBR.next();
       ReplicaState reportedState = itBR.getCurrentReplicaState();
       
@@ -2099,28 +2249,23 @@ private void processFirstBlockReport(
     }
   }
 
+  /**
+   * Process the next batch of at most maxBlocks replicas from a block report,
+   * moving those which are stored on the storage to the head of its block
+   * list. The storage must have started the report.
+   */
   private void reportDiff(DatanodeStorageInfo storageInfo, 
-      BlockListAsLongs newReport, 
+      BlockReportIterator itBR, int maxBlocks,
       Collection<BlockInfo> toAdd,              // add to DatanodeDescriptor
-      Collection<Block> toRemove,           // remove from DatanodeDescriptor
       Collection<Block> toInvalidate,       // should be removed from DN
       Collection<BlockToMarkCorrupt> toCorrupt, // add to corrupt replicas list
       Collection<StatefulBlockInfo> toUC) { // add to under-construction list
-
-    // place a delimiter in the list which separates blocks 
-    // that have been reported from those that have not
-    BlockInfo delimiter = new BlockInfo(new Block(), 1);
-    boolean added = storageInfo.addBlock(delimiter);
-    assert added : "Delimiting block cannot be present in the node";
-    int headIndex = 0; //currently the delimiter is in the head of the list
+    // the head may have changed since the previous batch
+    int headIndex = storageInfo.getBlockListHeadIndex();
     int curIndex;
 
-    if (newReport == null) {
-      newReport = new BlockListAsLongs();
-    }
     // scan the report and process newly reported blocks
-    BlockReportIterator itBR = newReport.getBlockReportIterator();
-    while(itBR.hasNext()) {
+    for (int i = 0; i < maxBlocks && itBR.hasNext(); i++) {
       Block iblk = itBR.next();
       ReplicaState iState = itBR.getCurrentReplicaState();
       BlockInfo storedBlock = processReportedBlock(storageInfo,
@@ -2132,13 +2277,6 @@ private void reportDiff(DatanodeStorageInfo storageInfo,
         headIndex = storageInfo.moveBlockToHead(storedBlock, curIndex, headIndex);
       }
     }
-
-    // collect blocks that have not been reported
-    // all of them are next to the delimiter
-    Iterator<BlockInfo> it = storageInfo.new BlockIterator(delimiter.getNext(0));
-    while(it.hasNext())
-      toRemove.add(it.next());
-    storageInfo.removeBlock(delimiter);
   }
 
   /**
@@ -3336,18 +3474,21 @@ void processOverReplicatedBlocksOnReCommission(
   }
 
   /**
-   * Return true if there are any blocks on this node that have not
-   * yet reached their replication factor. Otherwise returns false.
+   * Examine blocks of a decommissioning node, and account for those that have
+   * not yet reached their replication factor in the given pass.
+   * @param it the blocks of the node to examine
+   * @param maxBlocks the maximum number of blocks to take from it
+   * @param pass the pass over the blocks of the node which the examined
+   *        blocks belong to
+   * @return the number of blocks examined
    */
-  boolean isReplicationInProgress(DatanodeDescriptor srcNode) {
-    boolean status = false;
-    boolean firstReplicationLog = true;
-    int underReplicatedBlocks = 0;
-    int decommissionOnlyReplicas = 0;
-    int underReplicatedInOpenFiles = 0;
-    final Iterator<? extends Block> it = srcNode.getBlockIterator();
-    while(it.hasNext()) {
-      final Block block = it.next();
+  int examineDecommissioningBlocks(DatanodeDescriptor srcNode,
+      Iterator<BlockInfo> it, int maxBlocks,
+      DecommissionManager.ReplicationPass pass) {
+    int examined = 0;
+    while(examined < maxBlocks && it.hasNext()) {
+      final BlockInfo block = it.next();
+      examined++;
       BlockCollection bc = blocksMap.getBlockCollection(block);
 
       if (bc != null) {
@@ -3356,29 +3497,30 @@ boolean isReplicationInProgress(DatanodeDescriptor srcNode) {
         int curExpectedReplicas = getReplication(block);
                 
         if (isNeededReplication(block, curExpectedReplicas, curReplicas)) {
+          pass.insufficientlyReplicated.add(block);
           if (curExpectedReplicas > curReplicas) {
             if (bc.isUnderConstruction()) {
               if (block.equals(bc.getLastBlock()) && curReplicas > minReplication) {
                 continue;
               }
-              underReplicatedInOpenFiles++;
+              pass.underReplicatedInOpenFiles++;
             }
             
             // Log info about one block for this node which needs replication
-            if (!status) {
-              status = true;
-              if (firstReplicationLog) {
+            if (!pass.replicationInProgress) {
+              pass.replicationInProgress = true;
+              if (pass.firstReplicationLog) {
                 logBlockReplicationInfo(block, srcNode, num);
               }
               // Allowing decommission as long as default replication is met
               if (curReplicas >= defaultReplication) {
-                status = false;
-                firstReplicationLog = false;
+                pass.replicationInProgress = false;
+                pass.firstReplicationLog = false;
               }
             }
-            underReplicatedBlocks++;
+            pass.underReplicatedBlocks++;
             if ((curReplicas == 0) && (num.decommissionedReplicas() > 0)) {
-              decommissionOnlyReplicas++;
+              pass.decommissionOnlyReplicas++;
             }
           }
           if (!neededReplications.contains(block) &&
@@ -3398,19 +3540,7 @@ boolean isReplicationInProgress(DatanodeDescriptor srcNode) {
         }
       }
     }
-
-    if (!status && !srcNode.isAlive) {
-      LOG.warn("srcNode " + srcNode + " is dead " +
-          "when decommission is in progress. Continue to mark " +
-          "it as decommission in progress. In that way, when it rejoins the " +
-          "cluster it can continue the decommission process.");
-      status = true;
-    }
-
-    srcNode.decommissioningStatus.set(underReplicatedBlocks,
-        decommissionOnlyReplicas, 
-        underReplicatedInOpenFiles);
-    return status;
+    return examined;
   }
 
   public int getActiveBlockCount() {
@@ -3788,6 +3918,16 @@ private void chooseTargets(BlockPlacementPolicy blockplacement,
     }
   }
 
+  private void chooseTargets(ReplicationWork rw) {
+    // Exclude all of the containing nodes from being targets.
+    // This list includes decommissioning or corrupt nodes.
+    final Set<Node> excludedNodes = new HashSet<Node>(rw.containingNodes);
+
+    // It is costly to extract the filename for which chooseTargets is called,
+    // so for now we pass in the block collection itself.
+    rw.chooseTargets(blockplacement, storagePolicySuite, excludedNodes);
+  }
+
   /**
    * A simple result enum for the result of
    * {@link BlockManager#processMisReplicatedBlock(BlockInfo)}.
@@ -32,6 +32,14 @@
  * This class maintains the map from a block to its metadata.
  * block's metadata currently includes blockCollection it belongs to and
  * the datanodes that store the block.
+ * <p>
+ * There is only an on-heap implementation: the map is a
+ * {@link LightWeightGSet} of {@link BlockInfo}s, and each block's storages
+ * and its links in the storages' block lists are object references in
+ * {@code BlockInfo.triplets}. The table is sized by
+ * {@link org.apache.hadoop.hdfs.DFSConfigKeys#DFS_NAMENODE_BLOCKS_MAP_ALLOCATION_PERCENT},
+ * and the triplets of a block are trimmed when its excess replicas are
+ * removed.
  */
 class BlocksMap {
   private static class StorageIterator implements Iterator<DatanodeStorageInfo> {
@@ -65,7 +73,7 @@ public void remove()  {
   private GSet<Block, BlockInfo> blocks;
 
   BlocksMap(int capacity) {
-    // Use 2% of total memory to size the GSet capacity
+    // The capacity is computed by BlockManager from a share of the heap
     this.capacity = capacity;
     this.blocks = new LightWeightGSet<Block, BlockInfo>(capacity) {
       @Override
@@ -191,9 +199,13 @@ boolean removeNode(Block b, DatanodeDescriptor node) {
     // remove block from the data-node list and the node from the block info
     boolean removed = node.removeBlock(info);
 
+    final BlockCollection bc = info.getBlockCollection();
     if (info.getDatanode(0) == null     // no datanodes left
-              && info.getBlockCollection() == null) {  // does not belong to a file
+              && bc == null) {  // does not belong to a file
       blocks.remove(b);  // remove block from the map
+    } else if (removed && bc != null) {
+      // release the triplets left over from excess replicas
+      info.trimCapacity(bc.getBlockReplication());
     }
     return removed;
   }
@@ -220,15 +232,12 @@ int getCapacity() {
   BlockInfo replaceBlock(BlockInfo newBlock) {
     BlockInfo currentBlock = blocks.get(newBlock);
     assert currentBlock != null : "the block if not in blocksMap";
-    // replace block in data-node lists
+    // replace block in data-node lists, keeping its position in each list
     for (int i = currentBlock.numNodes() - 1; i >= 0; i--) {
-      final DatanodeDescriptor dn = currentBlock.getDatanode(i);
-      final DatanodeStorageInfo storage = currentBlock.findStorageInfo(dn);
-      final boolean removed = storage.removeBlock(currentBlock);
-      Preconditions.checkState(removed, "currentBlock not found.");
-
-      final boolean added = storage.addBlock(newBlock);
-      Preconditions.checkState(added, "newBlock already exists.");
+      final DatanodeStorageInfo storage = currentBlock.getStorageInfo(i);
+      final boolean replaced = storage.replaceBlock(currentBlock, newBlock);
+      Preconditions.checkState(replaced,
+          "currentBlock not found or newBlock already exists.");
     }
     // replace block in the map itself
     blocks.put(newBlock);
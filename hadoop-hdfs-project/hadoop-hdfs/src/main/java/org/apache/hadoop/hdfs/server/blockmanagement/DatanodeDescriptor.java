@@ -563,11 +563,11 @@ Iterator<BlockInfo> getBlockIterator(final String storageID) {
     return new BlockIterator(getStorageInfo(storageID));
   }
 
-  void incrementPendingReplicationWithoutTargets() {
+  synchronized void incrementPendingReplicationWithoutTargets() {
     PendingReplicationWithoutTargets++;
   }
 
-  void decrementPendingReplicationWithoutTargets() {
+  synchronized void decrementPendingReplicationWithoutTargets() {
     PendingReplicationWithoutTargets--;
   }
 
@@ -606,7 +606,7 @@ void addBlocksToBeInvalidated(List<Block> blocklist) {
   /**
    * The number of work items that are pending to be replicated
    */
-  int getNumberOfBlocksToBeReplicated() {
+  synchronized int getNumberOfBlocksToBeReplicated() {
     return PendingReplicationWithoutTargets + replicateBlocks.size();
   }
 
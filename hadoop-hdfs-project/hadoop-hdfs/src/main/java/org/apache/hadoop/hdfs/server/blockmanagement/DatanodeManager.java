@@ -66,6 +66,7 @@ public class DatanodeManager {
   private final Namesystem namesystem;
   private final BlockManager blockManager;
   private final HeartbeatManager heartbeatManager;
+  private final DecommissionManager decomManager;
   private Daemon decommissionthread = null;
 
   /**
@@ -176,6 +177,7 @@ public class DatanodeManager {
     this.blockManager = blockManager;
     
     this.heartbeatManager = new HeartbeatManager(namesystem, blockManager, conf);
+    this.decomManager = new DecommissionManager(namesystem, blockManager);
 
     networktopology = NetworkTopology.getInstance(conf);
 
@@ -297,12 +299,13 @@ private static long getStaleIntervalFromConf(Configuration conf,
   }
   
   void activate(final Configuration conf) {
-    final DecommissionManager dm = new DecommissionManager(namesystem, blockManager);
-    this.decommissionthread = new Daemon(dm.new Monitor(
+    this.decommissionthread = new Daemon(decomManager.new Monitor(
         conf.getInt(DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_INTERVAL_KEY, 
                     DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_INTERVAL_DEFAULT),
         conf.getInt(DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_NODES_PER_INTERVAL_KEY, 
-                    DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_NODES_PER_INTERVAL_DEFAULT)));
+                    DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_NODES_PER_INTERVAL_DEFAULT),
+        conf.getInt(DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_BLOCKS_PER_INTERVAL_KEY,
+                    DFSConfigKeys.DFS_NAMENODE_DECOMMISSION_BLOCKS_PER_INTERVAL_DEFAULT)));
     decommissionthread.start();
 
     heartbeatManager.activate(conf);
@@ -824,15 +827,15 @@ private void checkDecommissioning(DatanodeDescriptor nodeReg) {
   boolean checkDecommissionState(DatanodeDescriptor node) {
     // Check to see if all blocks in this decommissioned
     // node has reached their target replication factor.
-    if (node.isDecommissionInProgress() && node.checkBlockReportReceived()) {
-      if (!blockManager.isReplicationInProgress(node)) {
-        node.setDecommissioned();
-        LOG.info("Decommission complete for " + node);
-      }
-    }
+    decomManager.checkDecommissionState(node, Integer.MAX_VALUE);
     return node.isDecommissioned();
   }
 
+  @VisibleForTesting
+  DecommissionManager getDecommissionManager() {
+    return decomManager;
+  }
+
   /** Start decommissioning the specified datanode. */
   @InterfaceAudience.Private
   @VisibleForTesting
@@ -855,6 +858,7 @@ void stopDecommission(DatanodeDescriptor node) {
     if (node.isDecommissionInProgress() || node.isDecommissioned()) {
       LOG.info("Stop Decommissioning " + node);
       heartbeatManager.stopDecommission(node);
+      decomManager.stopTrackingNode(node);
       // Over-replicated blocks will be detected and processed when 
       // the dead node comes back and send in its full block report.
       if (node.isAlive) {
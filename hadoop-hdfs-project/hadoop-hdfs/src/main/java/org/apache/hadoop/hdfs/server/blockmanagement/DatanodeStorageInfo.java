@@ -121,6 +121,24 @@ public void remove() {
   /** The number of block reports received */
   private int blockReportCount = 0;
 
+  /** The number of blocks added to the head of the blockList */
+  private int blockAddCount = 0;
+
+  /**
+   * Whether a full block report from this storage is being processed. The
+   * namesystem lock may be released in the middle of processing a report.
+   */
+  private boolean blockReportInProgress = false;
+
+  /**
+   * The first replica in the blockList which has not been reported by the
+   * block report in progress, or null if there is none. Reported replicas
+   * are moved to the head of the list and replicas added meanwhile are
+   * inserted there, so all the replicas from here to the tail of the list
+   * are unreported.
+   */
+  private BlockInfo firstUnreportedBlock = null;
+
   /**
    * Set to false on any NN failover, and reset to true
    * whenever a block report is received.
@@ -152,6 +170,33 @@ void setBlockReportCount(int blockReportCount) {
     this.blockReportCount = blockReportCount;
   }
 
+  int getBlockAddCount() {
+    return blockAddCount;
+  }
+
+  boolean isBlockReportInProgress() {
+    return blockReportInProgress;
+  }
+
+  /**
+   * Start processing a full block report: every replica currently stored
+   * is unreported until the report moves it to the head of the blockList.
+   */
+  void startBlockReport() {
+    blockReportInProgress = true;
+    firstUnreportedBlock = blockList;
+  }
+
+  void endBlockReport() {
+    blockReportInProgress = false;
+    firstUnreportedBlock = null;
+  }
+
+  /** @return the replicas not reported so far by the report in progress */
+  Iterator<BlockInfo> getUnreportedBlockIterator() {
+    return new BlockIterator(firstUnreportedBlock);
+  }
+
   boolean areBlockContentsStale() {
     return blockContentsStale;
   }
@@ -247,11 +292,15 @@ public boolean addBlock(BlockInfo b) {
     // add to the head of the data-node list
     b.addStorage(this);
     blockList = b.listInsert(blockList, this);
+    blockAddCount++;
     numBlocks++;
     return !replaced;
   }
 
   boolean removeBlock(BlockInfo b) {
+    if (b == firstUnreportedBlock) {
+      firstUnreportedBlock = b.getNext(b.findStorageInfo(this));
+    }
     blockList = b.listRemove(blockList, this);
     if (b.removeStorage(this)) {
       numBlocks--;
@@ -261,6 +310,27 @@ boolean removeBlock(BlockInfo b) {
     }
   }
 
+  /**
+   * Replace a block by a new block at the same position of the blockList,
+   * so that a block report in progress or a decommission scan keeps its
+   * place in the list.
+   * @return true if the old block was replaced, false if the old block is
+   *         not stored here or the new block already is.
+   */
+  boolean replaceBlock(BlockInfo oldBlock, BlockInfo newBlock) {
+    if (oldBlock.findStorageInfo(this) < 0
+        || newBlock.findStorageInfo(this) >= 0) {
+      return false;
+    }
+    newBlock.addStorage(this);
+    blockList = oldBlock.listReplace(blockList, this, newBlock);
+    if (oldBlock == firstUnreportedBlock) {
+      firstUnreportedBlock = newBlock;
+    }
+    oldBlock.removeStorage(this);
+    return true;
+  }
+
   int numBlocks() {
     return numBlocks;
   }
@@ -275,10 +345,26 @@ Iterator<BlockInfo> getBlockIterator() {
    * @return the index of the head of the blockList
    */
   int moveBlockToHead(BlockInfo b, int curIndex, int headIndex) {
+    if (b == firstUnreportedBlock) {
+      firstUnreportedBlock = b.getNext(curIndex);
+    }
     blockList = b.moveBlockToHead(blockList, this, curIndex, headIndex);
     return curIndex;
   }
 
+  /**
+   * @return the index of this storage in the head of the blockList,
+   *         or -1 if the list is empty
+   */
+  int getBlockListHeadIndex() {
+    return blockList == null ? -1 : blockList.findStorageInfo(this);
+  }
+
+  /** @return the head of the blockList, or null if it is empty */
+  BlockInfo getBlockListHead() {
+    return blockList;
+  }
+
   /**
    * Used for testing only
    * @return the head of the blockList
@@ -17,16 +17,35 @@
  */
 package org.apache.hadoop.hdfs.server.blockmanagement;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
 import org.apache.hadoop.hdfs.server.namenode.Namesystem;
+import org.apache.hadoop.hdfs.util.ChunkedArrayList;
+
+import com.google.common.annotations.VisibleForTesting;
 
 /**
  * Manage node decommissioning.
+ *
+ * All the blocks of a node are scanned once when its decommissioning starts.
+ * The blocks which are not yet sufficiently replicated are remembered, and
+ * later checks only re-examine these, dropping the ones which have since
+ * been replicated. Once none is left, the node is scanned in full one last
+ * time to catch blocks written to it in the meantime before it is marked as
+ * decommissioned.
+ *
+ * Each of these passes over the blocks of a node may be spread over several
+ * checks, which each examine a bounded number of blocks, so that the
+ * namesystem lock may be released in between.
  */
 @InterfaceAudience.Private
 @InterfaceStability.Evolving
@@ -36,12 +55,206 @@ class DecommissionManager {
   private final Namesystem namesystem;
   private final BlockManager blockmanager;
 
+  /**
+   * The decommissioning state of each node being decommissioned. Guarded by
+   * the namesystem write lock.
+   */
+  private final Map<DatanodeDescriptor, DecommissioningNode> decomNodes =
+      new HashMap<DatanodeDescriptor, DecommissioningNode>();
+
+  /** The result of one pass over blocks of a decommissioning node. */
+  static class ReplicationPass {
+    /** The examined blocks which still need replication. */
+    final List<BlockInfo> insufficientlyReplicated =
+        new ChunkedArrayList<BlockInfo>();
+    boolean replicationInProgress = false;
+    boolean firstReplicationLog = true;
+    int underReplicatedBlocks = 0;
+    int decommissionOnlyReplicas = 0;
+    int underReplicatedInOpenFiles = 0;
+  }
+
+  /** The blocks tracked for a decommissioning node and its current pass. */
+  private static class DecommissioningNode {
+    /**
+     * The blocks which still needed replication as of the last completed
+     * pass, or null before the first scan of the node has completed.
+     */
+    private List<BlockInfo> tracked = null;
+    /** The blocks left to examine by the current pass, or null if none. */
+    private Iterator<BlockInfo> blocks = null;
+    /** Whether the current pass scans all the blocks of the node. */
+    private boolean fullScan;
+    private ReplicationPass pass;
+
+    void startPass(Iterator<BlockInfo> blocks, boolean fullScan) {
+      this.blocks = blocks;
+      this.fullScan = fullScan;
+      this.pass = new ReplicationPass();
+    }
+  }
+
+  /**
+   * Iterates over the blocks of all the storages of a node, and may be
+   * resumed after the namesystem lock has been released if it is still valid.
+   */
+  private static class BlockScan implements Iterator<BlockInfo> {
+    private final DatanodeDescriptor node;
+    private final DatanodeStorageInfo[] storages;
+    /** The block add counts of the storages when their scan started. */
+    private final int[] blockAddCounts;
+    private int index = -1;
+    private int blockReportCount;
+    private BlockInfo next = null;
+
+    BlockScan(DatanodeDescriptor node) {
+      this.node = node;
+      this.storages = node.getStorageInfos();
+      this.blockAddCounts = new int[storages.length];
+    }
+
+    private void startStorage(int i) {
+      index = i;
+      blockReportCount = storages[i].getBlockReportCount();
+      blockAddCounts[i] = storages[i].getBlockAddCount();
+      next = storages[i].getBlockListHead();
+    }
+
+    /**
+     * Check whether the scan can be resumed after the lock has been
+     * released. It cannot if the storages of the node have changed, if a
+     * block has been added to the head of the list of a storage already
+     * started, behind the scan, if a block report may have reordered the
+     * list of the current storage, or if the next block has been removed and
+     * so lost its place in the list.
+     */
+    boolean isValid() {
+      if (!Arrays.equals(storages, node.getStorageInfos())) {
+        return false;
+      }
+      if (index < 0) {
+        return true;
+      }
+      for (int i = 0; i <= index; i++) {
+        if (storages[i].getBlockAddCount() != blockAddCounts[i]) {
+          return false;
+        }
+      }
+      final DatanodeStorageInfo storage = storages[index];
+      return !storage.isBlockReportInProgress()
+          && storage.getBlockReportCount() == blockReportCount
+          && (next == null || next.findStorageInfo(storage) >= 0);
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && index < storages.length - 1) {
+        startStorage(index + 1);
+      }
+      return next != null;
+    }
+
+    @Override
+    public BlockInfo next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final BlockInfo block = next;
+      next = block.getNext(block.findStorageInfo(storages[index]));
+      return block;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Remove unsupported.");
+    }
+  }
+
   DecommissionManager(final Namesystem namesystem,
       final BlockManager blockmanager) {
     this.namesystem = namesystem;
     this.blockmanager = blockmanager;
   }
 
+  /**
+   * Change, if appropriate, the admin state of a datanode to
+   * decommission completed.
+   * @param maxBlocks the maximum number of blocks to examine. The pass over
+   *        the blocks of the node is resumed by the next check if it is not
+   *        completed.
+   * @return the number of blocks which were examined.
+   */
+  int checkDecommissionState(DatanodeDescriptor node, int maxBlocks) {
+    if (!node.isDecommissionInProgress() || !node.checkBlockReportReceived()) {
+      return 0;
+    }
+    DecommissioningNode decomNode = decomNodes.get(node);
+    if (decomNode == null) {
+      decomNode = new DecommissioningNode();
+      decomNodes.put(node, decomNode);
+    } else if (decomNode.blocks instanceof BlockScan
+        && !((BlockScan)decomNode.blocks).isValid()) {
+      // scan the node again from the start
+      decomNode.startPass(new BlockScan(node), true);
+    }
+
+    int examined = 0;
+    while (true) {
+      if (decomNode.blocks == null) {
+        if (decomNode.tracked == null) {
+          decomNode.startPass(new BlockScan(node), true);
+        } else {
+          decomNode.startPass(decomNode.tracked.iterator(), false);
+        }
+      }
+      examined += blockmanager.examineDecommissioningBlocks(node,
+          decomNode.blocks, maxBlocks - examined, decomNode.pass);
+      if (decomNode.blocks.hasNext()) {
+        // to be resumed by the next check
+        return examined;
+      }
+
+      final ReplicationPass pass = decomNode.pass;
+      final boolean fullScan = decomNode.fullScan;
+      decomNode.tracked = pass.insufficientlyReplicated;
+      decomNode.blocks = null;
+      decomNode.pass = null;
+      node.decommissioningStatus.set(pass.underReplicatedBlocks,
+          pass.decommissionOnlyReplicas, pass.underReplicatedInOpenFiles);
+      if (pass.replicationInProgress) {
+        return examined;
+      }
+      if (!node.isAlive) {
+        LOG.warn("srcNode " + node + " is dead " +
+            "when decommission is in progress. Continue to mark " +
+            "it as decommission in progress. In that way, when it rejoins the " +
+            "cluster it can continue the decommission process.");
+        return examined;
+      }
+      if (fullScan) {
+        node.setDecommissioned();
+        decomNodes.remove(node);
+        LOG.info("Decommission complete for " + node);
+        return examined;
+      }
+      // Scan all the blocks of the node before completing, since blocks may
+      // have been added to the node after it was last scanned.
+      decomNode.tracked = null;
+    }
+  }
+
+  /** Forget the blocks tracked for a node which is no longer decommissioning. */
+  void stopTrackingNode(DatanodeDescriptor node) {
+    decomNodes.remove(node);
+  }
+
+  @VisibleForTesting
+  int getNumTrackedBlocks(DatanodeDescriptor node) {
+    final DecommissioningNode decomNode = decomNodes.get(node);
+    return decomNode == null || decomNode.tracked == null ? -1
+        : decomNode.tracked.size();
+  }
+
   /** Periodically check decommission status. */
   class Monitor implements Runnable {
     /** recheckInterval is how often namenode checks
@@ -50,17 +263,26 @@ class Monitor implements Runnable {
     private final long recheckInterval;
     /** The number of decommission nodes to check for each interval */
     private final int numNodesPerCheck;
+    /**
+     * The number of blocks to examine for each interval. A pass over the
+     * blocks of a node which is not completed is resumed, and the nodes which
+     * are not reached are checked, in the next interval.
+     */
+    private final int numBlocksPerCheck;
     /** firstkey can be initialized to anything. */
     private String firstkey = "";
 
-    Monitor(int recheckIntervalInSecond, int numNodesPerCheck) {
+    Monitor(int recheckIntervalInSecond, int numNodesPerCheck,
+        int numBlocksPerCheck) {
       this.recheckInterval = recheckIntervalInSecond * 1000L;
       this.numNodesPerCheck = numNodesPerCheck;
+      this.numBlocksPerCheck = numBlocksPerCheck;
     }
 
     /**
-     * Check decommission status of numNodesPerCheck nodes
-     * for every recheckInterval milliseconds.
+     * Check decommission status of up to numNodesPerCheck nodes, examining
+     * at most numBlocksPerCheck blocks, for every recheckInterval
+     * milliseconds.
      */
     @Override
     public void run() {
@@ -82,7 +304,10 @@ public void run() {
     
     private void check() {
       final DatanodeManager dm = blockmanager.getDatanodeManager();
+      pruneTrackedNodes(dm);
+
       int count = 0;
+      int numBlocks = 0;
       for(Map.Entry<String, DatanodeDescriptor> entry
           : dm.getDatanodeCyclicIteration(firstkey)) {
         final DatanodeDescriptor d = entry.getValue();
@@ -90,15 +315,28 @@ private void check() {
 
         if (d.isDecommissionInProgress()) {
           try {
-            dm.checkDecommissionState(d);
+            numBlocks += checkDecommissionState(d,
+                numBlocksPerCheck - numBlocks);
           } catch(Exception e) {
             LOG.warn("entry=" + entry, e);
           }
-          if (++count == numNodesPerCheck) {
+          if (++count == numNodesPerCheck || numBlocks >= numBlocksPerCheck) {
             return;
           }
         }
       }
     }
+
+    /** Drop the tracked blocks of nodes which stopped decommissioning. */
+    private void pruneTrackedNodes(DatanodeManager dm) {
+      for (Iterator<DatanodeDescriptor> it =
+          decomNodes.keySet().iterator(); it.hasNext(); ) {
+        final DatanodeDescriptor d = it.next();
+        if (!d.isDecommissionInProgress()
+            || dm.getDatanode(d.getDatanodeUuid()) != d) {
+          it.remove();
+        }
+      }
+    }
   }
 }
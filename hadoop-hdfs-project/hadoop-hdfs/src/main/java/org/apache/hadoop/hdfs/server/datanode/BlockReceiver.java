@@ -30,6 +30,9 @@
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.zip.Checksum;
@@ -88,12 +91,16 @@ class BlockReceiver implements Closeable {
   private final int bytesPerChecksum;
   private final int checksumSize;
   
-  private final PacketReceiver packetReceiver = new PacketReceiver(false);
+  private PacketReceiver packetReceiver = new PacketReceiver(false);
+  /** the channel under {@link #in}, if packets are read into direct buffers */
+  private ReadableByteChannel inChannel;
   
   protected final String inAddr;
   protected final String myAddr;
   private String mirrorAddr;
   private DataOutputStream mirrorOut;
+  /** the channel under {@link #mirrorOut}, if packets are mirrored to it */
+  private WritableByteChannel mirrorChannel;
   private Daemon responder = null;
   private DataTransferThrottler throttler;
   private ReplicaOutputStreams streams;
@@ -458,13 +465,34 @@ private boolean shouldVerifyChecksum() {
     return (mirrorOut == null || isDatanode || needsChecksumTranslation);
   }
 
+  /**
+   * Read the packets from the given channel into pooled direct buffers, so
+   * that they are mirrored, verified and written to disk without being
+   * copied to the heap. The packets are mirrored with a single write to the
+   * given mirror channel, if it is not null.
+   *
+   * @param inChannel the channel under the input stream
+   * @param mirrorChannel the channel under the mirror output stream
+   */
+  void useDirectBuffers(ReadableByteChannel inChannel,
+      WritableByteChannel mirrorChannel) {
+    packetReceiver.close();
+    this.packetReceiver = new PacketReceiver(true);
+    this.inChannel = inChannel;
+    this.mirrorChannel = mirrorChannel;
+  }
+
   /** 
    * Receives and processes a packet. It can contain many chunks.
    * returns the number of data bytes that the packet has.
    */
   private int receivePacket() throws IOException {
     // read the next packet
-    packetReceiver.receiveNextPacket(in);
+    if (inChannel != null) {
+      packetReceiver.receiveNextPacket(in, inChannel);
+    } else {
+      packetReceiver.receiveNextPacket(in);
+    }
 
     PacketHeader header = packetReceiver.getHeader();
     if (LOG.isDebugEnabled()){
@@ -513,8 +541,13 @@ private int receivePacket() throws IOException {
     if (mirrorOut != null && !mirrorError) {
       try {
         long begin = Time.monotonicNow();
-        packetReceiver.mirrorPacketTo(mirrorOut);
-        mirrorOut.flush();
+        if (mirrorChannel != null) {
+          mirrorOut.flush();
+          packetReceiver.mirrorPacketTo(mirrorChannel);
+        } else {
+          packetReceiver.mirrorPacketTo(mirrorOut);
+          mirrorOut.flush();
+        }
         long duration = Time.monotonicNow() - begin;
         if (duration > datanodeSlowLogThresholdMs) {
           LOG.warn("Slow BlockReceiver write packet to mirror took " + duration
@@ -572,7 +605,8 @@ private int receivePacket() throws IOException {
 
       if (checksumReceivedLen == 0 && !streams.isTransientStorage()) {
         // checksum is missing, need to calculate it
-        checksumBuf = ByteBuffer.allocate(checksumLen);
+        checksumBuf = dataBuf.isDirect() ? ByteBuffer.allocateDirect(checksumLen)
+            : ByteBuffer.allocate(checksumLen);
         diskChecksum.calculateChunkedSums(dataBuf, checksumBuf);
       }
       
@@ -604,13 +638,16 @@ private int receivePacket() throws IOException {
           }
 
           int startByteToDisk = (int)(onDiskLen-firstByteInBlock) 
-              + dataBuf.arrayOffset() + dataBuf.position();
+              + dataBuf.position();
 
           int numBytesToDisk = (int)(offsetInBlock-onDiskLen);
+          ByteBuffer dataToDisk = dataBuf.duplicate();
+          dataToDisk.position(startByteToDisk);
+          dataToDisk.limit(startByteToDisk + numBytesToDisk);
           
           // Write data to disk.
           long begin = Time.monotonicNow();
-          out.write(dataBuf.array(), startByteToDisk, numBytesToDisk);
+          writeDataToDisk(dataToDisk.duplicate());
           long duration = Time.monotonicNow() - begin;
           if (duration > datanodeSlowLogThresholdMs) {
             LOG.warn("Slow BlockReceiver write data to disk cost:" + duration
@@ -629,7 +666,8 @@ private int receivePacket() throws IOException {
                   + " sent in an individual packet (data length = " + len
                   +  " > bytesPerChecksum = " + bytesPerChecksum + ")");
             }
-            partialCrc.update(dataBuf.array(), startByteToDisk, numBytesToDisk);
+            final byte[] data = toArray(dataToDisk);
+            partialCrc.update(data, 0, data.length);
             byte[] buf = FSOutputSummer.convertToByteStream(partialCrc, checksumSize);
             lastCrc = copyLastChunkChecksum(buf, checksumSize, buf.length);
             checksumOut.write(buf);
@@ -639,12 +677,19 @@ private int receivePacket() throws IOException {
             partialCrc = null;
           } else {
             // write checksum
-            final int offset = checksumBuf.arrayOffset() +
-                checksumBuf.position();
-            final int end = offset + checksumLen;
-            lastCrc = copyLastChunkChecksum(checksumBuf.array(), checksumSize,
-                end);
-            checksumOut.write(checksumBuf.array(), offset, checksumLen);
+            if (checksumBuf.hasArray()) {
+              final int offset = checksumBuf.arrayOffset() +
+                  checksumBuf.position();
+              final int end = offset + checksumLen;
+              lastCrc = copyLastChunkChecksum(checksumBuf.array(),
+                  checksumSize, end);
+              checksumOut.write(checksumBuf.array(), offset, checksumLen);
+            } else {
+              final byte[] checksums = toArray(checksumBuf);
+              lastCrc = copyLastChunkChecksum(checksums, checksumSize,
+                  checksumLen);
+              checksumOut.write(checksums, 0, checksumLen);
+            }
           }
 
           /// flush entire packet, sync if requested
@@ -690,6 +735,31 @@ private int receivePacket() throws IOException {
     return lastPacketInBlock?-1:len;
   }
 
+  /**
+   * Write the given data to the block file. Data in a direct buffer is
+   * written through the file channel, without copying it to the heap.
+   */
+  private void writeDataToDisk(ByteBuffer data) throws IOException {
+    if (data.hasArray()) {
+      out.write(data.array(), data.arrayOffset() + data.position(),
+          data.remaining());
+    } else if (out instanceof FileOutputStream) {
+      final FileChannel channel = ((FileOutputStream)out).getChannel();
+      while (data.remaining() > 0) {
+        channel.write(data);
+      }
+    } else {
+      out.write(toArray(data));
+    }
+  }
+
+  /** @return a copy of the remaining bytes of the given buffer */
+  private static byte[] toArray(ByteBuffer buf) {
+    final byte[] bytes = new byte[buf.remaining()];
+    buf.duplicate().get(bytes);
+    return bytes;
+  }
+
   private static byte[] copyLastChunkChecksum(byte[] array, int size, int end) {
     return Arrays.copyOfRange(array, end - size, end);
   }
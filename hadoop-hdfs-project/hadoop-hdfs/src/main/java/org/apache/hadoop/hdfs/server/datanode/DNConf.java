@@ -70,6 +70,7 @@ public class DNConf {
   final int socketKeepaliveTimeout;
   
   final boolean transferToAllowed;
+  final boolean writeDirectBuffers;
   final boolean dropCacheBehindWrites;
   final boolean syncBehindWrites;
   final boolean syncBehindWritesInBackground;
@@ -115,6 +116,9 @@ public DNConf(Configuration conf) {
     transferToAllowed = conf.getBoolean(
         DFS_DATANODE_TRANSFERTO_ALLOWED_KEY,
         DFS_DATANODE_TRANSFERTO_ALLOWED_DEFAULT);
+    writeDirectBuffers = conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_WRITE_DIRECT_BUFFERS_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_WRITE_DIRECT_BUFFERS_ENABLED_DEFAULT);
 
     writePacketSize = conf.getInt(DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 
         DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT);
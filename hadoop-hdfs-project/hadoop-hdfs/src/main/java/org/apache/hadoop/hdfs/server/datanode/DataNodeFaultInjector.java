@@ -39,4 +39,7 @@ public static DataNodeFaultInjector get() {
   public void getHdfsBlocksMetadata() {}
 
   public void sendShortCircuitShmResponse() throws IOException {}
+
+  /** Called by DirectoryScanner after a batch is compared. */
+  public void directoryScannerBatchCompared() {}
 }
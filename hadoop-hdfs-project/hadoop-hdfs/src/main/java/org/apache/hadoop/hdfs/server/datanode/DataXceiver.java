@@ -42,6 +42,8 @@
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.util.Arrays;
 
@@ -107,6 +109,14 @@ class DataXceiver extends Receiver implements Runnable {
   private final InputStream socketIn;
   private OutputStream socketOut;
   private BlockReceiver blockReceiver = null;
+  private int opsProcessed = 0;
+
+  /**
+   * Whether the streams of the connection are not wrapped by SASL, so that
+   * its channel may be read directly, and watched by the
+   * {@link DataXceiverSelector} while it waits for its next operation.
+   */
+  private boolean unwrappedStreams = false;
   
   /**
    * Client Name used in previous operation. Not available on first request
@@ -174,30 +184,35 @@ public void sendOOB() throws IOException, InterruptedException {
    */
   @Override
   public void run() {
-    int opsProcessed = 0;
     Op op = null;
+    boolean idle = false;
 
     try {
       dataXceiverServer.addPeer(peer, Thread.currentThread(), this);
-      peer.setWriteTimeout(datanode.getDnConf().socketWriteTimeout);
-      InputStream input = socketIn;
-      try {
-        IOStreamPair saslStreams = datanode.saslServer.receive(peer, socketOut,
-          socketIn, datanode.getXferAddress().getPort(),
-          datanode.getDatanodeId());
-        input = new BufferedInputStream(saslStreams.in,
-          HdfsConstants.SMALL_BUFFER_SIZE);
-        socketOut = saslStreams.out;
-      } catch (InvalidMagicNumberException imne) {
-        LOG.info("Failed to read expected encryption handshake from client " +
-            "at " + peer.getRemoteAddressString() + ". Perhaps the client " +
-            "is running an older version of Hadoop which does not support " +
-            "encryption");
-        return;
+      // The streams are set up once, by the first thread which serves the
+      // connection; an idle connection is resumed on a new thread.
+      if (in == null) {
+        peer.setWriteTimeout(datanode.getDnConf().socketWriteTimeout);
+        InputStream input = socketIn;
+        try {
+          IOStreamPair saslStreams = datanode.saslServer.receive(peer,
+            socketOut, socketIn, datanode.getXferAddress().getPort(),
+            datanode.getDatanodeId());
+          input = new BufferedInputStream(saslStreams.in,
+            HdfsConstants.SMALL_BUFFER_SIZE);
+          unwrappedStreams = saslStreams.in == socketIn;
+          socketOut = saslStreams.out;
+        } catch (InvalidMagicNumberException imne) {
+          LOG.info("Failed to read expected encryption handshake from client " +
+              "at " + peer.getRemoteAddressString() + ". Perhaps the client " +
+              "is running an older version of Hadoop which does not support " +
+              "encryption");
+          return;
+        }
+
+        super.initialize(new DataInputStream(input));
       }
       
-      super.initialize(new DataInputStream(input));
-      
       // We process requests in a loop, and stay around for a short timeout.
       // This optimistic behaviour allows the other end to reuse connections.
       // Setting keepalive timeout to 0 disable this behavior.
@@ -236,6 +251,15 @@ public void run() {
         opStartTime = now();
         processOp(op);
         ++opsProcessed;
+
+        // Let the selector wait for the next op, unless it is already here.
+        if (unwrappedStreams && peer != null && !peer.isClosed()
+            && dnConf.socketKeepaliveTimeout > 0 && in.available() == 0
+            && dataXceiverServer.watchIdle(this, peer,
+                dnConf.socketKeepaliveTimeout)) {
+          idle = true;
+          return;
+        }
       } while ((peer != null) &&
           (!peer.isClosed() && dnConf.socketKeepaliveTimeout > 0));
     } catch (Throwable t) {
@@ -259,14 +283,28 @@ public void run() {
         LOG.debug(datanode.getDisplayName() + ":Number of active connections is: "
             + datanode.getXceiverCount());
       }
-      updateCurrentThreadName("Cleaning up");
-      if (peer != null) {
-        dataXceiverServer.closePeer(peer);
-        IOUtils.closeStream(in);
+      if (!idle) {
+        updateCurrentThreadName("Cleaning up");
+        if (peer != null) {
+          dataXceiverServer.closePeer(peer);
+          IOUtils.closeStream(in);
+        }
       }
     }
   }
 
+  /**
+   * Close the connection of this xceiver while it is not served by a thread,
+   * as it has been idle for too long or the server is shutting down.
+   */
+  void closeIdle() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Cached " + peer + " closing after " + opsProcessed + " ops");
+    }
+    IOUtils.cleanup(null, peer);
+    IOUtils.closeStream(in);
+  }
+
   @Override
   public void requestShortCircuitFds(final ExtendedBlock blk,
       final Token<BlockTokenIdentifier> token,
@@ -635,6 +673,7 @@ public void writeBlock(final ExtendedBlock block,
     DataOutputStream mirrorOut = null;  // stream to next target
     DataInputStream mirrorIn = null;    // reply from next target
     Socket mirrorSock = null;           // socket to next target
+    WritableByteChannel mirrorChannel = null; // channel under mirrorOut
     String mirrorNode = null;           // the name:port of next target
     String firstBadLink = "";           // first datanode that failed in connection setup
     Status mirrorInStatus = SUCCESS;
@@ -684,6 +723,10 @@ public void writeBlock(final ExtendedBlock block,
             datanode.getDataEncryptionKeyFactoryForBlock(block);
           IOStreamPair saslStreams = datanode.saslClient.socketSend(mirrorSock,
             unbufMirrorOut, unbufMirrorIn, keyFactory, blockToken, targets[0]);
+          if (saslStreams.out == unbufMirrorOut
+              && unbufMirrorOut instanceof WritableByteChannel) {
+            mirrorChannel = (WritableByteChannel)unbufMirrorOut;
+          }
           unbufMirrorOut = saslStreams.out;
           unbufMirrorIn = saslStreams.in;
           mirrorOut = new DataOutputStream(new BufferedOutputStream(unbufMirrorOut,
@@ -758,6 +801,12 @@ public void writeBlock(final ExtendedBlock block,
       // receive the block and mirror to the next target
       if (blockReceiver != null) {
         String mirrorAddr = (mirrorSock == null) ? null : mirrorNode;
+        final ReadableByteChannel inChannel = peer.getInputStreamChannel();
+        if (dnConf.writeDirectBuffers && unwrappedStreams
+            && inChannel != null) {
+          blockReceiver.useDirectBuffers(inChannel,
+              mirrorSock == null ? null : mirrorChannel);
+        }
         blockReceiver.receiveBlock(mirrorOut, mirrorIn, replyOut,
             mirrorAddr, null, targets, false);
 
@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Watches the connections of a {@link DataXceiverServer} which wait for
+ * their next operation, so that they do not hold a thread while they are
+ * idle. A connection which becomes readable is handed back to the server
+ * to be served by a {@link DataXceiver} thread, and a connection which
+ * stays idle past its timeout is closed.
+ */
+class DataXceiverSelector implements Runnable {
+  public static final Log LOG = DataNode.LOG;
+
+  /** The longest time to wait for an event before expiring connections. */
+  private static final long MAX_SELECT_TIMEOUT_MS = 1000;
+
+  /** A connection waiting for its next operation. */
+  private static class IdleXceiver {
+    private final DataXceiver xceiver;
+    private final SocketChannel channel;
+    private final long deadline;
+    /** Set once the connection is resumed; its deadline no longer holds. */
+    private boolean resumed = false;
+    private SelectionKey key;
+
+    IdleXceiver(DataXceiver xceiver, SocketChannel channel, long deadline) {
+      this.xceiver = xceiver;
+      this.channel = channel;
+      this.deadline = deadline;
+    }
+  }
+
+  private static final Comparator<IdleXceiver> DEADLINE_ORDER =
+      new Comparator<IdleXceiver>() {
+        @Override
+        public int compare(IdleXceiver a, IdleXceiver b) {
+          return a.deadline < b.deadline ? -1
+              : a.deadline == b.deadline ? 0 : 1;
+        }
+      };
+
+  private final DataXceiverServer dataXceiverServer;
+  private final Selector selector;
+  /**
+   * The registered connections by deadline, so that a wakeup only looks at
+   * the expired ones. Resumed connections are dropped when they reach the
+   * head. Only accessed by the selector thread.
+   */
+  private final PriorityQueue<IdleXceiver> deadlines =
+      new PriorityQueue<IdleXceiver>(64, DEADLINE_ORDER);
+  private final Queue<IdleXceiver> pending =
+      new ConcurrentLinkedQueue<IdleXceiver>();
+  private boolean closed = false;
+
+  DataXceiverSelector(DataXceiverServer dataXceiverServer)
+      throws IOException {
+    this.dataXceiverServer = dataXceiverServer;
+    this.selector = Selector.open();
+  }
+
+  /**
+   * Watch the connection of the given xceiver until it becomes readable.
+   *
+   * @param timeoutMs how long the connection may stay idle
+   * @return false if the selector is closed
+   */
+  synchronized boolean add(DataXceiver xceiver, SocketChannel channel,
+      int timeoutMs) {
+    if (closed) {
+      return false;
+    }
+    pending.add(new IdleXceiver(xceiver, channel,
+        Time.monotonicNow() + timeoutMs));
+    selector.wakeup();
+    return true;
+  }
+
+  /** Stop watching and close all the idle connections. */
+  synchronized void close() {
+    closed = true;
+    selector.wakeup();
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void run() {
+    final List<IdleXceiver> retry = new ArrayList<IdleXceiver>();
+    try {
+      while (!isClosed()) {
+        registerPending(retry);
+
+        // close the connections which have been idle for too long
+        final long now = Time.monotonicNow();
+        long timeout = retry.isEmpty() ? MAX_SELECT_TIMEOUT_MS : 1;
+        IdleXceiver idle;
+        while ((idle = deadlines.peek()) != null) {
+          if (idle.resumed) {
+            deadlines.poll();
+          } else if (idle.deadline <= now) {
+            deadlines.poll();
+            idle.key.cancel();
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Closing idle connection " + idle.channel);
+            }
+            idle.xceiver.closeIdle();
+          } else {
+            timeout = Math.min(timeout, idle.deadline - now);
+            break;
+          }
+        }
+
+        selector.select(timeout);
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          key.cancel();
+          final IdleXceiver ready = (IdleXceiver)key.attachment();
+          ready.resumed = true;
+          dataXceiverServer.resume(ready.xceiver);
+        }
+        pending.addAll(retry);
+        retry.clear();
+      }
+    } catch (Throwable t) {
+      LOG.error("DataXceiverSelector exiting", t);
+    } finally {
+      synchronized (this) {
+        closed = true;
+      }
+      for (SelectionKey key : selector.keys()) {
+        ((IdleXceiver)key.attachment()).xceiver.closeIdle();
+      }
+      for (IdleXceiver idle : retry) {
+        idle.xceiver.closeIdle();
+      }
+      IdleXceiver idle;
+      while ((idle = pending.poll()) != null) {
+        idle.xceiver.closeIdle();
+      }
+      IOUtils.cleanup(LOG, selector);
+    }
+  }
+
+  private void registerPending(List<IdleXceiver> retry) {
+    IdleXceiver idle;
+    while ((idle = pending.poll()) != null) {
+      try {
+        idle.key = idle.channel.register(selector, SelectionKey.OP_READ, idle);
+        deadlines.add(idle);
+      } catch (CancelledKeyException e) {
+        // the key of the previous wait is only dropped by the next select
+        retry.add(idle);
+      } catch (ClosedChannelException e) {
+        idle.xceiver.closeIdle();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "DataXceiverSelector";
+  }
+}
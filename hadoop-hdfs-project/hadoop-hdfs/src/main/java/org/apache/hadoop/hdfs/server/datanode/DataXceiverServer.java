@@ -20,6 +20,7 @@
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 
 import org.apache.commons.logging.Log;
@@ -27,6 +28,7 @@
 import org.apache.hadoop.hdfs.DFSConfigKeys;
 import org.apache.hadoop.hdfs.net.Peer;
 import org.apache.hadoop.hdfs.net.PeerServer;
+import org.apache.hadoop.hdfs.net.TcpPeerServer;
 import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Daemon;
@@ -47,6 +49,13 @@ class DataXceiverServer implements Runnable {
   private final HashMap<Peer, Thread> peers = new HashMap<Peer, Thread>();
   private final HashMap<Peer, DataXceiver> peersXceiver = new HashMap<Peer, DataXceiver>();
   private boolean closed = false;
+
+  /**
+   * Watches the connections waiting for an operation, if
+   * {@link DFSConfigKeys#DFS_DATANODE_TRANSFER_SELECTOR_ENABLED_KEY} is set.
+   */
+  private final DataXceiverSelector selector;
+  private final Daemon selectorThread;
   
   /**
    * Maximal number of concurrent xceivers per node.
@@ -107,7 +116,7 @@ synchronized void release() {
   
   
   DataXceiverServer(PeerServer peerServer, Configuration conf,
-      DataNode datanode) {
+      DataNode datanode) throws IOException {
     
     this.peerServer = peerServer;
     this.datanode = datanode;
@@ -125,10 +134,25 @@ synchronized void release() {
             DFSConfigKeys.DFS_DATANODE_BALANCE_BANDWIDTHPERSEC_DEFAULT),
         conf.getInt(DFSConfigKeys.DFS_DATANODE_BALANCE_MAX_NUM_CONCURRENT_MOVES_KEY,
             DFSConfigKeys.DFS_DATANODE_BALANCE_MAX_NUM_CONCURRENT_MOVES_DEFAULT));
+
+    // Only TCP peers have a channel which can be selected.
+    if (peerServer instanceof TcpPeerServer && conf.getBoolean(
+        DFSConfigKeys.DFS_DATANODE_TRANSFER_SELECTOR_ENABLED_KEY,
+        DFSConfigKeys.DFS_DATANODE_TRANSFER_SELECTOR_ENABLED_DEFAULT)) {
+      this.selector = new DataXceiverSelector(this);
+      // created here so that it is not in the thread group of the xceivers
+      this.selectorThread = new Daemon(selector);
+    } else {
+      this.selector = null;
+      this.selectorThread = null;
+    }
   }
 
   @Override
   public void run() {
+    if (selectorThread != null) {
+      selectorThread.start();
+    }
     Peer peer = null;
     while (datanode.shouldRun && !datanode.shutdownForUpgrade) {
       try {
@@ -142,9 +166,10 @@ public void run() {
               + maxXceiverCount);
         }
 
-        new Daemon(datanode.threadGroup,
-            DataXceiver.create(peer, datanode, this))
-            .start();
+        final DataXceiver xceiver = DataXceiver.create(peer, datanode, this);
+        if (!watchIdle(xceiver, peer, datanode.getDnConf().socketTimeout)) {
+          new Daemon(datanode.threadGroup, xceiver).start();
+        }
       } catch (SocketTimeoutException ignored) {
         // wake up to see if should continue to run
       } catch (AsynchronousCloseException ace) {
@@ -201,6 +226,47 @@ public void run() {
     }
     // Close all peers.
     closeAllPeers();
+    if (selector != null) {
+      selector.close();
+    }
+  }
+
+  /**
+   * Hand the connection of an xceiver which waits for its next operation
+   * over to the selector, so that no thread is held while it is idle.
+   *
+   * @param timeoutMs how long the connection may stay idle
+   * @return false if the connection cannot be selected and the xceiver
+   *         should keep waiting on its own thread
+   */
+  boolean watchIdle(DataXceiver xceiver, Peer peer, int timeoutMs) {
+    final SocketChannel channel = peer.getSocketChannel();
+    if (selector == null || channel == null) {
+      return false;
+    }
+    releasePeer(peer);
+    if (!selector.add(xceiver, channel, timeoutMs)) {
+      xceiver.closeIdle();
+    }
+    return true;
+  }
+
+  /** Start a thread for an xceiver whose connection has become readable. */
+  void resume(DataXceiver xceiver) {
+    int curXceiverCount = datanode.getXceiverCount();
+    if (curXceiverCount > maxXceiverCount) {
+      LOG.warn(datanode.getDisplayName() + ":DataXceiverServer: Xceiver count "
+          + curXceiverCount + " exceeds the limit of concurrent xcievers: "
+          + maxXceiverCount);
+      xceiver.closeIdle();
+      return;
+    }
+    try {
+      new Daemon(datanode.threadGroup, xceiver).start();
+    } catch (OutOfMemoryError e) {
+      LOG.warn("DataNode is out of memory. Closing an idle connection.", e);
+      xceiver.closeIdle();
+    }
   }
 
   void kill() {
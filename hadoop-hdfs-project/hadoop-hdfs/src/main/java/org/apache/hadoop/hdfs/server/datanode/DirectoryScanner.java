@@ -46,6 +46,7 @@
 import org.apache.hadoop.hdfs.server.common.GenerationStamp;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsDatasetSpi;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.FsVolumeSpi;
+import org.apache.hadoop.hdfs.util.DataTransferThrottler;
 import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.Time;
 
@@ -61,6 +62,8 @@ public class DirectoryScanner implements Runnable {
   private final ExecutorService reportCompileThreadPool;
   private final ScheduledExecutorService masterThread;
   private final long scanPeriodMsecs;
+  private final int batchSize;
+  private final int iopsLimitPerVolume;
   private volatile boolean shouldRun = false;
   private boolean retainDiffs = false;
 
@@ -316,6 +319,12 @@ public long getGenStamp() {
     int threads = 
         conf.getInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_KEY,
                     DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_THREADS_DEFAULT);
+    batchSize = Math.max(1,
+        conf.getInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_KEY,
+            DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_DEFAULT));
+    iopsLimitPerVolume =
+        conf.getInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_IOPS_LIMIT_KEY,
+            DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_IOPS_LIMIT_DEFAULT);
 
     reportCompileThreadPool = Executors.newFixedThreadPool(threads, 
         new Daemon.DaemonFactory());
@@ -417,88 +426,123 @@ void reconcile() throws IOException {
   /**
    * Scan for the differences between disk and in-memory blocks
    * Scan only the "finalized blocks" lists of both disk and memory.
+   * Only the ids of the in-memory blocks are fetched up front, without
+   * holding the dataset lock for the whole block pool. The blocks are then
+   * compared in batches, and each replica is looked up while the dataset
+   * lock is held for its batch only.
    */
   void scan() {
     clear();
     Map<String, ScanInfo[]> diskReport = getDiskReport();
 
-    // Hold FSDataset lock to prevent further changes to the block map
-    synchronized(dataset) {
-      for (Entry<String, ScanInfo[]> entry : diskReport.entrySet()) {
-        String bpid = entry.getKey();
-        ScanInfo[] blockpoolReport = entry.getValue();
-        
-        Stats statsRecord = new Stats(bpid);
-        stats.put(bpid, statsRecord);
-        LinkedList<ScanInfo> diffRecord = new LinkedList<ScanInfo>();
-        diffs.put(bpid, diffRecord);
-        
-        statsRecord.totalBlocks = blockpoolReport.length;
-        List<FinalizedReplica> bl = dataset.getFinalizedBlocks(bpid);
-        FinalizedReplica[] memReport = bl.toArray(new FinalizedReplica[bl.size()]);
-        Arrays.sort(memReport); // Sort based on blockId
-  
-        int d = 0; // index for blockpoolReport
-        int m = 0; // index for memReprot
-        while (m < memReport.length && d < blockpoolReport.length) {
-          FinalizedReplica memBlock = memReport[Math.min(m, memReport.length - 1)];
-          ScanInfo info = blockpoolReport[Math.min(
-              d, blockpoolReport.length - 1)];
-          if (info.getBlockId() < memBlock.getBlockId()) {
-            // Block is missing in memory
-            statsRecord.missingMemoryBlocks++;
-            addDifference(diffRecord, statsRecord, info);
+    for (Entry<String, ScanInfo[]> entry : diskReport.entrySet()) {
+      String bpid = entry.getKey();
+      ScanInfo[] blockpoolReport = entry.getValue();
+      
+      Stats statsRecord = new Stats(bpid);
+      stats.put(bpid, statsRecord);
+      LinkedList<ScanInfo> diffRecord = new LinkedList<ScanInfo>();
+      diffs.put(bpid, diffRecord);
+      
+      statsRecord.totalBlocks = blockpoolReport.length;
+      long[] memReport = dataset.getFinalizedBlockIds(bpid);
+      Arrays.sort(memReport);
+
+      int d = 0; // index for blockpoolReport
+      int m = 0; // index for memReport
+      while (m < memReport.length || d < blockpoolReport.length) {
+        // Hold FSDataset lock to prevent changes to the block map while a
+        // batch is compared, and let the writers in between the batches.
+        // checkAndUpdate checks each difference against the block map again.
+        synchronized(dataset) {
+          FinalizedReplica memBlock = null;
+          int memBlockIndex = -1;
+          for (int n = 0; n < batchSize
+              && (m < memReport.length || d < blockpoolReport.length); n++) {
+            if (m == memReport.length) {
+              // Block is missing in memory
+              statsRecord.missingMemoryBlocks++;
+              addDifference(diffRecord, statsRecord, blockpoolReport[d++]);
+              continue;
+            }
+            if (memBlockIndex != m) {
+              memBlock = getFinalizedReplica(bpid, memReport[m]);
+              memBlockIndex = m;
+            }
+            if (memBlock == null) {
+              // The replica was removed or is no longer finalized
+              m++;
+              continue;
+            }
+            if (d == blockpoolReport.length) {
+              // Block is missing on the disk
+              addDifference(diffRecord, statsRecord,
+                            memBlock.getBlockId(), memBlock.getVolume());
+              m++;
+              continue;
+            }
+            ScanInfo info = blockpoolReport[d];
+            if (info.getBlockId() < memBlock.getBlockId()) {
+              // Block is missing in memory
+              statsRecord.missingMemoryBlocks++;
+              addDifference(diffRecord, statsRecord, info);
+              d++;
+              continue;
+            }
+            if (info.getBlockId() > memBlock.getBlockId()) {
+              // Block is missing on the disk
+              addDifference(diffRecord, statsRecord,
+                            memBlock.getBlockId(), info.getVolume());
+              m++;
+              continue;
+            }
+            // Block file and/or metadata file exists on the disk
+            // Block exists in memory
+            if (info.getBlockFile() == null) {
+              // Block metadata file exits and block file is missing
+              addDifference(diffRecord, statsRecord, info);
+            } else if (info.getGenStamp() != memBlock.getGenerationStamp()
+                || info.getBlockFileLength() != memBlock.getNumBytes()) {
+              // Block metadata file is missing or has wrong generation stamp,
+              // or block file length is different than expected
+              statsRecord.mismatchBlocks++;
+              addDifference(diffRecord, statsRecord, info);
+            } else if (info.getBlockFile().compareTo(memBlock.getBlockFile()) != 0) {
+              // volumeMap record and on-disk files don't match.
+              statsRecord.duplicateBlocks++;
+              addDifference(diffRecord, statsRecord, info);
+            }
             d++;
-            continue;
-          }
-          if (info.getBlockId() > memBlock.getBlockId()) {
-            // Block is missing on the disk
-            addDifference(diffRecord, statsRecord,
-                          memBlock.getBlockId(), info.getVolume());
-            m++;
-            continue;
-          }
-          // Block file and/or metadata file exists on the disk
-          // Block exists in memory
-          if (info.getBlockFile() == null) {
-            // Block metadata file exits and block file is missing
-            addDifference(diffRecord, statsRecord, info);
-          } else if (info.getGenStamp() != memBlock.getGenerationStamp()
-              || info.getBlockFileLength() != memBlock.getNumBytes()) {
-            // Block metadata file is missing or has wrong generation stamp,
-            // or block file length is different than expected
-            statsRecord.mismatchBlocks++;
-            addDifference(diffRecord, statsRecord, info);
-          } else if (info.getBlockFile().compareTo(memBlock.getBlockFile()) != 0) {
-            // volumeMap record and on-disk files don't match.
-            statsRecord.duplicateBlocks++;
-            addDifference(diffRecord, statsRecord, info);
-          }
-          d++;
 
-          if (d < blockpoolReport.length) {
-            // There may be multiple on-disk records for the same block, don't increment
-            // the memory record pointer if so.
-            ScanInfo nextInfo = blockpoolReport[Math.min(d, blockpoolReport.length - 1)];
-            if (nextInfo.getBlockId() != info.blockId) {
+            if (d < blockpoolReport.length) {
+              // There may be multiple on-disk records for the same block, don't increment
+              // the memory record pointer if so.
+              ScanInfo nextInfo = blockpoolReport[d];
+              if (nextInfo.getBlockId() != info.blockId) {
+                ++m;
+              }
+            } else {
               ++m;
             }
-          } else {
-            ++m;
           }
-        }
-        while (m < memReport.length) {
-          FinalizedReplica current = memReport[m++];
-          addDifference(diffRecord, statsRecord,
-                        current.getBlockId(), current.getVolume());
-        }
-        while (d < blockpoolReport.length) {
-          statsRecord.missingMemoryBlocks++;
-          addDifference(diffRecord, statsRecord, blockpoolReport[d++]);
-        }
-        LOG.info(statsRecord.toString());
-      } //end for
-    } //end synchronized
+        } //end synchronized
+        DataNodeFaultInjector.get().directoryScannerBatchCompared();
+      }
+      LOG.info(statsRecord.toString());
+    } //end for
+  }
+
+  /**
+   * Look up a replica in the block map. Must be called with the dataset
+   * lock held.
+   *
+   * @return the finalized replica of the block, or null if there is none.
+   */
+  @SuppressWarnings("deprecation")
+  private FinalizedReplica getFinalizedReplica(String bpid, long blockId) {
+    final Replica replica = dataset.getReplica(bpid, blockId);
+    return replica instanceof FinalizedReplica ?
+        (FinalizedReplica)replica : null;
   }
 
   /**
@@ -547,7 +591,8 @@ private Map<String, ScanInfo[]> getDiskReport() {
     for (int i = 0; i < volumes.size(); i++) {
       if (isValid(dataset, volumes.get(i))) {
         ReportCompiler reportCompiler =
-          new ReportCompiler(volumes.get(i));
+          new ReportCompiler(volumes.get(i), iopsLimitPerVolume > 0 ?
+              new DataTransferThrottler(1000, iopsLimitPerVolume) : null);
         Future<ScanInfoPerBlockPool> result = 
           reportCompileThreadPool.submit(reportCompiler);
         compilersInProgress.put(i, result);
@@ -585,9 +630,13 @@ private static boolean isBlockMetaFile(String blockId, String metaFile) {
   private static class ReportCompiler 
   implements Callable<ScanInfoPerBlockPool> {
     private final FsVolumeSpi volume;
+    /** Limits the file system operations per second, if not null */
+    private final DataTransferThrottler throttler;
 
-    public ReportCompiler(FsVolumeSpi volume) {
+    public ReportCompiler(FsVolumeSpi volume,
+        DataTransferThrottler throttler) {
       this.volume = volume;
+      this.throttler = throttler;
     }
 
     @Override
@@ -613,6 +662,11 @@ private LinkedList<ScanInfo> compileReport(FsVolumeSpi vol, File dir,
         // Ignore this directory and proceed.
         return report;
       }
+      if (throttler != null) {
+        // one operation to list the directory, and about one per file to
+        // tell directories from files and read the block file lengths
+        throttler.throttle(1 + files.length);
+      }
       Arrays.sort(files);
       /*
        * Assumption: In the sorted list of files block file appears immediately
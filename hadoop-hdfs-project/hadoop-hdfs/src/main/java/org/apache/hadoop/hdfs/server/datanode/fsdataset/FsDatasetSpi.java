@@ -127,6 +127,16 @@ public StorageReport[] getStorageReports(String bpid)
   /** @return a list of finalized blocks for the given block pool. */
   public List<FinalizedReplica> getFinalizedBlocksOnPersistentStorage(String bpid);
 
+  /**
+   * Unlike {@link #getFinalizedBlocks(String)}, this does not copy the
+   * replicas, and does not hold the dataset lock for the whole block pool.
+   * Blocks added or removed meanwhile may or may not be included.
+   *
+   * @return the ids of the finalized blocks for the given block pool, in no
+   *         particular order.
+   */
+  public long[] getFinalizedBlockIds(String bpid);
+
   /**
    * Check whether the in-memory block record matches the block on the disk,
    * and, in case that they are not matched, update the record or mark it
@@ -269,10 +269,9 @@ File createRbwFile(Block b) throws IOException {
 
   File addBlock(Block b, File f) throws IOException {
     File blockDir = DatanodeUtil.idToBlockDir(finalizedDir, b.getBlockId());
-    if (!blockDir.exists()) {
-      if (!blockDir.mkdirs()) {
-        throw new IOException("Failed to mkdirs " + blockDir);
-      }
+    // the directory may be created concurrently by another finalizing writer
+    if (!blockDir.mkdirs() && !blockDir.isDirectory()) {
+      throw new IOException("Failed to mkdirs " + blockDir);
     }
     File blockFile = FsDatasetImpl.moveBlockFiles(b, f, blockDir);
     File metaFile = FsDatasetUtil.getMetaFile(blockFile, b.getGenerationStamp());
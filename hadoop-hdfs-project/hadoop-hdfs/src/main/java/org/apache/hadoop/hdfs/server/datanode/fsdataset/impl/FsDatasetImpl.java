@@ -226,6 +226,14 @@ public LengthInputStream getMetaDataInputStream(ExtendedBlock b)
   private volatile boolean fsRunning;
 
   final ReplicaMap volumeMap;
+  /**
+   * Replicas in the volumeMap whose files are being created by
+   * {@link #createRbw(StorageType, ExtendedBlock, boolean)} or moved to the
+   * finalized directory by {@link #finalizeBlock(ExtendedBlock)} without the
+   * dataset lock. Guarded by the dataset lock.
+   */
+  private final Set<ReplicaInfo> pendingReplicas =
+      Collections.newSetFromMap(new IdentityHashMap<ReplicaInfo, Boolean>());
   final RamDiskReplicaTracker ramDiskReplicaTracker;
   final RamDiskAsyncLazyPersistService asyncLazyPersistService;
 
@@ -825,6 +833,7 @@ public synchronized ReplicaInPipeline append(ExtendedBlock b,
       throw new IOException("The new generation stamp " + newGS + 
           " should be greater than the replica " + b + "'s generation stamp");
     }
+    waitForPendingReplica(b.getBlockPoolId(), b.getBlockId());
     ReplicaInfo replicaInfo = getReplicaInfo(b);
     LOG.info("Appending to " + replicaInfo);
     if (replicaInfo.getState() != ReplicaState.FINALIZED) {
@@ -914,6 +923,7 @@ private synchronized ReplicaBeingWritten append(String bpid,
 
   private ReplicaInfo recoverCheck(ExtendedBlock b, long newGS, 
       long expectedBlockLen) throws IOException {
+    waitForPendingReplica(b.getBlockPoolId(), b.getBlockId());
     ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
     
     // check state
@@ -1021,17 +1031,67 @@ private void bumpReplicaGS(ReplicaInfo replicaInfo,
     }
   }
 
+  /**
+   * The replica is added to the volume map, and the space of the block is
+   * reserved on the chosen volume, with the dataset lock held. The rbw file
+   * is then created without the lock, so that a slow disk does not hold up
+   * the writes to the other volumes.
+   */
   @Override // FsDatasetSpi
-  public synchronized ReplicaInPipeline createRbw(StorageType storageType,
+  public ReplicaInPipeline createRbw(StorageType storageType,
+      ExtendedBlock b, boolean allowLazyPersist) throws IOException {
+    final String bpid = b.getBlockPoolId();
+    final ReplicaBeingWritten newReplicaInfo;
+    synchronized (this) {
+      ReplicaInfo replicaInfo = volumeMap.get(bpid, b.getBlockId());
+      if (replicaInfo != null) {
+        throw new ReplicaAlreadyExistsException("Block " + b +
+        " already exists in state " + replicaInfo.getState() +
+        " and thus cannot be created.");
+      }
+      FsVolumeImpl v = chooseVolumeForRbw(storageType, b, allowLazyPersist);
+      v.reserveSpaceForRbw(b.getNumBytes());
+      newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(),
+          b.getGenerationStamp(), v, v.getRbwDir(bpid), b.getNumBytes());
+      volumeMap.add(bpid, newReplicaInfo);
+      // others wait in waitForPendingReplica until the file is created
+      pendingReplicas.add(newReplicaInfo);
+    }
+
+    // create an rbw file to hold block in the designated volume
+    final File f = newReplicaInfo.getBlockFile();
+    boolean created = false;
+    try {
+      DatanodeUtil.createTmpFile(b.getLocalBlock(), f);
+      created = true;
+    } finally {
+      if (!created) {
+        synchronized (this) {
+          removePendingReplica(newReplicaInfo);
+          if (volumeMap.get(bpid, b.getBlockId()) == newReplicaInfo) {
+            volumeMap.remove(bpid, b.getLocalBlock());
+          }
+        }
+        newReplicaInfo.releaseAllBytesReserved();
+      }
+    }
+    synchronized (this) {
+      removePendingReplica(newReplicaInfo);
+      if (volumeMap.get(bpid, b.getBlockId()) == newReplicaInfo) {
+        return newReplicaInfo;
+      }
+    }
+    // the replica was invalidated while its file was being created
+    if (!f.delete()) {
+      LOG.warn("Failed to delete " + f);
+    }
+    newReplicaInfo.releaseAllBytesReserved();
+    throw new IOException("Replica " + newReplicaInfo + " of block " + b
+        + " was removed while its file was being created");
+  }
+
+  private FsVolumeImpl chooseVolumeForRbw(StorageType storageType,
       ExtendedBlock b, boolean allowLazyPersist) throws IOException {
-    ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(),
-        b.getBlockId());
-    if (replicaInfo != null) {
-      throw new ReplicaAlreadyExistsException("Block " + b +
-      " already exists in state " + replicaInfo.getState() +
-      " and thus cannot be created.");
-    }
-    // create a new block
     FsVolumeImpl v;
     while (true) {
       try {
@@ -1052,13 +1112,7 @@ public synchronized ReplicaInPipeline createRbw(StorageType storageType,
       }
       break;
     }
-    // create an rbw file to hold block in the designated volume
-    File f = v.createRbwFile(b.getBlockPoolId(), b.getLocalBlock());
-    ReplicaBeingWritten newReplicaInfo = new ReplicaBeingWritten(b.getBlockId(), 
-        b.getGenerationStamp(), v, f.getParentFile(), b.getNumBytes());
-    volumeMap.add(b.getBlockPoolId(), newReplicaInfo);
-
-    return newReplicaInfo;
+    return v;
   }
   
   @Override // FsDatasetSpi
@@ -1067,6 +1121,7 @@ public synchronized ReplicaInPipeline recoverRbw(ExtendedBlock b,
       throws IOException {
     LOG.info("Recover RBW replica " + b);
 
+    waitForPendingReplica(b.getBlockPoolId(), b.getBlockId());
     ReplicaInfo replicaInfo = getReplicaInfo(b.getBlockPoolId(), b.getBlockId());
     
     // check the replica's state
@@ -1187,6 +1242,7 @@ public ReplicaInPipeline createTemporary(
     ReplicaInfo lastFoundReplicaInfo = null;
     do {
       synchronized (this) {
+        waitForPendingReplica(b.getBlockPoolId(), b.getBlockId());
         ReplicaInfo currentReplicaInfo =
             volumeMap.get(b.getBlockPoolId(), b.getBlockId());
         if (currentReplicaInfo == lastFoundReplicaInfo) {
@@ -1257,20 +1313,100 @@ public void adjustCrcChannelPosition(ExtendedBlock b, ReplicaOutputStreams strea
    * Complete the block write!
    */
   @Override // FsDatasetSpi
-  public synchronized void finalizeBlock(ExtendedBlock b) throws IOException {
-    if (Thread.interrupted()) {
-      // Don't allow data modifications from interrupted threads
-      throw new IOException("Cannot finalize block from Interrupted Thread");
+  public void finalizeBlock(ExtendedBlock b) throws IOException {
+    final String bpid = b.getBlockPoolId();
+    final ReplicaInfo replicaInfo;
+    final FsVolumeImpl v;
+    synchronized (this) {
+      if (Thread.interrupted()) {
+        // Don't allow data modifications from interrupted threads
+        throw new IOException("Cannot finalize block from Interrupted Thread");
+      }
+      replicaInfo = getReplicaInfo(b);
+      if (replicaInfo.getState() == ReplicaState.FINALIZED) {
+        // this is legal, when recovery happens on a file that has
+        // been opened for append but never modified
+        return;
+      }
+      v = (FsVolumeImpl)replicaInfo.getVolume();
+      if (replicaInfo.getState() == ReplicaState.RUR || v == null
+          || v.isTransientStorage()) {
+        finalizeReplica(bpid, replicaInfo);
+        return;
+      }
+      // others wait in waitForPendingReplica until the move is done
+      pendingReplicas.add(replicaInfo);
     }
-    ReplicaInfo replicaInfo = getReplicaInfo(b);
-    if (replicaInfo.getState() == ReplicaState.FINALIZED) {
-      // this is legal, when recovery happens on a file that has
-      // been opened for append but never modified
-      return;
+
+    // Move the files into the finalized directory without the dataset lock
+    // and publish the finalized replica only if it was not invalidated or
+    // replaced meanwhile.
+    File dest = null;
+    try {
+      dest = v.addFinalizedBlock(bpid, replicaInfo,
+          replicaInfo.getBlockFile(), replicaInfo.getBytesReserved());
+    } finally {
+      if (dest == null) {
+        synchronized (this) {
+          removePendingReplica(replicaInfo);
+        }
+      }
     }
-    finalizeReplica(b.getBlockPoolId(), replicaInfo);
+    synchronized (this) {
+      removePendingReplica(replicaInfo);
+      final ReplicaInfo current = volumeMap.get(bpid, replicaInfo.getBlockId());
+      if (current == replicaInfo) {
+        volumeMap.add(bpid,
+            new FinalizedReplica(replicaInfo, v, dest.getParentFile()));
+        return;
+      }
+      // the replica was invalidated or replaced by a new writer, so nothing
+      // refers to the moved files any more; delete them as invalidate does
+      final File destMeta = FsDatasetUtil.getMetaFile(dest,
+          replicaInfo.getGenerationStamp());
+      v.decDfsUsed(bpid, dest.length() + destMeta.length());
+      if (!dest.delete() || !destMeta.delete()) {
+        LOG.warn("Failed to delete " + dest + " or " + destMeta);
+      }
+    }
+    throw new IOException("Replica " + replicaInfo + " of block " + b
+        + " was changed while it was being finalized");
   }
   
+  /**
+   * Wait until the files of the replica of the given block are no longer
+   * being created or moved without the dataset lock. Must be called with the
+   * dataset lock held; the lock is released while waiting.
+   */
+  private void waitForPendingReplica(String bpid, long blockId)
+      throws IOException {
+    long deadline = 0;
+    ReplicaInfo replica;
+    while ((replica = volumeMap.get(bpid, blockId)) != null
+        && pendingReplicas.contains(replica)) {
+      final long now = Time.monotonicNow();
+      if (deadline == 0) {
+        deadline = now + datanode.getDnConf().getXceiverStopTimeout();
+      } else if (now >= deadline) {
+        throw new IOException("Timed out waiting for the files of "
+            + replica + " to be created or finalized");
+      }
+      try {
+        wait(Math.max(1, deadline - now));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the files of "
+            + replica + " to be created or finalized");
+      }
+    }
+  }
+
+  /** Must be called with the dataset lock held. */
+  private void removePendingReplica(ReplicaInfo replica) {
+    pendingReplicas.remove(replica);
+    notifyAll();
+  }
+
   private synchronized FinalizedReplica finalizeReplica(String bpid,
       ReplicaInfo replicaInfo) throws IOException {
     FinalizedReplica newReplicaInfo = null;
@@ -1401,6 +1537,15 @@ public List<Long> getCacheReport(String bpid) {
     return cacheManager.getCachedBlocks(bpid);
   }
 
+  /**
+   * Get the ids of the finalized blocks from in-memory blockmap for a block
+   * pool, without holding the dataset lock while iterating over them.
+   */
+  @Override // FsDatasetSpi
+  public long[] getFinalizedBlockIds(String bpid) {
+    return volumeMap.getFinalizedBlockIds(bpid);
+  }
+
   /**
    * Get the list of finalized blocks from in-memory blockmap for a block pool.
    */
@@ -1453,8 +1598,11 @@ public synchronized List<FinalizedReplica> getFinalizedBlocksOnPersistentStorage
   public void checkBlock(ExtendedBlock b, long minLength, ReplicaState state)
       throws ReplicaNotFoundException, UnexpectedReplicaStateException,
       FileNotFoundException, EOFException, IOException {
-    final ReplicaInfo replicaInfo = volumeMap.get(b.getBlockPoolId(), 
-        b.getLocalBlock());
+    final ReplicaInfo replicaInfo;
+    synchronized (this) {
+      waitForPendingReplica(b.getBlockPoolId(), b.getBlockId());
+      replicaInfo = volumeMap.get(b.getBlockPoolId(), b.getLocalBlock());
+    }
     if (replicaInfo == null) {
       throw new ReplicaNotFoundException(b);
     }
@@ -1505,6 +1653,12 @@ File validateBlockFile(String bpid, long blockId) {
     //Should we check for metadata file too?
     final File f;
     synchronized(this) {
+      try {
+        waitForPendingReplica(bpid, blockId);
+      } catch (IOException e) {
+        LOG.warn("Failed to validate the file of block " + blockId, e);
+        return null;
+      }
       f = getFile(bpid, blockId, false);
     }
     
@@ -1556,6 +1710,14 @@ public void invalidate(String bpid, Block invalidBlks[]) throws IOException {
       final File f;
       final FsVolumeImpl v;
       synchronized (this) {
+        try {
+          // delete the files where they end up, not where they were
+          waitForPendingReplica(bpid, invalidBlks[i].getBlockId());
+        } catch (IOException e) {
+          errors.add("Failed to delete replica " + invalidBlks[i] + ": "
+              + e.getMessage());
+          continue;
+        }
         final ReplicaInfo info = volumeMap.get(bpid, invalidBlks[i]);
         if (info == null) {
           // It is okay if the block is not found -- it may be deleted earlier.
@@ -1891,6 +2053,10 @@ public void checkAndUpdate(String bpid, long blockId, File diskFile,
     ReplicaInfo memBlockInfo;
     synchronized (this) {
       memBlockInfo = volumeMap.get(bpid, blockId);
+      if (memBlockInfo != null && pendingReplicas.contains(memBlockInfo)) {
+        // its files are being created or moved - check it in the next scan
+        return;
+      }
       if (memBlockInfo != null && memBlockInfo.getState() != ReplicaState.FINALIZED) {
         // Block is not finalized - ignore the difference
         return;
@@ -2050,6 +2216,11 @@ public ReplicaInfo getReplica(String bpid, long blockId) {
 
   @Override 
   public synchronized String getReplicaString(String bpid, long blockId) {
+    try {
+      waitForPendingReplica(bpid, blockId);
+    } catch (IOException e) {
+      return e.getMessage();
+    }
     final Replica r = volumeMap.get(bpid, blockId);
     return r == null? "null": r.toString();
   }
@@ -2057,6 +2228,8 @@ public synchronized String getReplicaString(String bpid, long blockId) {
   @Override // FsDatasetSpi
   public synchronized ReplicaRecoveryInfo initReplicaRecovery(
       RecoveringBlock rBlock) throws IOException {
+    waitForPendingReplica(rBlock.getBlock().getBlockPoolId(),
+        rBlock.getBlock().getBlockId());
     return initReplicaRecovery(rBlock.getBlock().getBlockPoolId(), volumeMap,
         rBlock.getBlock().getLocalBlock(), rBlock.getNewGenerationStamp(),
         datanode.getDnConf().getXceiverStopTimeout());
@@ -17,12 +17,15 @@
  */
 package org.apache.hadoop.hdfs.server.datanode.fsdataset.impl;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.HadoopIllegalArgumentException;
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
 import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
 
 /**
@@ -32,7 +35,9 @@ class ReplicaMap {
   // Object using which this class is synchronized
   private final Object mutex;
   
-  // Map of block pool Id to another map of block Id to ReplicaInfo.
+  // Map of block pool Id to another map of block Id to ReplicaInfo. The
+  // inner maps are only modified under the mutex, but are concurrent so that
+  // getFinalizedBlockIds can iterate them without it.
   private final Map<String, Map<Long, ReplicaInfo>> map =
     new HashMap<String, Map<Long, ReplicaInfo>>();
   
@@ -111,7 +116,7 @@ ReplicaInfo add(String bpid, ReplicaInfo replicaInfo) {
       Map<Long, ReplicaInfo> m = map.get(bpid);
       if (m == null) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
+        m = new ConcurrentHashMap<Long, ReplicaInfo>();
         map.put(bpid, m);
       }
       return  m.put(replicaInfo.getBlockId(), replicaInfo);
@@ -197,13 +202,43 @@ Collection<ReplicaInfo> replicas(String bpid) {
     return m != null ? m.values() : null;
   }
 
+  /**
+   * Get the ids of the finalized replicas of the given block pool. This does
+   * not hold the mutex while iterating over the replicas, so a replica
+   * added or removed during the call may or may not be included.
+   *
+   * @param bpid block pool id
+   * @return the block ids, in no particular order
+   */
+  long[] getFinalizedBlockIds(String bpid) {
+    checkBlockPool(bpid);
+    Map<Long, ReplicaInfo> m = null;
+    synchronized(mutex) {
+      m = map.get(bpid);
+    }
+    if (m == null) {
+      return new long[0];
+    }
+    long[] ids = new long[m.size()];
+    int n = 0;
+    for (Map.Entry<Long, ReplicaInfo> e : m.entrySet()) {
+      if (e.getValue().getState() == ReplicaState.FINALIZED) {
+        if (n == ids.length) {
+          ids = Arrays.copyOf(ids, 2 * n + 1);
+        }
+        ids[n++] = e.getKey();
+      }
+    }
+    return n == ids.length ? ids : Arrays.copyOf(ids, n);
+  }
+
   void initBlockPool(String bpid) {
     checkBlockPool(bpid);
     synchronized(mutex) {
       Map<Long, ReplicaInfo> m = map.get(bpid);
       if (m == null) {
         // Add an entry for block pool if it does not exist already
-        m = new HashMap<Long, ReplicaInfo>();
+        m = new ConcurrentHashMap<Long, ReplicaInfo>();
         map.put(bpid, m);
       }
     }
@@ -17,8 +17,14 @@
  */
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
 import org.apache.hadoop.classification.InterfaceAudience;
 import org.apache.hadoop.classification.InterfaceStability;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+
+import com.google.common.base.Throwables;
 
 @InterfaceAudience.Private
 @InterfaceStability.Unstable
@@ -31,6 +37,50 @@ public class ContentSummaryComputationContext {
   private long yieldCount = 0;
   private long sleepMilliSec = 0;
   private int sleepNanoSec = 0;
+  private long sleepMicroSec = 0;
+  /** Shared with the workers; null if the computation is sequential. */
+  private ForkedSubtrees forked = null;
+  /** Number of subtrees handed to the workers by this context. */
+  private long forkCount = 0;
+
+  /**
+   * The state shared by the contexts of a parallel computation. The workers
+   * add the counts of their subtrees here, and may hand further subtrees to
+   * other workers. A worker never waits for another one, so a fixed number
+   * of threads cannot deadlock; only the thread which started the
+   * computation waits for all the subtrees in {@link #join()}.
+   */
+  private static class ForkedSubtrees {
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final int splitThreshold;
+    private final Content.Counts counts = Content.Counts.newInstance();
+    /** Subtrees handed to the workers but not started yet. */
+    private int queued = 0;
+    /** Subtrees handed to the workers but not finished yet. */
+    private int outstanding = 0;
+    private long yieldCount = 0;
+    private Throwable error = null;
+
+    ForkedSubtrees(ExecutorService executor, int parallelism,
+        int splitThreshold) {
+      this.executor = executor;
+      this.parallelism = parallelism;
+      this.splitThreshold = splitThreshold;
+    }
+
+    synchronized void finished(ContentSummaryComputationContext subtree,
+        Throwable t) {
+      counts.add(subtree.getCounts());
+      yieldCount += subtree.getYieldCount();
+      if (error == null) {
+        error = t;
+      }
+      if (--outstanding == 0) {
+        notifyAll();
+      }
+    }
+  }
 
   /**
    * Constructor
@@ -50,6 +100,34 @@ public ContentSummaryComputationContext(FSDirectory dir,
     this.counts = Content.Counts.newInstance();
     this.sleepMilliSec = sleepMicroSec/1000;
     this.sleepNanoSec = (int)((sleepMicroSec%1000)*1000);
+    this.sleepMicroSec = sleepMicroSec;
+  }
+
+  /**
+   * Constructor for a computation which divides the subtrees among the
+   * threads of the given executor. Each of them takes the read locks itself,
+   * and yields them like a sequential computation. The caller must hold
+   * the read locks, which are released while it waits for the workers.
+   *
+   * @param parallelism the number of threads of the executor
+   * @param splitThreshold the number of children from which a subdirectory
+   *        is worth handing to another thread
+   */
+  public ContentSummaryComputationContext(FSDirectory dir,
+      FSNamesystem fsn, long limitPerRun, long sleepMicroSec,
+      ExecutorService executor, int parallelism, int splitThreshold) {
+    this(dir, fsn, limitPerRun, sleepMicroSec);
+    // the workers could not take the read locks before the caller is done
+    if (canRelinquishLocks()) {
+      this.forked = new ForkedSubtrees(executor, parallelism, splitThreshold);
+    }
+  }
+
+  /** Constructor for the computation of a subtree by a worker. */
+  private ContentSummaryComputationContext(
+      ContentSummaryComputationContext parent) {
+    this(parent.dir, parent.fsn, parent.limitPerRun, parent.sleepMicroSec);
+    this.forked = parent.forked;
   }
 
   /** Constructor for blocking computation. */
@@ -87,16 +165,7 @@ public boolean yield() {
     // Update the next limit
     nextCountLimit = currentCount + limitPerRun;
 
-    boolean hadDirReadLock = dir.hasReadLock();
-    boolean hadDirWriteLock = dir.hasWriteLock();
-    boolean hadFsnReadLock = fsn.hasReadLock();
-    boolean hadFsnWriteLock = fsn.hasWriteLock();
-
-    // sanity check.
-    if (!hadDirReadLock || !hadFsnReadLock || hadDirWriteLock ||
-        hadFsnWriteLock || dir.getReadHoldCount() != 1 ||
-        fsn.getReadHoldCount() != 1) {
-      // cannot relinquish
+    if (!canRelinquishLocks()) {
       return false;
     }
 
@@ -116,6 +185,129 @@ public boolean yield() {
     return true;
   }
 
+  /** Return the number of subtrees handed to other threads */
+  long getForkCount() {
+    return forkCount;
+  }
+
+  /**
+   * Hand the content summary of the given child to a worker thread, if it
+   * is a directory with at least the split threshold of children and there
+   * is a worker to take it soon. Its counts are not added to this context;
+   * they are collected by {@link #join()}.
+   *
+   * @return true if the child is computed by a worker; false if the caller
+   *         should compute it.
+   */
+  boolean fork(final INode child) {
+    final ForkedSubtrees shared = forked;
+    if (shared == null || !child.isDirectory()
+        || child.asDirectory().getChildrenList(Snapshot.CURRENT_STATE_ID)
+            .size() < shared.splitThreshold) {
+      return false;
+    }
+    synchronized (shared) {
+      if (shared.queued >= shared.parallelism) {
+        // the workers are busy, it is as fast to compute it here
+        return false;
+      }
+      shared.queued++;
+      shared.outstanding++;
+    }
+    final ContentSummaryComputationContext subtree =
+        new ContentSummaryComputationContext(this);
+    try {
+      shared.executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (shared) {
+            shared.queued--;
+          }
+          Throwable error = null;
+          fsn.readLock();
+          dir.readLock();
+          try {
+            child.computeContentSummary(subtree);
+          } catch (Throwable t) {
+            error = t;
+          } finally {
+            dir.readUnlock();
+            fsn.readUnlock();
+          }
+          shared.finished(subtree, error);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the executor is shut down
+      synchronized (shared) {
+        shared.queued--;
+        shared.outstanding--;
+      }
+      return false;
+    }
+    forkCount++;
+    return true;
+  }
+
+  /**
+   * Wait for the subtrees handed to the workers, and add their counts. The
+   * locks held by the caller are released while waiting, which counts as a
+   * yield.
+   *
+   * @return this context
+   */
+  ContentSummaryComputationContext join() {
+    final ForkedSubtrees shared = forked;
+    if (shared == null || forkCount == 0) {
+      return this;
+    }
+    forked = null;
+
+    dir.readUnlock();
+    fsn.readUnlock();
+    boolean interrupted = false;
+    try {
+      synchronized (shared) {
+        while (shared.outstanding > 0) {
+          try {
+            shared.wait();
+          } catch (InterruptedException ie) {
+            interrupted = true;
+          }
+        }
+      }
+    } finally {
+      // reacquire
+      fsn.readLock();
+      dir.readLock();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (shared) {
+      if (shared.error != null) {
+        throw Throwables.propagate(shared.error);
+      }
+      counts.add(shared.counts);
+      yieldCount += shared.yieldCount;
+    }
+    yieldCount++;
+    return this;
+  }
+
+  /**
+   * @return true if the calling thread holds exactly one read lock on both
+   *         the namesystem and the directory, and no write lock.
+   */
+  private boolean canRelinquishLocks() {
+    if (dir == null || fsn == null) {
+      return false;
+    }
+    return dir.hasReadLock() && fsn.hasReadLock() && !dir.hasWriteLock()
+        && !fsn.hasWriteLock() && dir.getReadHoldCount() == 1
+        && fsn.getReadHoldCount() == 1;
+  }
+
   /** Get the content counts */
   public Content.Counts getCounts() {
     return counts;
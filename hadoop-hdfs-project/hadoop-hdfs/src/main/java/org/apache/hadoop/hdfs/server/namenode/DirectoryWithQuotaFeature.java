@@ -68,9 +68,12 @@ ContentSummaryComputationContext computeContentSummary(final INodeDirectory dir,
       final ContentSummaryComputationContext summary) {
     final long original = summary.getCounts().get(Content.DISKSPACE);
     long oldYieldCount = summary.getYieldCount();
+    long oldForkCount = summary.getForkCount();
     dir.computeDirectoryContentSummary(summary);
-    // Check only when the content has not changed in the middle.
-    if (oldYieldCount == summary.getYieldCount()) {
+    // Check only when the content has not changed in the middle, and when
+    // no subtree was counted by another thread.
+    if (oldYieldCount == summary.getYieldCount()
+        && oldForkCount == summary.getForkCount()) {
       checkDiskspace(dir, summary.getCounts().get(Content.DISKSPACE) - original);
     }
     return summary;
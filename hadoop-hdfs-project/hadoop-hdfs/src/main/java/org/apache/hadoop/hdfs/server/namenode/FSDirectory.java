@@ -31,6 +31,8 @@
 import java.util.EnumSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -95,6 +97,7 @@
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.hadoop.security.AccessControlException;
 
 /**
@@ -145,6 +148,10 @@ private static INodeDirectory createRoot(FSNamesystem namesystem) {
   private final int lsLimit;  // max list limit
   private final int contentCountLimit; // max content summary counts per run
   private final long contentSleepMicroSec;
+  /** Computes content summaries in parallel, or null if disabled. */
+  private final ExecutorService contentSummaryExecutor;
+  private final int contentSummaryThreads;
+  private final int contentSummarySplitThreshold;
   private final INodeMap inodeMap; // Synchronized by dirLock
   private long yieldCount = 0; // keep track of lock yield count.
   private final int inodeXAttrsLimit; //inode xattrs max limit
@@ -193,6 +200,8 @@ public int getWriteHoldCount() {
    * byte[] objects and reduce heap usage.
    */
   private final NameCache<ByteArray> nameCache;
+  /** Caches the resolved parents of paths, or null if disabled. */
+  private final ResolvedPathCache resolvedPathCache;
 
   FSDirectory(FSNamesystem ns, Configuration conf) {
     this.dirLock = new ReentrantReadWriteLock(true); // fair
@@ -208,6 +217,16 @@ public int getWriteHoldCount() {
     this.contentSleepMicroSec = conf.getLong(
         DFSConfigKeys.DFS_CONTENT_SUMMARY_SLEEP_MICROSEC_KEY,
         DFSConfigKeys.DFS_CONTENT_SUMMARY_SLEEP_MICROSEC_DEFAULT);
+    this.contentSummaryThreads = conf.getInt(
+        DFSConfigKeys.DFS_CONTENT_SUMMARY_THREADS_KEY,
+        DFSConfigKeys.DFS_CONTENT_SUMMARY_THREADS_DEFAULT);
+    this.contentSummarySplitThreshold = conf.getInt(
+        DFSConfigKeys.DFS_CONTENT_SUMMARY_SPLIT_THRESHOLD_KEY,
+        DFSConfigKeys.DFS_CONTENT_SUMMARY_SPLIT_THRESHOLD_DEFAULT);
+    this.contentSummaryExecutor = contentSummaryThreads <= 1 ? null
+        : Executors.newFixedThreadPool(contentSummaryThreads,
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("ContentSummaryWorker-%d").build());
     
     // filesystem limits
     this.maxComponentLength = conf.getInt(
@@ -238,6 +257,13 @@ public int getWriteHoldCount() {
     NameNode.LOG.info("Caching file names occuring more than " + threshold
         + " times");
     nameCache = new NameCache<ByteArray>(threshold);
+    final int resolvedPathCacheSize = conf.getInt(
+        DFSConfigKeys.DFS_NAMENODE_RESOLVED_PATH_CACHE_SIZE_KEY,
+        DFSConfigKeys.DFS_NAMENODE_RESOLVED_PATH_CACHE_SIZE_DEFAULT);
+    NameNode.LOG.info("Caching the resolved parents of up to "
+        + resolvedPathCacheSize + " paths");
+    resolvedPathCache = resolvedPathCacheSize <= 0 ? null
+        : new ResolvedPathCache(resolvedPathCacheSize);
     namesystem = ns;
 
     ezManager = new EncryptionZoneManager(this, conf);
@@ -2137,6 +2163,9 @@ private long removeLastINode(final INodesInPath iip)
     if (!parent.removeChild(last, latestSnapshot)) {
       return -1;
     }
+    if (last.isDirectory() || last.isReference()) {
+      invalidateResolvedPaths();
+    }
     
     if (!last.isInLatestSnapshot(latestSnapshot)) {
       final Quota.Counts counts = last.computeQuotaUsage();
@@ -2174,7 +2203,8 @@ ContentSummary getContentSummary(String src)
         ContentSummaryComputationContext cscc =
 
             new ContentSummaryComputationContext(this, getFSNamesystem(),
-            contentCountLimit, contentCountLimit);
+            contentCountLimit, contentCountLimit, contentSummaryExecutor,
+            contentSummaryThreads, contentSummarySplitThreshold);
         ContentSummary cs = targetNode.computeAndConvertContentSummary(cscc);
         yieldCount += cscc.getYieldCount();
         return cs;
@@ -2392,6 +2422,7 @@ void reset() {
       inodeMap.clear();
       addToInodeMap(rootDir);
       nameCache.reset();
+      invalidateResolvedPaths();
     } finally {
       writeUnlock();
     }
@@ -3116,6 +3147,9 @@ void cacheName(INode inode) {
   void shutdown() {
     nameCache.reset();
     inodeMap.clear();
+    if (contentSummaryExecutor != null) {
+      contentSummaryExecutor.shutdownNow();
+    }
   }
   
   /**
@@ -3279,11 +3313,29 @@ private INodesInPath getLastINodeInPath(String path, boolean resolveLink
   /** @return the {@link INodesInPath} containing all inodes in the path. */
   INodesInPath getINodesInPath(String path, boolean resolveLink
   ) throws UnresolvedLinkException {
+    if (resolvedPathCache != null) {
+      return resolvedPathCache.resolve(rootDir, path, resolveLink);
+    }
     final byte[][] components = INode.getPathComponents(path);
     return INodesInPath.resolve(rootDir, components, components.length,
             resolveLink);
   }
 
+  /**
+   * Invalidate the cached resolution of paths, after a directory has been
+   * removed from the tree.
+   */
+  private void invalidateResolvedPaths() {
+    if (resolvedPathCache != null) {
+      resolvedPathCache.clear();
+    }
+  }
+
+  @VisibleForTesting
+  ResolvedPathCache getResolvedPathCache() {
+    return resolvedPathCache;
+  }
+
   /** @return the last inode in the path. */
   INode getNode(String path, boolean resolveLink)
           throws UnresolvedLinkException {
@@ -3308,9 +3360,7 @@ private INode getINode4Write(String src, boolean resolveLink)
    */
   INodesInPath getINodesInPath4Write(String src, boolean resolveLink)
           throws UnresolvedLinkException, SnapshotAccessControlException {
-    final byte[][] components = INode.getPathComponents(src);
-    INodesInPath inodesInPath = INodesInPath.resolve(rootDir, components,
-            components.length, resolveLink);
+    INodesInPath inodesInPath = getINodesInPath(src, resolveLink);
     if (inodesInPath.isSnapshot()) {
       throw new SnapshotAccessControlException(
               "Modification on a read-only snapshot is disallowed");
@@ -173,6 +173,12 @@ private enum State {
 
   private final NNStorage storage;
   private final Configuration conf;
+
+  // whether RPC handlers may return before their edits are synced
+  private final boolean asyncLogSync;
+  // syncs the edits of postponed RPC responses; only set when the log is
+  // open for write and asyncLogSync is enabled
+  private volatile EditLogSyncer syncer;
   
   private final List<URI> editsDirs;
 
@@ -232,6 +238,13 @@ protected synchronized TransactionId initialValue() {
     this.editsDirs = Lists.newArrayList(editsDirs);
 
     this.sharedEditsDirs = FSNamesystem.getSharedEditsDirs(conf);
+
+    this.asyncLogSync = conf.getBoolean(
+        DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING,
+        DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING_DEFAULT);
+    if (asyncLogSync) {
+      LOG.info("Edit log sync of RPC calls is asynchronous");
+    }
   }
   
   public synchronized void initJournalsForWrite() {
@@ -315,6 +328,11 @@ synchronized void openForWrite() throws IOException {
     
     startLogSegment(segmentTxId, true);
     assert state == State.IN_SEGMENT : "Bad state: " + state;
+
+    if (asyncLogSync && syncer == null) {
+      syncer = new EditLogSyncer();
+      syncer.start();
+    }
   }
   
   /**
@@ -351,6 +369,9 @@ synchronized void close() {
     }
 
     try {
+      // the syncer syncs the edits of the calls it holds while the segment
+      // is still open, and responds to them, before the log is closed
+      stopSyncer();
       if (state == State.IN_SEGMENT) {
         assert editLogStream != null;
         waitForSyncToFinish();
@@ -434,7 +455,7 @@ assert isOpenForWrite() :
     }
     
     // sync buffered edit log entries to persistent store
-    logSync();
+    logSync(myTransactionId.get().txid);
   }
 
   /**
@@ -536,8 +557,14 @@ void logSyncAll() {
       TransactionId id = myTransactionId.get();
       id.txid = txid;
     }
-    // Then make sure we're synced up to this point
-    logSync();
+    // Then make sure we're synced up to this point. The caller relies on
+    // the edits being durable on return, so the response of an RPC handler
+    // must not be postponed to the syncer.
+    if (syncer == null) {
+      logSync();
+    } else {
+      logSync(myTransactionId.get().txid);
+    }
   }
   
   /**
@@ -569,11 +596,27 @@ void logSyncAll() {
    * waitForSyncToFinish() before assuming they are running alone.
    */
   public void logSync() {
-    long syncStart = 0;
-
     // Fetch the transactionId of this thread. 
     long mytxid = myTransactionId.get().txid;
-    
+
+    // When called from an RPC handler, postpone the response until the
+    // syncer has made the edits durable instead of blocking the handler.
+    final EditLogSyncer s = syncer;
+    if (s != null && !Thread.holdsLock(this)) {
+      final Server.Call call = Server.getCurCall().get();
+      if (call != null && s.enqueue(mytxid, call)) {
+        return;
+      }
+    }
+    logSync(mytxid);
+  }
+
+  /**
+   * Sync all modifications up to the given transaction id.
+   */
+  private void logSync(long mytxid) {
+    long syncStart = 0;
+
     boolean sync = false;
     try {
       EditLogOutputStream logStream = null;
@@ -1296,6 +1339,116 @@ synchronized void waitForSyncToFinish() {
     }
   }
 
+  /**
+   * Stop the syncer, if any, and wait until it has responded to all the calls
+   * it holds. The monitor is released while waiting, so that the syncer can
+   * still sync their edits.
+   */
+  private synchronized void stopSyncer() {
+    final EditLogSyncer s = syncer;
+    if (s == null) {
+      return;
+    }
+    syncer = null;
+    s.shutdown();
+    while (!s.exited) {
+      try {
+        wait(1000);
+      } catch (InterruptedException ie) {}
+    }
+  }
+
+  /**
+   * Group commits the edits of RPC calls whose responses were postponed by
+   * {@link FSEditLog#logSync()}: each pass syncs up to the highest queued
+   * transaction id and then releases the responses of all queued calls.
+   */
+  private class EditLogSyncer extends Thread {
+    private List<Server.Call> calls = new ArrayList<Server.Call>();
+    private long maxTxId = HdfsConstants.INVALID_TXID;
+    private boolean running = true;
+    /** Set once all responses are sent; guarded by the FSEditLog. */
+    private boolean exited = false;
+
+    EditLogSyncer() {
+      setName("FSEditLogSyncer");
+      setDaemon(true);
+    }
+
+    /**
+     * @return false if the syncer is shutting down, in which case the caller
+     *         has to sync its edits itself.
+     */
+    synchronized boolean enqueue(long txid, Server.Call call) {
+      if (!running) {
+        return false;
+      }
+      call.postponeResponse();
+      calls.add(call);
+      maxTxId = Math.max(maxTxId, txid);
+      notify();
+      return true;
+    }
+
+    synchronized void shutdown() {
+      running = false;
+      notify();
+    }
+
+    @Override
+    public void run() {
+      try {
+        boolean stopping = false;
+        while (!stopping) {
+          final List<Server.Call> batch;
+          final long txid;
+          synchronized (this) {
+            while (running && calls.isEmpty()) {
+              try {
+                wait();
+              } catch (InterruptedException ie) {
+              }
+            }
+            batch = calls;
+            txid = maxTxId;
+            stopping = !running;
+            calls = new ArrayList<Server.Call>();
+          }
+          IOException error = null;
+          if (!batch.isEmpty()) {
+            if (!stopping || isSegmentOpen()) {
+              logSync(txid);
+            } else if (txid > getSyncTxId()) {
+              // the segment was ended without the edits of these calls
+              error = new IOException("The edit log was closed before the"
+                  + " edits of the call were synced");
+            }
+          }
+          for (Server.Call call : batch) {
+            try {
+              if (error == null) {
+                call.sendResponse();
+              } else {
+                call.abortResponse(error);
+              }
+            } catch (IOException e) {
+              LOG.warn("Failed to send the postponed response of " + call, e);
+            }
+          }
+        }
+      } catch (Throwable t) {
+        final String msg = "Edit log syncer failed";
+        LOG.fatal(msg, t);
+        terminate(1, msg);
+      } finally {
+        synchronized (FSEditLog.this) {
+          exited = true;
+          FSEditLog.this.notifyAll();
+        }
+      }
+    }
+  }
+
   /**
    * Return the txid of the last synced transaction.
    */
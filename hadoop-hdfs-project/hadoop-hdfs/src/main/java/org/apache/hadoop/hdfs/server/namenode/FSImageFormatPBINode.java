@@ -18,13 +18,21 @@
 
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -54,10 +62,13 @@
 import org.apache.hadoop.hdfs.server.namenode.FsImageProto.INodeSection.XAttrFeatureProto;
 import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
 import org.apache.hadoop.hdfs.util.ReadOnlyList;
+import org.apache.hadoop.io.IOUtils;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 
 @InterfaceAudience.Private
 public final class FSImageFormatPBINode {
@@ -93,6 +104,9 @@ public final class FSImageFormatPBINode {
   
 
   public final static class Loader {
+    /** Number of inodes handed to a loader thread at a time. */
+    private static final int INODE_LOAD_BATCH_SIZE = 1024;
+
     public static PermissionStatus loadPermission(long id,
         final String[] stringTable) {
       short perm = (short) (id & ((1 << GROUP_STRID_OFFSET) - 1));
@@ -223,6 +237,117 @@ void loadINodeSection(InputStream in) throws IOException {
       }
     }
 
+    /**
+     * Load the inode section, decoding the inodes on a pool of
+     * <code>numThreads</code> threads. The section is still read sequentially
+     * by the calling thread, which only splits it into length-delimited
+     * records; parsing the protobuf records and building the INode objects,
+     * which dominates the cost of loading a large namespace, happens on the
+     * pool. The decoded inodes are added to the inode map under a lock since
+     * the map is not thread safe.
+     */
+    void loadINodeSection(InputStream in, int numThreads) throws IOException {
+      if (numThreads <= 1) {
+        loadINodeSection(in);
+        return;
+      }
+      INodeSection s = INodeSection.parseDelimitedFrom(in);
+      fsn.resetLastInodeId(s.getLastInodeId());
+      LOG.info("Loading " + s.getNumInodes() + " INodes using " + numThreads
+          + " threads.");
+      ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+          new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("FSImageINodeLoader-%d").build());
+      CompletionService<Void> completion =
+          new ExecutorCompletionService<Void>(executor);
+      // Bound the number of decoded batches held in memory at any time.
+      final int maxPendingBatches = numThreads * 2;
+      int pendingBatches = 0;
+      try {
+        List<byte[]> batch = new ArrayList<byte[]>(INODE_LOAD_BATCH_SIZE);
+        for (long i = 0; i < s.getNumInodes(); ++i) {
+          batch.add(readDelimitedRecord(in));
+          if (batch.size() == INODE_LOAD_BATCH_SIZE
+              || i == s.getNumInodes() - 1) {
+            if (pendingBatches == maxPendingBatches) {
+              waitForBatch(completion);
+              pendingBatches--;
+            }
+            completion.submit(new INodeBatchLoader(batch));
+            pendingBatches++;
+            batch = new ArrayList<byte[]>(INODE_LOAD_BATCH_SIZE);
+          }
+        }
+        for (; pendingBatches > 0; pendingBatches--) {
+          waitForBatch(completion);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    private static byte[] readDelimitedRecord(InputStream in)
+        throws IOException {
+      final int firstByte = in.read();
+      if (firstByte == -1) {
+        throw new EOFException("Unexpected end of the INode section");
+      }
+      final int size = CodedInputStream.readRawVarint32(firstByte, in);
+      final byte[] record = new byte[size];
+      IOUtils.readFully(in, record, 0, size);
+      return record;
+    }
+
+    private static void waitForBatch(CompletionService<Void> completion)
+        throws IOException {
+      try {
+        completion.take().get();
+      } catch (InterruptedException e) {
+        throw (InterruptedIOException) new InterruptedIOException(
+            "Interrupted while loading the INode section").initCause(e);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException("Failed to load the INode section", cause);
+      }
+    }
+
+    /** Decodes a batch of serialized inodes and adds them to the inode map. */
+    private class INodeBatchLoader implements Callable<Void> {
+      private final List<byte[]> records;
+
+      INodeBatchLoader(List<byte[]> records) {
+        this.records = records;
+      }
+
+      @Override
+      public Void call() throws IOException {
+        final List<INode> inodes = new ArrayList<INode>(records.size());
+        INodeSection.INode root = null;
+        for (byte[] record : records) {
+          INodeSection.INode p = INodeSection.INode.parseFrom(record);
+          if (p.getId() == INodeId.ROOT_INODE_ID) {
+            root = p;
+          } else {
+            inodes.add(loadINode(p));
+          }
+        }
+        synchronized (Loader.this) {
+          if (root != null) {
+            loadRootINode(root);
+          }
+          for (INode n : inodes) {
+            dir.addToInodeMap(n);
+          }
+        }
+        return null;
+      }
+    }
+
     /**
      * Load the under-construction files section, and update the lease map
      */
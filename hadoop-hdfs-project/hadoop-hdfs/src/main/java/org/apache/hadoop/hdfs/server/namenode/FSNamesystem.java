@@ -90,6 +90,8 @@
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_STORAGE_POLICY_ENABLED_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_SUPPORT_APPEND_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_SUPPORT_APPEND_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_DEFAULT;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_KEY;
 import static org.apache.hadoop.hdfs.server.common.HdfsServerConstants.SECURITY_XATTR_UNREADABLE_BY_SUPERUSER;
 import static org.apache.hadoop.util.Time.now;
 
@@ -786,7 +788,9 @@ static FSNamesystem loadFromDisk(Configuration conf) throws IOException {
     }
     boolean fair = conf.getBoolean("dfs.namenode.fslock.fair", true);
     LOG.info("fsLock is fair:" + fair);
-    fsLock = new FSNamesystemLock(fair);
+    fsLock = new FSNamesystemLock(fair, conf.getLong(
+        DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_KEY,
+        DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_DEFAULT));
     cond = fsLock.writeLock().newCondition();
     this.fsImage = fsImage;
     try {
@@ -1509,10 +1513,13 @@ public static List<URI> getSharedEditsDirs(Configuration conf) {
 
   @Override
   public void readLock() {
+    final long start = System.nanoTime();
     this.fsLock.readLock().lock();
+    this.fsLock.readLockAcquired(start);
   }
   @Override
   public void longReadLockInterruptibly() throws InterruptedException {
+    final long start = System.nanoTime();
     this.fsLock.longReadLock().lockInterruptibly();
     try {
       this.fsLock.readLock().lockInterruptibly();
@@ -1522,6 +1529,7 @@ public void longReadLockInterruptibly() throws InterruptedException {
       this.fsLock.longReadLock().unlock();
       throw ie;
     }
+    this.fsLock.readLockAcquired(start);
   }
   @Override
   public void longReadUnlock() {
@@ -1534,11 +1542,14 @@ public void readUnlock() {
   }
   @Override
   public void writeLock() {
+    final long start = System.nanoTime();
     this.fsLock.longReadLock().lock();
     this.fsLock.writeLock().lock();
+    this.fsLock.writeLockAcquired(start);
   }
   @Override
   public void writeLockInterruptibly() throws InterruptedException {
+    final long start = System.nanoTime();
     this.fsLock.longReadLock().lockInterruptibly();
     try {
       this.fsLock.writeLock().lockInterruptibly();
@@ -1548,11 +1559,14 @@ public void writeLockInterruptibly() throws InterruptedException {
       this.fsLock.longReadLock().unlock();
       throw ie;
     }
+    this.fsLock.writeLockAcquired(start);
   }
   @Override
   public void writeUnlock() {
+    final long heldNanos = this.fsLock.writeLockReleasing();
     this.fsLock.writeLock().unlock();
     this.fsLock.longReadLock().unlock();
+    this.fsLock.writeLockReleased(heldNanos);
   }
   @Override
   public boolean hasWriteLock() {
@@ -5453,6 +5467,36 @@ public int getTotalLoad() {
     return datanodeStatistics.getXceiverCount();
   }
   
+  @Metric({"FSLockReadAcquired",
+      "Number of times the namesystem read lock was acquired"})
+  public long getFSLockReadAcquired() {
+    return fsLock.getReadLockAcquiredCount();
+  }
+
+  @Metric({"FSLockReadWaitMillis",
+      "Total time spent waiting for the namesystem read lock"})
+  public long getFSLockReadWaitMillis() {
+    return fsLock.getReadLockWaitNanos() / 1000000L;
+  }
+
+  @Metric({"FSLockWriteAcquired",
+      "Number of times the namesystem write lock was acquired"})
+  public long getFSLockWriteAcquired() {
+    return fsLock.getWriteLockAcquiredCount();
+  }
+
+  @Metric({"FSLockWriteWaitMillis",
+      "Total time spent waiting for the namesystem write lock"})
+  public long getFSLockWriteWaitMillis() {
+    return fsLock.getWriteLockWaitNanos() / 1000000L;
+  }
+
+  @Metric({"FSLockWriteHeldMillis",
+      "Total time the namesystem write lock was held"})
+  public long getFSLockWriteHeldMillis() {
+    return fsLock.getWriteLockHeldNanos() / 1000000L;
+  }
+
   @Metric({ "SnapshottableDirectories", "Number of snapshottable directories" })
   public int getNumSnapshottableDirs() {
     return this.snapshotManager.getNumSnapshottableDirs();
@@ -19,11 +19,16 @@
 
 package org.apache.hadoop.hdfs.server.namenode;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import org.apache.hadoop.hdfs.DFSConfigKeys;
+import org.apache.hadoop.ipc.Server;
+import org.apache.hadoop.util.StringUtils;
+
 import com.google.common.annotations.VisibleForTesting;
 
 /**
@@ -52,8 +57,31 @@ class FSNamesystemLock implements ReadWriteLock {
   @VisibleForTesting
   protected final ReentrantLock longReadLock = new ReentrantLock(true);
   
+  /**
+   * Statistics on how long threads wait for, and hold, the FSNS lock. Only
+   * the outermost acquisition of a reentrant hold is accounted for, so the
+   * numbers reflect contention rather than nesting depth. The hold start time
+   * of the write lock is only touched by the thread owning the write lock.
+   */
+  private final AtomicLong readLockAcquired = new AtomicLong();
+  private final AtomicLong readLockWaitNanos = new AtomicLong();
+  private final AtomicLong writeLockAcquired = new AtomicLong();
+  private final AtomicLong writeLockWaitNanos = new AtomicLong();
+  private final AtomicLong writeLockHeldNanos = new AtomicLong();
+  private long writeLockHeldTimeStamp;
+
+  /** Threshold (ns) above which a write lock hold is logged on release. */
+  private final long writeLockReportingThresholdNanos;
+
   FSNamesystemLock(boolean fair) {
+    this(fair,
+        DFSConfigKeys.DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_DEFAULT);
+  }
+
+  FSNamesystemLock(boolean fair, long writeLockReportingThresholdMs) {
     this.coarseLock = new ReentrantReadWriteLock(fair);
+    this.writeLockReportingThresholdNanos =
+        writeLockReportingThresholdMs * 1000000L;
   }
   
   @Override
@@ -81,4 +109,92 @@ public int getWriteHoldCount() {
   public boolean isWriteLockedByCurrentThread() {
     return coarseLock.isWriteLockedByCurrentThread();
   }
+
+  /**
+   * Must be called right after the read lock has been acquired.
+   * @param waitStartNanos value of {@link System#nanoTime()} taken before
+   *                       trying to acquire the lock
+   */
+  void readLockAcquired(long waitStartNanos) {
+    if (coarseLock.getReadHoldCount() == 1 &&
+        !coarseLock.isWriteLockedByCurrentThread()) {
+      readLockAcquired.incrementAndGet();
+      final long waitNanos = System.nanoTime() - waitStartNanos;
+      readLockWaitNanos.addAndGet(waitNanos);
+      Server.addLockWaitTime(waitNanos);
+    }
+  }
+
+  /**
+   * Must be called right after the write lock has been acquired.
+   * @param waitStartNanos value of {@link System#nanoTime()} taken before
+   *                       trying to acquire the lock
+   */
+  void writeLockAcquired(long waitStartNanos) {
+    if (coarseLock.getWriteHoldCount() == 1) {
+      writeLockHeldTimeStamp = System.nanoTime();
+      writeLockAcquired.incrementAndGet();
+      final long waitNanos = writeLockHeldTimeStamp - waitStartNanos;
+      writeLockWaitNanos.addAndGet(waitNanos);
+      Server.addLockWaitTime(waitNanos);
+    }
+  }
+
+  /**
+   * Must be called right before the write lock is released. Accounts for the
+   * hold time of the outermost hold.
+   * @return the hold time, in nanoseconds, to pass to
+   *         {@link #writeLockReleased(long)} once the lock is released, or -1
+   *         if there is nothing to report
+   */
+  long writeLockReleasing() {
+    if (coarseLock.getWriteHoldCount() != 1 ||
+        !coarseLock.isWriteLockedByCurrentThread()) {
+      return -1;
+    }
+    final long heldNanos = System.nanoTime() - writeLockHeldTimeStamp;
+    writeLockHeldNanos.addAndGet(heldNanos);
+    // the write lock excludes all other calls, so charge it to the caller
+    Server.addLockHoldTime(heldNanos);
+    return heldNanos >= writeLockReportingThresholdNanos ? heldNanos : -1;
+  }
+
+  /**
+   * Must be called right after the write lock has been released. Logs the
+   * holder's stack trace if the lock was held for longer than the reporting
+   * threshold, so that other threads are not kept waiting for the log.
+   * @param heldNanos value returned by {@link #writeLockReleasing()}
+   */
+  void writeLockReleased(long heldNanos) {
+    if (heldNanos >= 0) {
+      FSNamesystem.LOG.info("FSNamesystem write lock held for "
+          + (heldNanos / 1000000L) + " ms via\n"
+          + StringUtils.getStackTrace(Thread.currentThread()));
+    }
+  }
+
+  /** @return number of times the read lock was acquired by a new holder. */
+  public long getReadLockAcquiredCount() {
+    return readLockAcquired.get();
+  }
+
+  /** @return total time, in nanoseconds, spent waiting for the read lock. */
+  public long getReadLockWaitNanos() {
+    return readLockWaitNanos.get();
+  }
+
+  /** @return number of times the write lock was acquired by a new holder. */
+  public long getWriteLockAcquiredCount() {
+    return writeLockAcquired.get();
+  }
+
+  /** @return total time, in nanoseconds, spent waiting for the write lock. */
+  public long getWriteLockWaitNanos() {
+    return writeLockWaitNanos.get();
+  }
+
+  /** @return total time, in nanoseconds, the write lock has been held. */
+  public long getWriteLockHeldNanos() {
+    return writeLockHeldNanos.get();
+  }
 }
@@ -168,7 +168,8 @@ void checkPermission(String path, FSDirectory dir, boolean doCheckOwner,
     int ancestorIndex = inodes.length - 2;
     for(; ancestorIndex >= 0 && inodes[ancestorIndex] == null;
         ancestorIndex--);
-    checkTraverse(inodes, ancestorIndex, snapshotId);
+    checkTraverse(inodes, inodesInPath.getTraversable(), ancestorIndex,
+        snapshotId);
 
     final INode last = inodes[inodes.length - 1];
     if (parentAccess != null && parentAccess.implies(FsAction.WRITE)
@@ -202,9 +203,10 @@ private void checkOwner(INode inode, int snapshotId
   }
 
   /** Guarded by {@link FSNamesystem#readLock()} */
-  private void checkTraverse(INode[] inodes, int last, int snapshotId
-      ) throws AccessControlException {
-    for(int j = 0; j <= last; j++) {
+  private void checkTraverse(INode[] inodes, int first, int last,
+      int snapshotId) throws AccessControlException {
+    // inodes before first are known to grant execute permission to all
+    for(int j = first; j <= last; j++) {
       check(inodes[j], snapshotId, FsAction.EXECUTE);
     }
   }
@@ -40,6 +40,7 @@
 import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
 import org.apache.hadoop.hdfs.util.Diff.ListType;
 import org.apache.hadoop.hdfs.util.ReadOnlyList;
+import org.apache.hadoop.hdfs.util.SegmentedArrayList;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -65,6 +66,20 @@ public static INodeDirectory valueOf(INode inode, Object path
   }
 
   protected static final int DEFAULT_FILES_PER_DIRECTORY = 5;
+  /**
+   * Once a directory has more children than this, they are moved from an
+   * ArrayList into a {@link SegmentedArrayList} so that an insertion or a
+   * removal does not shift the whole children array.
+   */
+  static final int LARGE_DIRECTORY_THRESHOLD =
+      SegmentedArrayList.DEFAULT_MAX_SEGMENT_SIZE * 4;
+  /**
+   * Once a large directory has fewer children than this, they are moved back
+   * into an ArrayList, which is smaller and faster to search. It is below
+   * {@link #LARGE_DIRECTORY_THRESHOLD} so that a directory whose size
+   * hovers around the threshold is not converted back and forth.
+   */
+  static final int SMALL_DIRECTORY_THRESHOLD = LARGE_DIRECTORY_THRESHOLD / 2;
   final static byte[] ROOT_NAME = DFSUtil.string2Bytes("");
 
   private List<INode> children = null;
@@ -309,6 +324,10 @@ public void replaceChild(INode oldChild, final INode newChild,
       final INodeReference.WithCount withCount = 
           (WithCount) oldChild.asReference().getReferredINode();
       withCount.removeReference(oldChild.asReference());
+    } else if (!oldChild.isReference() && !newChild.isReference()
+        && oldChild.getParent() == this) {
+      // the old child is no longer in the tree
+      oldChild.setParent(null);
     }
     children.set(i, newChild);
     
@@ -494,6 +513,10 @@ public boolean removeChild(final INode child) {
 
     final INode removed = children.remove(i);
     Preconditions.checkState(removed == child);
+    if (children.size() < SMALL_DIRECTORY_THRESHOLD
+        && children instanceof SegmentedArrayList) {
+      children = new ArrayList<INode>(children);
+    }
     return true;
   }
 
@@ -549,6 +572,10 @@ private void addChild(final INode node, final int insertionPoint) {
     }
     node.setParent(this);
     children.add(-insertionPoint - 1, node);
+    if (children.size() > LARGE_DIRECTORY_THRESHOLD
+        && !(children instanceof SegmentedArrayList)) {
+      children = new SegmentedArrayList<INode>(children);
+    }
 
     if (node.getGroupName() == null) {
       node.setGroup(getGroupName());
@@ -629,7 +656,9 @@ ContentSummaryComputationContext computeDirectoryContentSummary(
       byte[] childName = child.getLocalNameBytes();
 
       long lastYieldCount = summary.getYieldCount();
-      child.computeContentSummary(summary);
+      if (!summary.fork(child)) {
+        child.computeContentSummary(summary);
+      }
 
       // Check whether the computation was paused in the subtree.
       // The counts may be off, but traversing the rest of children
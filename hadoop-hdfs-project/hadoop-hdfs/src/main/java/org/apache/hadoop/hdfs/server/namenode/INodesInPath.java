@@ -142,13 +142,50 @@ static INodesInPath resolve(final INodeDirectory startingDir,
       final boolean resolveLink) throws UnresolvedLinkException {
     Preconditions.checkArgument(startingDir.compareTo(components[0]) == 0);
 
-    INode curNode = startingDir;
     final INodesInPath existing = new INodesInPath(components, numOfINodes);
-    int count = 0;
     int index = numOfINodes - components.length;
     if (index > 0) {
       index = 0;
     }
+    return resolve(existing, startingDir, 0, index, resolveLink);
+  }
+
+  /**
+   * Resolve all the components of a path whose leading components are
+   * already known to resolve to the given directories. None of the
+   * directories may be a reference or have snapshots, so that resolving them
+   * again would not change the snapshot state of the result.
+   *
+   * @param prefix the resolved inodes of components[0, prefix.length)
+   * @param components array of path component name
+   * @param traversable the number of leading inodes in prefix which are
+   *        known to grant execute permission to every user
+   * @param resolveLink indicates whether UnresolvedLinkException should
+   *        be thrown when the path refers to a symbolic link.
+   */
+  static INodesInPath resolve(final INodeDirectory[] prefix,
+      final byte[][] components, final int traversable,
+      final boolean resolveLink) throws UnresolvedLinkException {
+    Preconditions.checkArgument(prefix.length > 0
+        && prefix.length < components.length);
+    final INodesInPath existing = new INodesInPath(components,
+        components.length);
+    for (int i = 0; i < prefix.length - 1; i++) {
+      existing.addNode(prefix[i]);
+    }
+    existing.traversable = traversable;
+    return resolve(existing, prefix[prefix.length - 1], prefix.length - 1,
+        prefix.length - 1, resolveLink);
+  }
+
+  /**
+   * Resolve the components of existing.path starting with the given count,
+   * which has been resolved to curNode.
+   */
+  private static INodesInPath resolve(final INodesInPath existing,
+      INode curNode, int count, int index, final boolean resolveLink)
+      throws UnresolvedLinkException {
+    final byte[][] components = existing.path;
     while (count < components.length && curNode != null) {
       final boolean lastComp = (count == components.length - 1);      
       if (index >= 0) {
@@ -276,6 +313,11 @@ static INodesInPath resolve(final INodeDirectory startingDir,
    * or {@link Snapshot#CURRENT_STATE_ID} if no snapshot is found.
    */
   private int snapshotId = Snapshot.CURRENT_STATE_ID; 
+  /**
+   * The number of leading inodes which are known to grant execute permission
+   * to every user, so that traverse checks may skip them.
+   */
+  private int traversable = 0;
 
   private INodesInPath(byte[][] path, int number) {
     this.path = path;
@@ -357,6 +399,14 @@ int getSnapshotRootIndex() {
     return this.snapshotRootIndex;
   }
   
+  /**
+   * @return the number of leading inodes which are known to grant execute
+   * permission to every user.
+   */
+  int getTraversable() {
+    return traversable;
+  }
+
   /**
    * @return isSnapshot true for a snapshot path
    */
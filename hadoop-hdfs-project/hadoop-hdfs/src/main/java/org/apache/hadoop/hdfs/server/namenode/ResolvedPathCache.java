@@ -0,0 +1,190 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.UnresolvedLinkException;
+import org.apache.hadoop.fs.permission.FsAction;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSUtil;
+import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the directories which the parent of a path resolves to, so that
+ * paths sharing a hot parent, such as the files of a busy table directory,
+ * do not search the children of every ancestor again and again.
+ *
+ * Only parents whose directories are neither references nor have any
+ * snapshots are cached, since resolving those involves snapshot state which
+ * is not captured here. An entry is validated against the current
+ * tree whenever it is used: the previous directory must still map the name
+ * to every cached directory, which must still have the same
+ * permission. In addition the whole cache is invalidated whenever a
+ * directory is removed from the tree, by a delete or a rename.
+ *
+ * For each parent the cache also records whether every directory grants
+ * execute permission to its owner, its group and others without an ACL, in which case permission
+ * checking may skip traversal checks of the cached directories.
+ *
+ * Callers must hold the {@link FSDirectory} read lock or write lock.
+ */
+class ResolvedPathCache {
+  /** The resolved directories of a parent path. */
+  private static class Entry {
+    private final byte[][] components;
+    private final INodeDirectory[] inodes;
+    private final long[] permissions;
+    private final boolean traversable;
+
+    Entry(byte[][] components, INodeDirectory[] inodes) {
+      this.components = components;
+      this.inodes = inodes;
+      this.permissions = new long[inodes.length];
+      boolean executable = true;
+      for (int i = 0; i < inodes.length; i++) {
+        permissions[i] = inodes[i].getPermissionLong();
+        executable &= inodes[i].getAclFeature() == null
+            && isExecutableByAll(inodes[i].getFsPermission());
+      }
+      this.traversable = executable;
+    }
+
+    /** @return true if the entry still matches the tree under the root. */
+    boolean isValid(INodeDirectory root) {
+      if (inodes[0] != root) {
+        return false;
+      }
+      for (int i = 0; i < inodes.length; i++) {
+        final INodeDirectory dir = inodes[i];
+        if (hasSnapshots(dir) || dir.getPermissionLong() != permissions[i]
+            || (traversable && dir.getAclFeature() != null)) {
+          return false;
+        }
+        // the parent must still map the name to the directory; a replaced
+        // directory may still point at its old parent
+        if (i > 0 && (dir.getParentReference() != null
+            || dir.getParent() != inodes[i - 1]
+            || inodes[i - 1].getChild(components[i],
+                Snapshot.CURRENT_STATE_ID) != dir)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** @return true if the owner, the group and others may all execute. */
+  private static boolean isExecutableByAll(FsPermission permission) {
+    return permission.getUserAction().implies(FsAction.EXECUTE)
+        && permission.getGroupAction().implies(FsAction.EXECUTE)
+        && permission.getOtherAction().implies(FsAction.EXECUTE);
+  }
+
+  private final Cache<String, Entry> cache;
+
+  ResolvedPathCache(int maxSize) {
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+  }
+
+  /**
+   * Resolve all the components of the given path, using the cached
+   * directories of its parent if they are valid.
+   *
+   * @see INodesInPath#resolve(INodeDirectory, byte[][], int, boolean)
+   */
+  INodesInPath resolve(INodeDirectory root, String path, boolean resolveLink)
+      throws UnresolvedLinkException {
+    final int slash = path.lastIndexOf(Path.SEPARATOR_CHAR);
+    if (slash <= 0 || slash == path.length() - 1 || path.charAt(0) != '/'
+        || path.contains("//")) {
+      // a child of the root, or a path which is not normalized
+      final byte[][] components = INode.getPathComponents(path);
+      return INodesInPath.resolve(root, components, components.length,
+          resolveLink);
+    }
+
+    final String parent = path.substring(0, slash);
+    final Entry entry = cache.getIfPresent(parent);
+    if (entry != null && entry.isValid(root)) {
+      final byte[][] components = Arrays.copyOf(entry.components,
+          entry.components.length + 1);
+      components[entry.components.length] =
+          DFSUtil.string2Bytes(path.substring(slash + 1));
+      return INodesInPath.resolve(entry.inodes, components,
+          entry.traversable ? entry.inodes.length : 0, resolveLink);
+    }
+
+    final byte[][] components = INode.getPathComponents(path);
+    final INodesInPath iip = INodesInPath.resolve(root, components,
+        components.length, resolveLink);
+    final INodeDirectory[] inodes = getCacheableParent(iip);
+    if (inodes != null) {
+      cache.put(parent, new Entry(
+          Arrays.copyOf(components, components.length - 1), inodes));
+    }
+    return iip;
+  }
+
+  /**
+   * @return the directories of the parent of the resolved path, or null if
+   *         they cannot be cached.
+   */
+  private static INodeDirectory[] getCacheableParent(INodesInPath iip) {
+    if (iip.isSnapshot()) {
+      return null;
+    }
+    final INodeDirectory[] inodes = new INodeDirectory[iip.length() - 1];
+    for (int i = 0; i < inodes.length; i++) {
+      final INode inode = iip.getINode(i);
+      if (inode == null || inode.isReference() || !inode.isDirectory()) {
+        return null;
+      }
+      final INodeDirectory dir = inode.asDirectory();
+      if (hasSnapshots(dir)) {
+        return null;
+      }
+      inodes[i] = dir;
+    }
+    return inodes;
+  }
+
+  /**
+   * @return true if resolving a path through the directory may update the
+   *         latest snapshot of the path.
+   */
+  private static boolean hasSnapshots(INodeDirectory dir) {
+    return dir.isWithSnapshot() && dir.getDirectoryWithSnapshotFeature()
+        .getLastSnapshotId() != Snapshot.CURRENT_STATE_ID;
+  }
+
+  /** Invalidate all the cached entries. */
+  void clear() {
+    cache.invalidateAll();
+  }
+
+  @VisibleForTesting
+  long size() {
+    return cache.size();
+  }
+}
@@ -83,6 +83,8 @@ public class NameNodeMetrics {
   MutableCounterLong transactionsBatchedInSync;
   @Metric("Block report") MutableRate blockReport;
   final MutableQuantiles[] blockReportQuantiles;
+  @Metric("Write lock hold time of block reports")
+  MutableRate blockReportLockHold;
   @Metric("Cache report") MutableRate cacheReport;
   final MutableQuantiles[] cacheReportQuantiles;
 
@@ -263,6 +265,10 @@ public void addBlockReport(long latency) {
     }
   }
 
+  public void addBlockReportLockHold(long latency) {
+    blockReportLockHold.add(latency);
+  }
+
   public void addCacheBlockReport(long latency) {
     cacheReport.add(latency);
     for (MutableQuantiles q : cacheReportQuantiles) {
@@ -0,0 +1,300 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.apache.hadoop.classification.InterfaceAudience;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+/**
+ * List implementation which stores elements in a sequence of bounded
+ * segments. Unlike an ArrayList, inserting or removing an element in the
+ * middle of a large list only shifts the elements of a single segment,
+ * rather than every element after the position, and growing the list never
+ * requires one large contiguous allocation.
+ *
+ * The segment sizes are kept in a Fenwick (binary indexed) tree, so that
+ * positional access and the size update of an insertion or a removal are
+ * O(log(size / maxSegmentSize)). Splitting or merging segments rebuilds the
+ * tree in time linear in the number of segments, which is amortized over
+ * the maxSegmentSize / 2 insertions or removals between them. This makes
+ * the list suitable for sorted collections which are searched by
+ * {@link java.util.Collections#binarySearch(List, Object)} and modified at
+ * arbitrary positions, such as the children of a very large directory.
+ *
+ * The list does not permit modification through its iterator.
+ */
+@InterfaceAudience.Private
+public class SegmentedArrayList<T> extends AbstractList<T>
+    implements RandomAccess {
+  /** Default maximum number of elements stored in a segment. */
+  public static final int DEFAULT_MAX_SEGMENT_SIZE = 1024;
+
+  /** The segments which make up the full list, none of them empty. */
+  private final List<ArrayList<T>> segments = new ArrayList<ArrayList<T>>();
+
+  /**
+   * Fenwick tree of the segment sizes: tree[i] is the total size of the
+   * segments (i - lowestOneBit(i), i], counting segments from 1. Only the
+   * first segments.size() + 1 entries are valid.
+   */
+  private int[] tree = new int[5];
+
+  /** The maximum number of elements for any segment. */
+  private final int maxSegmentSize;
+
+  /** Total number of elements in the list. */
+  private int size;
+
+  public SegmentedArrayList() {
+    this(DEFAULT_MAX_SEGMENT_SIZE);
+  }
+
+  public SegmentedArrayList(int maxSegmentSize) {
+    Preconditions.checkArgument(maxSegmentSize >= 2,
+        "maxSegmentSize must be at least 2: %s", maxSegmentSize);
+    this.maxSegmentSize = maxSegmentSize;
+  }
+
+  /** Create a list holding the elements of the given collection. */
+  public SegmentedArrayList(Collection<? extends T> c) {
+    this(DEFAULT_MAX_SEGMENT_SIZE);
+    addAll(c);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public T get(int index) {
+    checkIndex(index);
+    final long position = locate(index);
+    return segments.get(segmentOf(position)).get(indexIn(position));
+  }
+
+  @Override
+  public T set(int index, T element) {
+    checkIndex(index);
+    final long position = locate(index);
+    return segments.get(segmentOf(position)).set(indexIn(position), element);
+  }
+
+  @Override
+  public boolean add(T element) {
+    add(size, element);
+    return true;
+  }
+
+  @Override
+  public void add(int index, T element) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index: " + index
+          + ", Size: " + size);
+    }
+    modCount++;
+    if (index == size && (segments.isEmpty()
+        || segments.get(segments.size() - 1).size() >= maxSegmentSize)) {
+      // appending to a full list starts a new segment, so that a list built
+      // in order keeps its segments full
+      final ArrayList<T> last = new ArrayList<T>();
+      last.add(element);
+      segments.add(last);
+      size++;
+      rebuildTree();
+      return;
+    }
+
+    // an element at index == size is appended to the last segment
+    final int s;
+    final int i;
+    if (index == size) {
+      s = segments.size() - 1;
+      i = segments.get(s).size();
+    } else {
+      final long position = locate(index);
+      s = segmentOf(position);
+      i = indexIn(position);
+    }
+    final ArrayList<T> segment = segments.get(s);
+    segment.add(i, element);
+    size++;
+    if (segment.size() > maxSegmentSize) {
+      split(s);
+    } else {
+      addToTree(s, 1);
+    }
+  }
+
+  @Override
+  public T remove(int index) {
+    checkIndex(index);
+    modCount++;
+    final long position = locate(index);
+    final int s = segmentOf(position);
+    final ArrayList<T> segment = segments.get(s);
+    final T removed = segment.remove(indexIn(position));
+    size--;
+    if (segment.isEmpty()) {
+      segments.remove(s);
+      rebuildTree();
+    } else if (s + 1 < segments.size()
+        && segment.size() + segments.get(s + 1).size() <= maxSegmentSize / 2) {
+      // merge sparse neighbours so that the number of segments stays bounded
+      segment.addAll(segments.remove(s + 1));
+      rebuildTree();
+    } else {
+      addToTree(s, -1);
+    }
+    return removed;
+  }
+
+  @Override
+  public void clear() {
+    modCount++;
+    segments.clear();
+    size = 0;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private final int expectedModCount = modCount;
+      private int segmentIndex = 0;
+      private int indexInSegment = 0;
+
+      @Override
+      public boolean hasNext() {
+        return segmentIndex < segments.size();
+      }
+
+      @Override
+      public T next() {
+        if (modCount != expectedModCount) {
+          throw new ConcurrentModificationException();
+        }
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final ArrayList<T> segment = segments.get(segmentIndex);
+        final T element = segment.get(indexInSegment++);
+        if (indexInSegment == segment.size()) {
+          segmentIndex++;
+          indexInSegment = 0;
+        }
+        return element;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @VisibleForTesting
+  int getNumSegments() {
+    return segments.size();
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index
+          + ", Size: " + size);
+    }
+  }
+
+  /**
+   * Find the segment which holds the given list index. The result is
+   * returned as one value, rather than kept in a field, since concurrent
+   * readers may call {@link #get(int)}.
+   *
+   * @return the segment index and the index within the segment, to be
+   *         extracted with {@link #segmentOf(long)} and {@link #indexIn(long)}
+   */
+  private long locate(int index) {
+    final int n = segments.size();
+    int s = 0;
+    int remaining = index;
+    for (int step = Integer.highestOneBit(n); step > 0; step >>>= 1) {
+      final int next = s + step;
+      if (next <= n && tree[next] <= remaining) {
+        s = next;
+        remaining -= tree[next];
+      }
+    }
+    // the first s segments hold the index - remaining elements before it
+    return ((long)s << 32) | remaining;
+  }
+
+  private static int segmentOf(long position) {
+    return (int)(position >>> 32);
+  }
+
+  private static int indexIn(long position) {
+    return (int)position;
+  }
+
+  /** Split the given full segment into two halves. */
+  private void split(int s) {
+    final ArrayList<T> segment = segments.get(s);
+    final List<T> tail = segment.subList(segment.size() / 2, segment.size());
+    final ArrayList<T> next = new ArrayList<T>(maxSegmentSize);
+    next.addAll(tail);
+    tail.clear();
+    segments.add(s + 1, next);
+    rebuildTree();
+  }
+
+  /** Add delta to the size of the given segment. */
+  private void addToTree(int s, int delta) {
+    final int n = segments.size();
+    for (int i = s + 1; i <= n; i += Integer.lowestOneBit(i)) {
+      tree[i] += delta;
+    }
+  }
+
+  /** Rebuild the tree after segments were added or removed. */
+  private void rebuildTree() {
+    final int n = segments.size();
+    if (tree.length < n + 1) {
+      tree = Arrays.copyOf(tree, Math.max(n + 1, tree.length * 2));
+    }
+    for (int i = 1; i <= n; i++) {
+      tree[i] = segments.get(i - 1).size();
+    }
+    for (int i = 1; i <= n; i++) {
+      final int parent = i + Integer.lowestOneBit(i);
+      if (parent <= n) {
+        tree[parent] += tree[i];
+      }
+    }
+  }
+}
@@ -18,10 +18,12 @@
 package org.apache.hadoop.hdfs;
 
 import java.io.IOException;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -66,6 +68,31 @@ public void testCloseTwice() throws IOException {
     dos.close();
   }
 
+  /**
+   * Small packets queued one after the other are flushed to the pipeline
+   * together. Check that the file is written intact, including the packets
+   * before an hflush and the last packet in block.
+   */
+  @Test
+  public void testSmallPacketsSentTogether() throws IOException {
+    Configuration conf = new Configuration(cluster.getConfiguration(0));
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY, 1024);
+    FileSystem fs = FileSystem.newInstance(cluster.getURI(), conf);
+    try {
+      Path p = new Path("/testSmallPacketsSentTogether");
+      byte[] data = new byte[512 * 1024];
+      new Random(0).nextBytes(data);
+      FSDataOutputStream os = fs.create(p);
+      os.write(data, 0, 1000);
+      os.hflush();
+      os.write(data, 1000, data.length - 1000);
+      os.close();
+      Assert.assertArrayEquals(data, DFSTestUtil.readFileBuffer(fs, p));
+    } finally {
+      fs.close();
+    }
+  }
+
   @AfterClass
   public static void tearDown() {
     cluster.shutdown();
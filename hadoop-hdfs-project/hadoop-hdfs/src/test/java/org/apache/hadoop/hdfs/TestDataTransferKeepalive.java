@@ -203,6 +203,50 @@ public Boolean get() {
     IOUtils.closeStream(stm);
   }
   
+  /**
+   * Test that a connection kept alive by a datanode with the transfer
+   * selector enabled does not hold an xceiver thread while it is idle, can
+   * be reused, and is closed after the keepalive timeout.
+   */
+  @Test(timeout=30000)
+  public void testSelectorWatchesIdleConnections() throws Exception {
+    DataNodeProperties props = cluster.stopDataNode(0);
+    props.conf.setBoolean(
+        DFSConfigKeys.DFS_DATANODE_TRANSFER_SELECTOR_ENABLED_KEY, true);
+    assertTrue(cluster.restartDataNode(props, true));
+    dn = cluster.getDataNodes().get(0);
+    cluster.triggerHeartbeats();
+
+    Configuration clientConf = new Configuration(conf);
+    clientConf.setLong(DFS_CLIENT_SOCKET_CACHE_EXPIRY_MSEC_KEY, 60000L);
+    clientConf.set(DFS_CLIENT_CONTEXT, "testSelectorWatchesIdleConnections");
+    DistributedFileSystem fs =
+        (DistributedFileSystem)FileSystem.get(cluster.getURI(),
+            clientConf);
+    PeerCache peerCache = ClientContext.getFromConf(clientConf).getPeerCache();
+    DFSTestUtil.createFile(fs, TEST_FILE, 1L, (short)1, 0L);
+
+    // The idle connection is cached by the client but has no xceiver.
+    DFSTestUtil.readFile(fs, TEST_FILE);
+    assertEquals(1, peerCache.size());
+    GenericTestUtils.waitFor(new Supplier<Boolean>() {
+      public Boolean get() {
+        return getXceiverCountWithoutServer() == 0;
+      }
+    }, 50, 5000);
+
+    // The next read reuses the connection.
+    DFSTestUtil.readFile(fs, TEST_FILE);
+    assertEquals(1, peerCache.size());
+
+    // The selector closes the connection after the keepalive timeout.
+    Thread.sleep(KEEPALIVE_TIMEOUT + 1100);
+    Peer peer = peerCache.get(dn.getDatanodeId(), false);
+    assertNotNull(peer);
+    assertEquals(-1, peer.getInputStream().read());
+    IOUtils.closeStream(peer);
+  }
+
   @Test(timeout=30000)
   public void testManyClosedSocketsInCache() throws Exception {
     // Make a small file
@@ -25,6 +25,7 @@
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_DEFAULT;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_CLIENT_WRITE_PACKET_SIZE_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_SYNCONCLOSE_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_DATANODE_WRITE_DIRECT_BUFFERS_ENABLED_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_HEARTBEAT_INTERVAL_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_HEARTBEAT_RECHECK_INTERVAL_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_REPLICATION_MIN_KEY;
@@ -32,6 +33,7 @@
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_REPLICATION_KEY;
 import static org.apache.hadoop.test.MetricsAsserts.assertCounter;
 import static org.apache.hadoop.test.MetricsAsserts.getMetrics;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -93,6 +95,8 @@
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.io.Files;
+
 /**
  * This class tests various cases during file creation.
  */
@@ -949,6 +953,41 @@ public void testFileCreationSyncOnClose() throws IOException {
     }
   }
 
+  /**
+   * Test writing a file through a pipeline whose datanodes receive the
+   * packets into direct buffers, including partial chunks, and check that
+   * every replica has the written data.
+   */
+  @Test
+  public void testFileCreationWithDirectBuffers() throws IOException {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFS_DATANODE_WRITE_DIRECT_BUFFERS_ENABLED_KEY, true);
+    MiniDFSCluster cluster = new MiniDFSCluster.Builder(conf)
+        .numDataNodes(3).build();
+
+    try {
+      FileSystem fs = cluster.getFileSystem();
+      Path p = new Path("/direct");
+      byte[] data = AppendTestUtil.randomBytes(seed, 3 * 65536 + 1000);
+
+      FSDataOutputStream out = fs.create(p, (short)3);
+      out.write(data, 0, 700);
+      out.hflush();
+      out.write(data, 700, data.length - 700);
+      out.close();
+
+      //verify
+      assertArrayEquals(data, DFSTestUtil.readFileBuffer(fs, p));
+      ExtendedBlock block = DFSTestUtil.getFirstBlock(fs, p);
+      for (int i = 0; i < 3; i++) {
+        assertArrayEquals(data,
+            Files.toByteArray(MiniDFSCluster.getBlockFile(i, block)));
+      }
+    } finally {
+      if (cluster != null) {cluster.shutdown();}
+    }
+  }
+
   /**
    * Create a file, write something, hflush but not close.
    * Then change lease period and wait for lease recovery.
@@ -25,6 +25,7 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -131,6 +132,11 @@ public Object answer(InvocationOnMock invocation)
           } });
     }
 
+    @Override
+    public SocketChannel getSocketChannel() {
+      return null;
+    }
+
     @Override
     public boolean equals(Object o) {
       if (!(o instanceof FakePeer)) return false;
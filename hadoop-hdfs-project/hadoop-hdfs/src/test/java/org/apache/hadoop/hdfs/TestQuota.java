@@ -921,4 +921,53 @@ public void testMultipleFilesSmallerThanOneBlock() throws Exception {
       cluster.shutdown();
     }
   }
+
+  /**
+   * Test that a content summary computed in parallel, with subtrees handed
+   * to other threads at every level and the read locks relinquished by
+   * every thread, matches the expected counts and quotas.
+   */
+  @Test
+  public void testParallelContentSummary() throws Exception {
+    final Configuration conf = new HdfsConfiguration();
+    conf.setInt(DFSConfigKeys.DFS_CONTENT_SUMMARY_LIMIT_KEY, 2);
+    conf.setInt(DFSConfigKeys.DFS_CONTENT_SUMMARY_THREADS_KEY, 4);
+    conf.setInt(DFSConfigKeys.DFS_CONTENT_SUMMARY_SPLIT_THRESHOLD_KEY, 1);
+    final MiniDFSCluster cluster =
+        new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    try {
+      final DistributedFileSystem dfs = cluster.getFileSystem();
+      final Path parent = new Path("/test");
+      final int numDirs = 6;
+      final int filesPerDir = 5;
+      final int fileLen = 100;
+      for (int i = 0; i < numDirs; i++) {
+        final Path dir = new Path(parent, "dir" + i);
+        for (int j = 0; j < filesPerDir; j++) {
+          DFSTestUtil.createFile(dfs, new Path(dir, "sub/deep/file" + j),
+              fileLen, (short) 1, 0L);
+        }
+      }
+      DFSTestUtil.createFile(dfs, new Path(parent, "file"), fileLen,
+          (short) 1, 0L);
+      dfs.setQuota(new Path(parent, "dir0"), 100, HdfsConstants.QUOTA_DONT_SET);
+
+      final long yieldsBefore =
+          cluster.getNamesystem().getFSDirectory().getYieldCount();
+      for (int k = 0; k < 2; k++) {
+        final ContentSummary c = dfs.getContentSummary(parent);
+        assertEquals(1 + numDirs * 3, c.getDirectoryCount());
+        assertEquals(numDirs * filesPerDir + 1, c.getFileCount());
+        assertEquals((numDirs * filesPerDir + 1) * fileLen, c.getLength());
+      }
+      final ContentSummary c = dfs.getContentSummary(new Path(parent, "dir0"));
+      assertEquals(100, c.getQuota());
+      assertEquals(3, c.getDirectoryCount());
+      assertEquals(filesPerDir, c.getFileCount());
+      assertTrue(cluster.getNamesystem().getFSDirectory().getYieldCount()
+          > yieldsBefore);
+    } finally {
+      cluster.shutdown();
+    }
+  }
 }
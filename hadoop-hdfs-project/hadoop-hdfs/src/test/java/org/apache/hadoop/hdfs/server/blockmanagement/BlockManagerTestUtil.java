@@ -297,4 +297,13 @@ public static void checkDecommissionState(DatanodeManager dm,
     dm.checkDecommissionState(node);
   }
 
+  /**
+   * @return the number of blocks of a decommissioning node which the
+   *         DecommissionManager still tracks, or -1 if it tracks none.
+   */
+  public static int getNumTrackedDecommissionBlocks(DatanodeManager dm,
+      DatanodeDescriptor node) {
+    return dm.getDecommissionManager().getNumTrackedBlocks(node);
+  }
+
 }
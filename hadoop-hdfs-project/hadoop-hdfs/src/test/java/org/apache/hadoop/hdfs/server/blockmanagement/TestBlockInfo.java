@@ -80,6 +80,33 @@ public void testReplaceStorage() throws Exception {
     Assert.assertThat(blockInfos[NUM_BLOCKS/2].getStorageInfo(0), is(storage2));
   }
 
+  @Test
+  public void testTrimCapacity() throws Exception {
+    BlockInfo blockInfo = new BlockInfo(2);
+    final int NUM_STORAGES = 5;
+    DatanodeStorageInfo[] storages = new DatanodeStorageInfo[NUM_STORAGES];
+    for (int i = 0; i < NUM_STORAGES; i++) {
+      storages[i] = DFSTestUtil.createDatanodeStorageInfo("s" + i, "1.1.1." + i);
+      storages[i].addBlock(blockInfo);
+    }
+    assertEquals(NUM_STORAGES, blockInfo.getCapacity());
+
+    // nothing can be released while all storages still hold the block
+    Assert.assertFalse(blockInfo.trimCapacity(2));
+    assertEquals(NUM_STORAGES, blockInfo.getCapacity());
+
+    for (int i = 0; i < 3; i++) {
+      Assert.assertTrue(storages[i].removeBlock(blockInfo));
+    }
+    Assert.assertTrue(blockInfo.trimCapacity(2));
+    assertEquals(2, blockInfo.getCapacity());
+    assertEquals(2, blockInfo.numNodes());
+    Assert.assertTrue(blockInfo.findStorageInfo(storages[3]) >= 0);
+    Assert.assertTrue(blockInfo.findStorageInfo(storages[4]) >= 0);
+    Assert.assertSame(blockInfo, storages[3].getBlockIterator().next());
+    Assert.assertSame(blockInfo, storages[4].getBlockIterator().next());
+  }
+
   @Test
   public void testBlockListMoveToHead() throws Exception {
     LOG.info("BlockInfo moveToHead tests...");
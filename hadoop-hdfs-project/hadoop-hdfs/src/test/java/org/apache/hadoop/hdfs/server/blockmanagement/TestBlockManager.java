@@ -21,15 +21,19 @@
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
@@ -63,6 +67,8 @@
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
@@ -161,6 +167,46 @@ private void doBasicTest(int testIndex) {
   }
   
 
+  /**
+   * Test that replication targets chosen by a pool of threads are
+   * scheduled just like the ones chosen by the replication monitor.
+   */
+  @Test
+  public void testParallelChooseTargets() throws Exception {
+    conf.setInt(
+        DFSConfigKeys.DFS_NAMENODE_REPLICATION_CHOOSE_TARGET_THREADS_KEY, 4);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_MAX_STREAMS_KEY,
+        NUM_TEST_ITERS);
+    conf.setInt(DFSConfigKeys.DFS_NAMENODE_REPLICATION_STREAMS_HARD_LIMIT_KEY,
+        NUM_TEST_ITERS);
+    bm = new BlockManager(fsn, fsn, conf);
+    try {
+      addNodes(nodes);
+      List<DatanodeDescriptor> origNodes = getNodes(0, 1);
+      List<Block> blocks = new ArrayList<Block>();
+      for (int i = 0; i < NUM_TEST_ITERS; i++) {
+        blocks.add(addBlockOnNodes(i, origNodes));
+      }
+      List<List<Block>> list_all = new ArrayList<List<Block>>();
+      list_all.add(new ArrayList<Block>()); // for priority 0
+      list_all.add(blocks); // for priority 1
+
+      assertEquals(NUM_TEST_ITERS,
+          bm.computeReplicationWorkForBlocks(list_all));
+      for (Block block : blocks) {
+        assertEquals(1, bm.pendingReplications.getNumReplicas(block));
+      }
+      // every work item got its targets, none is left pending without
+      int scheduled = 0;
+      for (DatanodeDescriptor dn : origNodes) {
+        scheduled += dn.getNumberOfBlocksToBeReplicated();
+      }
+      assertEquals(NUM_TEST_ITERS, scheduled);
+    } finally {
+      bm.close();
+    }
+  }
+
   /**
    * Regression test for HDFS-1480
    * - Cluster has 2 racks, A and B, each with three nodes.
@@ -745,7 +791,260 @@ public void testSafeModeIBRBeforeFirstFullBR() throws Exception {
         (ds) >= 0);
   }
 
-  private BlockInfo addBlockToBM(long blkId) {
+  /**
+   * Test that full block reports larger than the processing limit are
+   * handled in batches, releasing the write lock in between, and still
+   * produce the same result as a report processed in one go.
+   */
+  @Test
+  public void testProcessReportInBatches() throws Exception {
+    conf.setInt(DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT, 3);
+    bm = new BlockManager(fsn, fsn, conf);
+    doReturn(true).when(fsn).isInStartupSafeMode();
+
+    DatanodeDescriptor node = nodes.get(0);
+    DatanodeStorageInfo ds = node.getStorageInfos()[0];
+    node.isAlive = true;
+    DatanodeRegistration nodeReg =  new DatanodeRegistration(node, null, null, "");
+    bm.getDatanodeManager().registerDatanode(nodeReg);
+    bm.getDatanodeManager().addDatanode(node);
+
+    // the first report holds 10 blocks, i.e. 4 batches
+    List<Block> blocks = new ArrayList<Block>();
+    for (long id = 0; id < 10; id++) {
+      blocks.add(new FinalizedReplica(addBlockToBM(id), null, null));
+    }
+    reset(fsn);
+    doReturn(true).when(fsn).hasWriteLock();
+    doReturn(true).when(fsn).isInStartupSafeMode();
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    verify(fsn, times(4)).writeLock();
+    verify(fsn, times(4)).writeUnlock();
+    assertEquals(1, ds.getBlockReportCount());
+    assertEquals(10, ds.numBlocks());
+
+    // the second report drops blocks 5-9 and adds blocks 20-24
+    blocks.clear();
+    for (long id = 0; id < 5; id++) {
+      blocks.add(new FinalizedReplica(bm.getStoredBlock(new Block(id)),
+          null, null));
+    }
+    for (long id = 20; id < 25; id++) {
+      blocks.add(new FinalizedReplica(addBlockToBM(id), null, null));
+    }
+    doReturn(false).when(fsn).isInStartupSafeMode();
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertEquals(2, ds.getBlockReportCount());
+    assertFalse(ds.isBlockReportInProgress());
+    assertEquals(10, ds.numBlocks());
+    for (long id = 0; id < 25; id++) {
+      final BlockInfo stored = bm.getStoredBlock(new Block(id));
+      if (stored == null) {
+        continue;
+      }
+      assertEquals("block " + id, id < 5 || id >= 20,
+          stored.findStorageInfo(ds) >= 0);
+    }
+  }
+
+  /**
+   * Test that the storage's block list holds only its real replicas while
+   * the write lock is released between the batches of a block report, and
+   * that replicas removed or added meanwhile are accounted for.
+   */
+  @Test
+  public void testProcessReportYieldsConsistentBlockList() throws Exception {
+    conf.setInt(DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT, 3);
+    bm = new BlockManager(fsn, fsn, conf);
+    doReturn(true).when(fsn).isInStartupSafeMode();
+
+    final DatanodeDescriptor node = nodes.get(0);
+    final DatanodeStorageInfo ds = node.getStorageInfos()[0];
+    node.isAlive = true;
+    DatanodeRegistration nodeReg =  new DatanodeRegistration(node, null, null, "");
+    bm.getDatanodeManager().registerDatanode(nodeReg);
+    bm.getDatanodeManager().addDatanode(node);
+
+    List<Block> blocks = new ArrayList<Block>();
+    for (long id = 0; id < 10; id++) {
+      blocks.add(new FinalizedReplica(addBlockToBM(id), null, null));
+    }
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertEquals(10, ds.numBlocks());
+
+    // the second report holds blocks 0-4, i.e. 2 batches
+    blocks.clear();
+    for (long id = 0; id < 5; id++) {
+      blocks.add(new FinalizedReplica(bm.getStoredBlock(new Block(id)),
+          null, null));
+    }
+    reset(fsn);
+    doReturn(true).when(fsn).hasWriteLock();
+    doReturn(false).when(fsn).isInStartupSafeMode();
+    doAnswer(new Answer<Void>() {
+      private boolean yielded = false;
+
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        if (yielded) {
+          return null;
+        }
+        yielded = true;
+        // the list holds nothing but the stored replicas
+        int n = 0;
+        for (Iterator<BlockInfo> it = ds.getBlockIterator(); it.hasNext(); n++) {
+          final BlockInfo b = it.next();
+          assertSame(b, bm.getStoredBlock(b));
+        }
+        assertEquals(ds.numBlocks(), n);
+        // the first unreported replica is removed and a new one is added
+        assertTrue(ds.removeBlock(bm.getStoredBlock(new Block(9))));
+        assertTrue(ds.addBlock(addBlockToBM(30)));
+        return null;
+      }
+    }).when(fsn).writeUnlock();
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertFalse(ds.isBlockReportInProgress());
+    assertEquals(6, ds.numBlocks());
+    for (long id : new long[] {0, 1, 2, 3, 4, 30}) {
+      assertTrue("block " + id,
+          bm.getStoredBlock(new Block(id)).findStorageInfo(ds) >= 0);
+    }
+  }
+
+  /**
+   * Test that the scan of a decommissioning node examines no more than the
+   * given number of blocks at a time, and that it is resumed by the next
+   * check, or restarted if its position was lost in the meantime.
+   */
+  @Test
+  public void testDecommissionScanInBatches() throws Exception {
+    doReturn(true).when(fsn).isInStartupSafeMode();
+    DatanodeDescriptor node = nodes.get(0);
+    DatanodeStorageInfo ds = node.getStorageInfos()[0];
+    node.isAlive = true;
+    DatanodeRegistration nodeReg =  new DatanodeRegistration(node, null, null, "");
+    bm.getDatanodeManager().registerDatanode(nodeReg);
+    bm.getDatanodeManager().addDatanode(node);
+
+    // 10 blocks with a single replica, added to the head of the list
+    List<Block> blocks = new ArrayList<Block>();
+    for (long id = 0; id < 10; id++) {
+      blocks.add(new FinalizedReplica(addBlockToBM(id), null, null));
+    }
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertEquals(10, ds.numBlocks());
+
+    node.startDecommission();
+    DecommissionManager decomManager = new DecommissionManager(fsn, bm);
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(-1, decomManager.getNumTrackedBlocks(node));
+    assertEquals(2, decomManager.checkDecommissionState(node, 4));
+    assertEquals(10, decomManager.getNumTrackedBlocks(node));
+    assertTrue(node.isDecommissionInProgress());
+
+    // re-examining the tracked blocks is resumed as well
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(10, decomManager.getNumTrackedBlocks(node));
+
+    // the next block of a full scan is removed from the node, so the scan
+    // starts over
+    decomManager.stopTrackingNode(node);
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertTrue(ds.removeBlock(bm.getStoredBlock(new Block(5))));
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(1, decomManager.checkDecommissionState(node, 4));
+    assertEquals(9, decomManager.getNumTrackedBlocks(node));
+    assertTrue(node.isDecommissionInProgress());
+
+    // a block added to the head of the list is behind a full scan, so the
+    // scan starts over
+    decomManager.stopTrackingNode(node);
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertTrue(ds.addBlock(addBlockToBM(20)));
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(4, decomManager.checkDecommissionState(node, 4));
+    assertEquals(2, decomManager.checkDecommissionState(node, 4));
+    assertEquals(10, decomManager.getNumTrackedBlocks(node));
+    assertTrue(node.isDecommissionInProgress());
+  }
+
+  /**
+   * Test that a block replaced in the blocks map while the write lock is
+   * released between the batches of a block report, e.g. when it is
+   * completed, keeps its place in the storage's block list, so that an
+   * unreported replica is still removed at the end of the report.
+   */
+  @Test
+  public void testProcessReportYieldsWithReplacedBlock() throws Exception {
+    conf.setInt(DFSConfigKeys.DFS_BLOCKREPORT_PROCESSING_LIMIT, 3);
+    bm = new BlockManager(fsn, fsn, conf);
+    doReturn(true).when(fsn).isInStartupSafeMode();
+
+    final DatanodeDescriptor node = nodes.get(0);
+    final DatanodeStorageInfo ds = node.getStorageInfos()[0];
+    node.isAlive = true;
+    DatanodeRegistration nodeReg =  new DatanodeRegistration(node, null, null, "");
+    bm.getDatanodeManager().registerDatanode(nodeReg);
+    bm.getDatanodeManager().addDatanode(node);
+
+    List<Block> blocks = new ArrayList<Block>();
+    for (long id = 0; id < 10; id++) {
+      blocks.add(new FinalizedReplica(addBlockToBM(id), null, null));
+    }
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertEquals(10, ds.numBlocks());
+
+    // the second report holds blocks 0-4, i.e. 2 batches
+    blocks.clear();
+    for (long id = 0; id < 5; id++) {
+      blocks.add(new FinalizedReplica(bm.getStoredBlock(new Block(id)),
+          null, null));
+    }
+    reset(fsn);
+    doReturn(true).when(fsn).hasWriteLock();
+    doReturn(false).when(fsn).isInStartupSafeMode();
+    doAnswer(new Answer<Void>() {
+      private boolean yielded = false;
+
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        if (yielded) {
+          return null;
+        }
+        yielded = true;
+        // an unreported block is replaced by a new BlockInfo
+        final BlockInfo stored = bm.getStoredBlock(new Block(7));
+        final BlockInfo replacement = new BlockInfo(stored, 3);
+        replacement.setBlockCollection(stored.getBlockCollection());
+        assertSame(replacement, bm.blocksMap.replaceBlock(replacement));
+        assertTrue(replacement.findStorageInfo(ds) >= 0);
+        return null;
+      }
+    }).when(fsn).writeUnlock();
+    bm.processReport(node, new DatanodeStorage(ds.getStorageID()),
+        new BlockListAsLongs(blocks, new ArrayList<ReplicaInfo>()),
+        null, false);
+    assertFalse(ds.isBlockReportInProgress());
+    assertEquals(5, ds.numBlocks());
+    assertTrue(bm.getStoredBlock(new Block(7)).findStorageInfo(ds) < 0);
+  }
+
+    private BlockInfo addBlockToBM(long blkId) {
     Block block = new Block(blkId);
     BlockInfo blockInfo =
         new BlockInfo(block, (short) 3);
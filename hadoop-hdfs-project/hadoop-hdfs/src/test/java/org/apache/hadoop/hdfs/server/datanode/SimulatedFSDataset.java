@@ -1223,6 +1223,11 @@ public List<FinalizedReplica> getFinalizedBlocks(String bpid) {
     throw new UnsupportedOperationException();
   }
 
+  @Override
+  public long[] getFinalizedBlockIds(String bpid) {
+    throw new UnsupportedOperationException();
+  }
+
   @Override
   public List<FinalizedReplica> getFinalizedBlocksOnPersistentStorage(String bpid) {
     throw new UnsupportedOperationException();
@@ -32,6 +32,8 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
@@ -373,6 +375,84 @@ public void testDirectoryScanner() throws Exception {
     }
   }
   
+  /**
+   * Run the same test with a scanner which compares a few blocks at a time
+   * and throttles its file system operations.
+   */
+  @Test (timeout=600000)
+  public void testDirectoryScannerInThrottledBatches() throws Exception {
+    CONF.setInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_KEY, 7);
+    CONF.setInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_IOPS_LIMIT_KEY,
+        1000);
+    try {
+      runTest(2);
+    } finally {
+      CONF.unset(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_KEY);
+      CONF.unset(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_IOPS_LIMIT_KEY);
+    }
+  }
+
+  /**
+   * Test that the scanner releases the dataset lock between the batches it
+   * compares, so that writers are not blocked for a whole block pool.
+   */
+  @Test (timeout=300000)
+  public void testDatasetLockReleasedBetweenBatches() throws Exception {
+    CONF.setInt(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_KEY, 10);
+    cluster = new MiniDFSCluster.Builder(CONF).build();
+    final DataNodeFaultInjector oldInjector = DataNodeFaultInjector.instance;
+    try {
+      cluster.waitActive();
+      bpid = cluster.getNamesystem().getBlockPoolId();
+      fds = DataNodeTestUtils.getFSDataset(cluster.getDataNodes().get(0));
+      client = cluster.getFileSystem().getClient();
+      scanner = new DirectoryScanner(fds, CONF);
+      scanner.setRetainDiffs(true);
+
+      // Add files with 100 blocks
+      createFile(GenericTestUtils.getMethodName(), BLOCK_LENGTH * 100, false);
+
+      final AtomicInteger batches = new AtomicInteger();
+      final AtomicBoolean lockHeld = new AtomicBoolean();
+      DataNodeFaultInjector.instance = new DataNodeFaultInjector() {
+        @Override
+        public void directoryScannerBatchCompared() {
+          batches.incrementAndGet();
+          // Another thread must be able to take the lock between batches.
+          Thread writer = new Thread() {
+            @Override
+            public void run() {
+              synchronized (fds) {
+              }
+            }
+          };
+          writer.start();
+          try {
+            writer.join(10000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          if (Thread.holdsLock(fds) || writer.isAlive()) {
+            lockHeld.set(true);
+          }
+        }
+      };
+      scan(100, 0, 0, 0, 0, 0);
+      assertTrue("Compared in " + batches.get() + " batches",
+          batches.get() >= 10);
+      assertFalse(lockHeld.get());
+    } finally {
+      DataNodeFaultInjector.instance = oldInjector;
+      CONF.unset(DFSConfigKeys.DFS_DATANODE_DIRECTORYSCAN_BATCH_SIZE_KEY);
+      if (scanner != null) {
+        scanner.shutdown();
+        scanner = null;
+      }
+      cluster.shutdown();
+      cluster = null;
+    }
+  }
+
   public void runTest(int parallelism) throws Exception {
     cluster = new MiniDFSCluster.Builder(CONF).build();
     try {
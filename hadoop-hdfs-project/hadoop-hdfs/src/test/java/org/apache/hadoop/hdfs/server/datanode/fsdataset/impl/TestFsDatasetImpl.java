@@ -31,8 +31,12 @@
 import org.apache.hadoop.hdfs.server.datanode.DataBlockScanner;
 import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.datanode.DataStorage;
+import org.apache.hadoop.hdfs.server.common.HdfsServerConstants.ReplicaState;
 import org.apache.hadoop.hdfs.server.datanode.FinalizedReplica;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaBeingWritten;
+import org.apache.hadoop.hdfs.server.datanode.ReplicaInPipelineInterface;
 import org.apache.hadoop.hdfs.server.datanode.ReplicaInfo;
+import org.apache.hadoop.hdfs.server.datanode.ShortCircuitRegistry;
 import org.apache.hadoop.hdfs.server.datanode.StorageLocation;
 import org.apache.hadoop.hdfs.server.datanode.fsdataset.RoundRobinVolumeChoosingPolicy;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
@@ -50,9 +54,11 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -63,6 +69,7 @@
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyList;
 import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
@@ -362,4 +369,213 @@ public void testAddVolumeFailureReleasesInUseLock() throws IOException {
 
     FsDatasetTestUtil.assertFileLockReleased(badDir.toString());
   }
+
+  @Test(timeout = 30000)
+  public void testCreateRbwAndFinalizeOutsideLock() throws IOException {
+    final String bpid = BLOCK_POOL_IDS[0];
+    final ExtendedBlock b = new ExtendedBlock(bpid, 12345, 1024, 1001);
+
+    // An rbw file left on every volume makes the creation of the file fail.
+    for (FsVolumeImpl v : dataset.getVolumes()) {
+      assertTrue(new File(v.getRbwDir(bpid), b.getBlockName()).createNewFile());
+    }
+    try {
+      dataset.createRbw(StorageType.DEFAULT, b, false);
+      fail("Expected an IOException for the existing rbw file");
+    } catch (IOException e) {
+      GenericTestUtils.assertExceptionContains("should not be present", e);
+    }
+    assertNull(dataset.fetchReplicaInfo(bpid, b.getBlockId()));
+    for (FsVolumeImpl v : dataset.getVolumes()) {
+      assertEquals(0, v.getReservedForRbw());
+      assertTrue(new File(v.getRbwDir(bpid), b.getBlockName()).delete());
+    }
+
+    final ReplicaInPipelineInterface rbw =
+        dataset.createRbw(StorageType.DEFAULT, b, false);
+    final FsVolumeImpl v = (FsVolumeImpl) ((ReplicaInfo) rbw).getVolume();
+    assertTrue(((ReplicaInfo) rbw).getBlockFile().exists());
+    assertEquals(b.getNumBytes(), v.getReservedForRbw());
+
+    // the meta file is written by the BlockReceiver
+    assertTrue(FsDatasetUtil.getMetaFile(((ReplicaInfo) rbw).getBlockFile(),
+        b.getGenerationStamp()).createNewFile());
+    dataset.finalizeBlock(b);
+    final ReplicaInfo finalized = dataset.fetchReplicaInfo(bpid,
+        b.getBlockId());
+    assertEquals(ReplicaState.FINALIZED, finalized.getState());
+    assertTrue(finalized.getBlockFile().exists());
+    assertFalse(((ReplicaInfo) rbw).getBlockFile().exists());
+    assertEquals(0, v.getReservedForRbw());
+  }
+
+  /**
+   * Create an rbw replica of the given block whose files block in the
+   * middle of being moved by finalizeBlock until release is counted down.
+   * @return the rbw replica
+   */
+  private ReplicaInfo createRbwHeldInFinalize(ExtendedBlock b,
+      final CountDownLatch moving, final CountDownLatch release)
+      throws IOException {
+    final ReplicaInfo rbw =
+        (ReplicaInfo) dataset.createRbw(StorageType.DEFAULT, b, false);
+    assertTrue(FsDatasetUtil.getMetaFile(rbw.getBlockFile(),
+        b.getGenerationStamp()).createNewFile());
+    final FsVolumeImpl v = spy((FsVolumeImpl) rbw.getVolume());
+    doAnswer(new Answer<File>() {
+      @Override
+      public File answer(InvocationOnMock invocation) throws Throwable {
+        moving.countDown();
+        release.await();
+        return (File) invocation.callRealMethod();
+      }
+    }).when(v).addFinalizedBlock(anyString(), any(Block.class),
+        any(File.class), anyLong());
+    dataset.volumeMap.add(b.getBlockPoolId(), new ReplicaBeingWritten(
+        b.getBlockId(), 0, b.getGenerationStamp(), v,
+        rbw.getBlockFile().getParentFile(), null, rbw.getBytesReserved()));
+    return rbw;
+  }
+
+  /** A thread which records what it throws. */
+  private abstract static class TestThread extends Thread {
+    private final List<Throwable> errors;
+
+    TestThread(List<Throwable> errors) {
+      this.errors = errors;
+    }
+
+    abstract void doRun() throws Exception;
+
+    @Override
+    public void run() {
+      try {
+        doRun();
+      } catch (Throwable t) {
+        errors.add(t);
+      }
+    }
+  }
+
+  /** Wait until the thread waits in the dataset. */
+  private static void waitUntilWaiting(Thread t) throws InterruptedException {
+    while (t.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testRecoverCloseWaitsForFinalizeBlock() throws Exception {
+    final String bpid = BLOCK_POOL_IDS[0];
+    final ExtendedBlock b = new ExtendedBlock(bpid, 23456, 0, 1001);
+    // Hold finalizeBlock in the middle of moving the files.
+    final CountDownLatch moving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ReplicaInfo rbw = createRbwHeldInFinalize(b, moving, release);
+
+    final List<Throwable> errors =
+        Collections.synchronizedList(new ArrayList<Throwable>());
+    final Thread finalizer = new TestThread(errors) {
+      @Override
+      void doRun() throws Exception {
+        dataset.finalizeBlock(b);
+      }
+    };
+    final Thread recoverer = new TestThread(errors) {
+      @Override
+      void doRun() throws Exception {
+        dataset.recoverClose(b, 1002, 0);
+      }
+    };
+    finalizer.start();
+    moving.await();
+    recoverer.start();
+    // recoverClose must wait for the move instead of using the rbw replica
+    waitUntilWaiting(recoverer);
+    assertEquals(ReplicaState.RBW,
+        dataset.fetchReplicaInfo(bpid, b.getBlockId()).getState());
+
+    release.countDown();
+    finalizer.join();
+    recoverer.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+    final ReplicaInfo finalized = dataset.fetchReplicaInfo(bpid,
+        b.getBlockId());
+    assertEquals(ReplicaState.FINALIZED, finalized.getState());
+    assertEquals(1002, finalized.getGenerationStamp());
+    assertTrue(finalized.getBlockFile().exists());
+    assertTrue(finalized.getMetaFile().exists());
+    assertFalse(rbw.getBlockFile().exists());
+  }
+
+  @Test(timeout = 30000)
+  public void testDirectoryScanDuringFinalizeBlock() throws Exception {
+    final String bpid = BLOCK_POOL_IDS[0];
+    final ExtendedBlock b = new ExtendedBlock(bpid, 23457, 0, 1001);
+    final CountDownLatch moving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final ReplicaInfo rbw = createRbwHeldInFinalize(b, moving, release);
+
+    final List<Throwable> errors =
+        Collections.synchronizedList(new ArrayList<Throwable>());
+    final Thread finalizer = new TestThread(errors) {
+      @Override
+      void doRun() throws Exception {
+        dataset.finalizeBlock(b);
+      }
+    };
+    finalizer.start();
+    moving.await();
+    final ReplicaInfo held = dataset.volumeMap.get(bpid, b.getBlockId());
+    // the scanner found neither the block file nor the meta file
+    dataset.checkAndUpdate(bpid, b.getBlockId(), null, null,
+        rbw.getVolume());
+    assertSame(held, dataset.volumeMap.get(bpid, b.getBlockId()));
+
+    release.countDown();
+    finalizer.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+    final ReplicaInfo finalized = dataset.fetchReplicaInfo(bpid,
+        b.getBlockId());
+    assertEquals(ReplicaState.FINALIZED, finalized.getState());
+    assertTrue(finalized.getBlockFile().exists());
+  }
+
+  @Test(timeout = 30000)
+  public void testInvalidateWaitsForFinalizeBlock() throws Exception {
+    final ShortCircuitRegistry registry = mock(ShortCircuitRegistry.class);
+    when(datanode.getShortCircuitRegistry()).thenReturn(registry);
+    final String bpid = BLOCK_POOL_IDS[0];
+    final ExtendedBlock b = new ExtendedBlock(bpid, 23458, 0, 1001);
+    final CountDownLatch moving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    createRbwHeldInFinalize(b, moving, release);
+
+    final List<Throwable> errors =
+        Collections.synchronizedList(new ArrayList<Throwable>());
+    final Thread finalizer = new TestThread(errors) {
+      @Override
+      void doRun() throws Exception {
+        dataset.finalizeBlock(b);
+      }
+    };
+    final Thread invalidator = new TestThread(errors) {
+      @Override
+      void doRun() throws Exception {
+        dataset.invalidate(bpid, new Block[] { b.getLocalBlock() });
+      }
+    };
+    finalizer.start();
+    moving.await();
+    invalidator.start();
+    // invalidate must wait for the move and then delete the moved files
+    waitUntilWaiting(invalidator);
+    assertTrue(dataset.fetchReplicaInfo(bpid, b.getBlockId()) != null);
+
+    release.countDown();
+    finalizer.join();
+    invalidator.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertNull(dataset.fetchReplicaInfo(bpid, b.getBlockId()));
+  }
 }
@@ -174,6 +174,10 @@ abstract class OperationStatsBase {
     protected boolean keepResults = false;// don't clean base directory on exit
     protected Level logLevel;             // logging level, ERROR by default
     protected int ugcRefreshCount = 0;    // user group cache refresh count
+    protected long writeLockAcquired = 0; // write lock acquisitions during run
+    protected long writeLockWaitTime = 0; // time spent waiting for write lock
+    protected long writeLockHeldTime = 0; // time the write lock was held
+    protected long readLockWaitTime = 0;  // time spent waiting for read lock
 
     protected List<StatsDaemon> daemons;
 
@@ -235,6 +239,11 @@ abstract class OperationStatsBase {
 
     void benchmark() throws IOException {
       daemons = new ArrayList<StatsDaemon>();
+      final FSNamesystem fsn = nameNode.getNamesystem();
+      long lockAcquired = 0;
+      long lockWait = 0;
+      long lockHeld = 0;
+      long readWait = 0;
       long start = 0;
       try {
         numOpsExecuted = 0;
@@ -257,6 +266,10 @@ void benchmark() throws IOException {
         setNameNodeLoggingLevel(logLevel);
         for(tIdx=0; tIdx < numThreads; tIdx++)
           daemons.add(new StatsDaemon(tIdx, opsPerThread[tIdx], this));
+        lockAcquired = fsn.getFSLockWriteAcquired();
+        lockWait = fsn.getFSLockWriteWaitMillis();
+        lockHeld = fsn.getFSLockWriteHeldMillis();
+        readWait = fsn.getFSLockReadWaitMillis();
         start = Time.now();
         LOG.info("Starting " + numOpsRequired + " " + getOpName() + "(s).");
         for(StatsDaemon d : daemons)
@@ -266,6 +279,10 @@ void benchmark() throws IOException {
           // try {Thread.sleep(500);} catch (InterruptedException e) {}
         }
         elapsedTime = Time.now() - start;
+        writeLockAcquired = fsn.getFSLockWriteAcquired() - lockAcquired;
+        writeLockWaitTime = fsn.getFSLockWriteWaitMillis() - lockWait;
+        writeLockHeldTime = fsn.getFSLockWriteHeldMillis() - lockHeld;
+        readLockWaitTime = fsn.getFSLockReadWaitMillis() - readWait;
         for(StatsDaemon d : daemons) {
           incrementStats(d.localNumOpsExecuted, d.localCumulativeTime);
           // System.out.println(d.toString() + ": ops Exec = " + d.localNumOpsExecuted);
@@ -374,6 +391,14 @@ void printStats() {
       LOG.info("Elapsed Time: " + getElapsedTime());
       LOG.info(" Ops per sec: " + getOpsPerSecond());
       LOG.info("Average Time: " + getAverageTime());
+      // Threads simulate RPC handlers, so running the same operation with an
+      // increasing -threads value shows how it scales with the handler count
+      // and how much of the elapsed time is spent contending on the
+      // namesystem lock.
+      LOG.info("  Write locks: " + writeLockAcquired);
+      LOG.info("Wr lock wait: " + writeLockWaitTime);
+      LOG.info("Wr lock held: " + writeLockHeldTime);
+      LOG.info("Rd lock wait: " + readLockWaitTime);
     }
   }
 
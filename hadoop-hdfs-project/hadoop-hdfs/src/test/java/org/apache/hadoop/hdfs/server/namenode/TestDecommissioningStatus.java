@@ -287,6 +287,9 @@ public void testDecommissionStatus() throws IOException, InterruptedException {
         assertEquals(decommissioningNodes.size(), 1);
         DatanodeDescriptor decommNode = decommissioningNodes.get(0);
         checkDecommissionStatus(decommNode, 4, 0, 2);
+        // only the blocks still needing replication are re-examined
+        assertEquals(4,
+            BlockManagerTestUtil.getNumTrackedDecommissionBlocks(dm, decommNode));
         checkDFSAdminDecommissionStatus(decommissioningNodes.subList(0, 1),
             fileSys, admin);
       } else {
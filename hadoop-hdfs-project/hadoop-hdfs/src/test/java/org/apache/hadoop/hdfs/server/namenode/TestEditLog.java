@@ -50,6 +50,8 @@
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -78,6 +80,7 @@
 import org.apache.hadoop.hdfs.util.XMLUtils.InvalidXmlException;
 import org.apache.hadoop.hdfs.util.XMLUtils.Stanza;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.test.GenericTestUtils;
 import org.apache.hadoop.test.PathUtils;
 import org.apache.hadoop.util.StringUtils;
@@ -85,6 +88,8 @@
 import org.apache.log4j.Level;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
@@ -312,6 +317,100 @@ public void testSimpleEditLog() throws IOException {
     }
   }
 
+  /**
+   * Test that the responses of RPC calls are only sent after their edits
+   * have been synced when edit log sync is asynchronous.
+   */
+  @Test
+  public void testAsyncLogSync() throws Exception {
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING, true);
+    MiniDFSCluster cluster = null;
+    try {
+      cluster = new MiniDFSCluster.Builder(conf).numDataNodes(0).build();
+      cluster.waitActive();
+      final FileSystem fs = cluster.getFileSystem();
+      final FSEditLog editLog = cluster.getNamesystem().getEditLog();
+      ExecutorService threads = Executors.newFixedThreadPool(4);
+      List<Callable<Boolean>> mkdirs = new ArrayList<Callable<Boolean>>();
+      for (int i = 0; i < 40; i++) {
+        final Path dir = new Path("/async/dir" + i);
+        mkdirs.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            final long lastTxId = editLog.getLastWrittenTxId();
+            boolean created = fs.mkdirs(dir);
+            // the response is only sent once the edit is durable
+            assertTrue(editLog.getSyncTxId() > lastTxId);
+            return created;
+          }
+        });
+      }
+      for (Future<Boolean> f : threads.invokeAll(mkdirs)) {
+        assertTrue(f.get());
+      }
+      threads.shutdown();
+
+      cluster.restartNameNode();
+      for (int i = 0; i < 40; i++) {
+        assertTrue(cluster.getFileSystem().exists(new Path("/async/dir" + i)));
+      }
+    } finally {
+      if (cluster != null) {
+        cluster.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Test that closing the edit log waits until the syncer has responded to
+   * the calls it holds, once their edits are synced.
+   */
+  @Test
+  public void testAsyncLogSyncOnClose() throws Exception {
+    final File logDir = new File(TEST_DIR, "testAsyncLogSyncOnClose");
+    assertTrue(logDir.mkdirs() || logDir.exists());
+    assertTrue(FileUtil.fullyDeleteContents(logDir));
+    NNStorage storage = Mockito.mock(NNStorage.class);
+    StorageDirectory sd =
+        FSImageTestUtil.mockStorageDirectory(logDir, NameNodeDirType.EDITS);
+    Mockito.doReturn(Lists.newArrayList(sd)).when(storage)
+        .dirIterable(NameNodeDirType.EDITS);
+    Configuration conf = new HdfsConfiguration();
+    conf.setBoolean(DFSConfigKeys.DFS_NAMENODE_EDITS_ASYNC_LOGGING, true);
+    final FSEditLog log = new FSEditLog(conf, storage,
+        ImmutableList.of(logDir.toURI()));
+    log.initJournalsForWrite();
+    log.setNextTxId(1);
+    log.openForWrite();
+
+    // a slow client connection
+    final Server.Call call = Mockito.mock(Server.Call.class);
+    final AtomicLong syncedTxId = new AtomicLong(-1);
+    Mockito.doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(500);
+        syncedTxId.set(log.getSyncTxId());
+        return null;
+      }
+    }).when(call).sendResponse();
+
+    Server.getCurCall().set(call);
+    try {
+      log.logSetReplication("/f", (short) 1);
+      log.logSync();
+    } finally {
+      Server.getCurCall().set(null);
+    }
+    final long txid = log.getLastWrittenTxId();
+    log.close();
+
+    Mockito.verify(call).postponeResponse();
+    Mockito.verify(call).sendResponse();
+    assertTrue("Responded at " + syncedTxId.get(), syncedTxId.get() >= txid);
+  }
+
   /**
    * Tests transaction logging in dfs.
    */
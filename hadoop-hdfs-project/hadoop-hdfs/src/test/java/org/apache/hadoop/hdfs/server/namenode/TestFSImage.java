@@ -66,6 +66,14 @@ public void testCompression() throws IOException {
     testPersistHelper(conf);
   }
 
+  @Test
+  public void testParallelLoad() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(DFSConfigKeys.DFS_IMAGE_PARALLEL_LOAD_KEY, true);
+    conf.setInt(DFSConfigKeys.DFS_IMAGE_PARALLEL_THREADS_KEY, 2);
+    testPersistHelper(conf);
+  }
+
   private void testPersistHelper(Configuration conf) throws IOException {
     MiniDFSCluster cluster = null;
     try {
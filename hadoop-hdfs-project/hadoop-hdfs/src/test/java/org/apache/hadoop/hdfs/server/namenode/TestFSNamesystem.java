@@ -20,12 +20,14 @@
 
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_EDITS_DIR_KEY;
 import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_NAME_DIR_KEY;
+import static org.apache.hadoop.hdfs.DFSConfigKeys.DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_KEY;
 import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileUtil;
@@ -36,6 +38,9 @@
 import org.apache.hadoop.hdfs.server.namenode.ha.HAContext;
 import org.apache.hadoop.hdfs.server.namenode.ha.HAState;
 import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
 import org.junit.After;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -196,6 +201,86 @@ public void testFSNamesystemLockCompatibility() {
     assertEquals(0, rwLock.getWriteHoldCount());
   }
 
+  @Test
+  public void testFSNamesystemLockStatistics() {
+    FSNamesystemLock rwLock = new FSNamesystemLock(true);
+
+    long start = System.nanoTime();
+    rwLock.writeLock().lock();
+    rwLock.writeLockAcquired(start);
+    // Reentrant acquisitions are not counted.
+    rwLock.writeLock().lock();
+    rwLock.writeLockAcquired(start);
+    rwLock.writeLockReleasing();
+    rwLock.writeLock().unlock();
+    assertEquals(0, rwLock.getWriteLockHeldNanos());
+    rwLock.writeLockReleasing();
+    rwLock.writeLock().unlock();
+    assertEquals(1, rwLock.getWriteLockAcquiredCount());
+    assertTrue(rwLock.getWriteLockHeldNanos() > 0);
+
+    start = System.nanoTime();
+    rwLock.readLock().lock();
+    rwLock.readLockAcquired(start);
+    rwLock.readLock().lock();
+    rwLock.readLockAcquired(start);
+    rwLock.readLock().unlock();
+    rwLock.readLock().unlock();
+    assertEquals(1, rwLock.getReadLockAcquiredCount());
+  }
+
+  /**
+   * A write lock hold above the reporting threshold is logged only after the
+   * lock has been released.
+   */
+  @Test
+  public void testLongWriteLockHoldLoggedAfterUnlock() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong(DFS_NAMENODE_WRITE_LOCK_REPORTING_THRESHOLD_MS_KEY, 0L);
+    FSEditLog fsEditLog = Mockito.mock(FSEditLog.class);
+    FSImage fsImage = Mockito.mock(FSImage.class);
+    Mockito.when(fsImage.getEditLog()).thenReturn(fsEditLog);
+    final FSNamesystem fsn = new FSNamesystem(conf, fsImage);
+
+    final AtomicInteger reports = new AtomicInteger();
+    final AtomicInteger reportsUnderLock = new AtomicInteger();
+    AppenderSkeleton appender = new AppenderSkeleton() {
+      @Override
+      protected void append(LoggingEvent event) {
+        String msg = event.getRenderedMessage();
+        if (msg != null && msg.startsWith("FSNamesystem write lock held")) {
+          reports.incrementAndGet();
+          if (fsn.hasWriteLock()) {
+            reportsUnderLock.incrementAndGet();
+          }
+        }
+      }
+
+      @Override
+      public void close() {
+      }
+
+      @Override
+      public boolean requiresLayout() {
+        return false;
+      }
+    };
+    Logger logger = Logger.getLogger(FSNamesystem.class);
+    logger.addAppender(appender);
+    try {
+      fsn.writeLock();
+      fsn.writeLock();
+      fsn.writeUnlock();
+      // a reentrant release is not reported
+      assertEquals(0, reports.get());
+      fsn.writeUnlock();
+      assertEquals(1, reports.get());
+      assertEquals(0, reportsUnderLock.get());
+    } finally {
+      logger.removeAppender(appender);
+    }
+  }
+
   @Test
   public void testReset() throws Exception {
     Configuration conf = new Configuration();
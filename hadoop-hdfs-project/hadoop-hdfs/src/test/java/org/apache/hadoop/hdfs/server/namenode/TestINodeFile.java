@@ -61,10 +61,13 @@
 import org.apache.hadoop.hdfs.server.blockmanagement.BlockInfo;
 import org.apache.hadoop.hdfs.server.namenode.snapshot.Snapshot;
 import org.apache.hadoop.hdfs.server.protocol.NamenodeProtocols;
+import org.apache.hadoop.hdfs.util.ReadOnlyList;
+import org.apache.hadoop.hdfs.util.SegmentedArrayList;
 import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.util.Time;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.internal.util.reflection.Whitebox;
 
 import com.google.common.collect.ImmutableList;
 
@@ -209,6 +212,43 @@ public void testGetFullPathName() {
     assertEquals(Path.SEPARATOR, root.getFullPathName());
   }
   
+  /**
+   * The children of a directory move to a SegmentedArrayList once the
+   * directory is large, and back to an ArrayList once it has shrunk.
+   */
+  @Test
+  public void testLargeDirectoryChildrenList() {
+    INodeDirectory dir = new INodeDirectory(INodeId.GRANDFATHER_INODE_ID,
+        DFSUtil.string2Bytes("d"), perm, 0L);
+    final int n = INodeDirectory.LARGE_DIRECTORY_THRESHOLD + 1;
+    final List<INodeFile> files = new ArrayList<INodeFile>();
+    for (int i = 0; i < n; i++) {
+      INodeFile f = createINodeFile((short) 1, 1024L);
+      f.setLocalName(DFSUtil.string2Bytes(String.format("f%06d", i)));
+      assertFalse(Whitebox.getInternalState(dir, "children")
+          instanceof SegmentedArrayList);
+      assertTrue(dir.addChild(f));
+      files.add(f);
+    }
+    assertTrue(Whitebox.getInternalState(dir, "children")
+        instanceof SegmentedArrayList);
+
+    int i = 0;
+    for (; i <= n - INodeDirectory.SMALL_DIRECTORY_THRESHOLD; i++) {
+      assertTrue(Whitebox.getInternalState(dir, "children")
+          instanceof SegmentedArrayList);
+      assertTrue(dir.removeChild(files.get(i)));
+    }
+    assertFalse(Whitebox.getInternalState(dir, "children")
+        instanceof SegmentedArrayList);
+    ReadOnlyList<INode> children = dir.getChildrenList(
+        Snapshot.CURRENT_STATE_ID);
+    assertEquals(n - i, children.size());
+    for (int j = 0; j < children.size(); j++) {
+      assertTrue(files.get(i + j) == children.get(j));
+    }
+  }
+
   /**
    * FSDirectory#unprotectedSetQuota creates a new INodeDirectoryWithQuota to
    * replace the original INodeDirectory. Before HDFS-4243, the parent field of
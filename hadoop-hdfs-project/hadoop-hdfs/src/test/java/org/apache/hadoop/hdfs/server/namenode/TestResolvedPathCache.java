@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.PrivilegedExceptionAction;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.HdfsConfiguration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Test the caching of resolved parents of paths in {@link FSDirectory}. */
+public class TestResolvedPathCache {
+  private Configuration conf;
+  private MiniDFSCluster cluster;
+  private DistributedFileSystem hdfs;
+  private FSDirectory fsdir;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = new HdfsConfiguration();
+    cluster = new MiniDFSCluster.Builder(conf).numDataNodes(1).build();
+    cluster.waitActive();
+    hdfs = cluster.getFileSystem();
+    fsdir = cluster.getNamesystem().getFSDirectory();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (cluster != null) {
+      cluster.shutdown();
+    }
+  }
+
+  /** Resolve the path with and without the cache and compare the results. */
+  private void assertResolved(String path) throws Exception {
+    final byte[][] components = INode.getPathComponents(path);
+    fsdir.readLock();
+    try {
+      final INodesInPath expected = INodesInPath.resolve(fsdir.getRoot(),
+          components, components.length, false);
+      final INodesInPath actual = fsdir.getINodesInPath(path, false);
+      assertArrayEquals(expected.getINodes(), actual.getINodes());
+      assertEquals(expected.getLatestSnapshotId(),
+          actual.getLatestSnapshotId());
+    } finally {
+      fsdir.readUnlock();
+    }
+  }
+
+  @Test
+  public void testCachedParents() throws Exception {
+    final Path dir = new Path("/a/b/c");
+    DFSTestUtil.createFile(hdfs, new Path(dir, "f1"), 1, (short) 1, 0L);
+    DFSTestUtil.createFile(hdfs, new Path(dir, "f2"), 1, (short) 1, 0L);
+    assertTrue(hdfs.exists(new Path(dir, "f1")));
+    assertTrue(fsdir.getResolvedPathCache().size() > 0);
+    assertResolved("/a/b/c/f1");
+    assertResolved("/a/b/c/f2");
+    assertResolved("/a/b/c/missing");
+
+    // renaming an ancestor invalidates the cached parent
+    assertTrue(hdfs.rename(new Path("/a/b"), new Path("/a/x")));
+    assertFalse(hdfs.exists(new Path(dir, "f1")));
+    assertTrue(hdfs.exists(new Path("/a/x/c/f1")));
+    assertResolved("/a/b/c/f1");
+    assertResolved("/a/x/c/f1");
+
+    // a new directory of the same name is resolved again
+    DFSTestUtil.createFile(hdfs, new Path(dir, "f3"), 1, (short) 1, 0L);
+    assertTrue(hdfs.exists(new Path(dir, "f3")));
+    assertFalse(hdfs.exists(new Path(dir, "f1")));
+    assertResolved("/a/b/c/f3");
+
+    // deleting a directory invalidates the cached parent
+    assertTrue(hdfs.delete(new Path("/a/b"), true));
+    assertFalse(hdfs.exists(new Path(dir, "f3")));
+    assertResolved("/a/b/c/f3");
+  }
+
+  @Test
+  public void testReplacedParent() throws Exception {
+    final Path file = new Path("/r/d/f");
+    DFSTestUtil.createFile(hdfs, file, 1, (short) 1, 0L);
+    assertTrue(hdfs.exists(file));
+    assertTrue(hdfs.exists(file));
+
+    fsdir.writeLock();
+    try {
+      final INodeDirectory r = fsdir.getINode4Write("/r").asDirectory();
+      final INodeDirectory d = fsdir.getINode4Write("/r/d").asDirectory();
+      final INodeDirectory copy = new INodeDirectory(d, true,
+          d.getFeatures());
+      r.replaceChild(d, copy, fsdir.getINodeMap());
+      // a stale parent pointer of the replaced directory must not make the
+      // cached entry valid
+      d.setParent(r);
+      assertSame(copy, fsdir.getINodesInPath(file.toString(), false)
+          .getINode(-2));
+    } finally {
+      fsdir.writeUnlock();
+    }
+  }
+
+    @Test
+  public void testSnapshots() throws Exception {
+    final Path dir = new Path("/s/d");
+    final Path file = new Path(dir, "f");
+    DFSTestUtil.createFile(hdfs, file, 1, (short) 1, 0L);
+    assertTrue(hdfs.exists(file));
+    assertResolved(file.toString());
+
+    // the cached parent must not hide the new snapshot
+    hdfs.allowSnapshot(new Path("/s"));
+    hdfs.createSnapshot(new Path("/s"), "s0");
+    assertResolved(file.toString());
+    assertTrue(hdfs.delete(file, false));
+    assertTrue(hdfs.exists(new Path("/s/.snapshot/s0/d/f")));
+    assertFalse(hdfs.exists(file));
+    assertResolved(file.toString());
+  }
+
+  @Test
+  public void testTraversePermission() throws Exception {
+    final Path dir = new Path("/p/q");
+    final Path file = new Path(dir, "f");
+    DFSTestUtil.createFile(hdfs, file, 1, (short) 1, 0L);
+    hdfs.setPermission(file, new FsPermission((short) 0644));
+
+    final UserGroupInformation user = UserGroupInformation
+        .createUserForTesting("user", new String[] { "group" });
+    final FileSystem userFs = DFSTestUtil.getFileSystemAs(user, conf);
+    // cache the parent as traversable by everyone
+    assertTrue(userFs.exists(file));
+    assertTrue(userFs.exists(file));
+
+    // the owner may not traverse even though others may
+    hdfs.setOwner(new Path("/p"), "user", null);
+    hdfs.setPermission(new Path("/p"), new FsPermission((short) 0611));
+    try {
+      user.doAs(new PrivilegedExceptionAction<Object>() {
+        @Override
+        public Object run() throws Exception {
+          return userFs.getFileStatus(file);
+        }
+      });
+      fail("Traverse permission of the owner was not checked");
+    } catch (AccessControlException e) {
+      // expected
+    }
+
+    hdfs.setOwner(new Path("/p"), "root", null);
+    hdfs.setPermission(new Path("/p"), new FsPermission((short) 0755));
+    assertTrue(userFs.exists(file));
+    hdfs.setPermission(new Path("/p"), new FsPermission((short) 0700));
+    try {
+      user.doAs(new PrivilegedExceptionAction<Object>() {
+        @Override
+        public Object run() throws Exception {
+          return userFs.getFileStatus(file);
+        }
+      });
+      fail("Traverse permission of the changed parent was not checked");
+    } catch (AccessControlException e) {
+      // expected
+    }
+  }
+}
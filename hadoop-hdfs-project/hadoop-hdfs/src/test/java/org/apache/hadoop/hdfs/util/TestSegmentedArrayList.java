@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestSegmentedArrayList {
+
+  @Test
+  public void testAppend() {
+    final int N_ELEMS = 100000;
+    SegmentedArrayList<Integer> l = new SegmentedArrayList<Integer>(1000);
+    assertTrue(l.isEmpty());
+    for (int i = 0; i < N_ELEMS; i++) {
+      l.add(i);
+    }
+    assertEquals(N_ELEMS, l.size());
+    // appending in order fills every segment
+    assertEquals(N_ELEMS / 1000, l.getNumSegments());
+
+    int i = 0;
+    for (int fromList : l) {
+      assertEquals(i, fromList);
+      i++;
+    }
+    for (i = 0; i < N_ELEMS; i += 997) {
+      assertEquals(i, (int) l.get(i));
+    }
+  }
+
+  /**
+   * Apply the same random inserts, updates and removals to an ArrayList
+   * and a SegmentedArrayList and check that they stay identical.
+   */
+  @Test
+  public void testRandomOperations() {
+    final Random r = new Random();
+    final long seed = r.nextLong();
+    r.setSeed(seed);
+    System.out.println("seed=" + seed);
+
+    final List<Integer> expected = new ArrayList<Integer>();
+    final SegmentedArrayList<Integer> l = new SegmentedArrayList<Integer>(8);
+    for (int n = 0; n < 20000; n++) {
+      final int op = r.nextInt(10);
+      if (op < 6 || expected.isEmpty()) {
+        final int index = r.nextInt(expected.size() + 1);
+        expected.add(index, n);
+        l.add(index, n);
+      } else if (op < 7) {
+        final int index = r.nextInt(expected.size());
+        assertEquals(expected.set(index, -n), l.set(index, -n));
+      } else {
+        final int index = r.nextInt(expected.size());
+        assertEquals(expected.remove(index), l.remove(index));
+      }
+      assertEquals(expected.size(), l.size());
+    }
+    assertEquals(expected, l);
+    assertEquals(expected, new ArrayList<Integer>(l));
+
+    while (!l.isEmpty()) {
+      assertEquals(expected.remove(0), l.remove(0));
+    }
+    assertEquals(0, l.getNumSegments());
+  }
+
+  @Test
+  public void testBinarySearch() {
+    final SegmentedArrayList<Integer> l = new SegmentedArrayList<Integer>(4);
+    for (int i = 0; i < 100; i++) {
+      final int pos = Collections.binarySearch(l, 2 * i);
+      assertTrue(pos < 0);
+      l.add(-pos - 1, 2 * i);
+    }
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, Collections.binarySearch(l, 2 * i));
+      assertEquals(-i - 2, Collections.binarySearch(l, 2 * i + 1));
+    }
+  }
+
+  @Test
+  public void testIteratorFailsFast() {
+    final SegmentedArrayList<Integer> l = new SegmentedArrayList<Integer>();
+    l.add(1);
+    l.add(2);
+    final Iterator<Integer> it = l.iterator();
+    it.next();
+    l.remove(0);
+    try {
+      it.next();
+      fail("Expected ConcurrentModificationException");
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+}